@@ -56,6 +56,12 @@ public class AdminClient  {
         options.addOption("force",false,"in conjuction with shutdown, asking sessions to stop");
         options.addOption("vader",false,"in conjuction with shutdown, closing endpoints immediately");
         options.addOption("password",true,"password for server");
+        options.addOption("stats",false,"print the index and query cache metrics of an index server,"
+        		+ " the port defaults to "+Utils.indexServerPort);
+        options.addOption("hot",false,"print the most frequent queries, query hits and downloads"
+        		+ " of an index server, the port defaults to "+Utils.indexServerPort);
+        options.addOption("top",true,"with -hot, the number of each to print, default "+
+        		IndexServer.defaultHotItems);
         
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = null;
@@ -65,6 +71,21 @@ public class AdminClient  {
 			help(options);
 		}
         
+        if(cmd.hasOption("stats") || cmd.hasOption("hot")) {
+        	port=Utils.indexServerPort;
+        }
+        
+        String top="";
+        if(cmd.hasOption("top")) {
+        	try{
+        		top = Integer.toString(Integer.parseInt(cmd.getOptionValue("top")));
+			} catch (NumberFormatException e){
+				System.out.println("-top requires an integer, parsed: "+cmd.getOptionValue("top"));
+				help(options);
+			}
+        }
+        final String hotItems = top;
+        
         if(cmd.hasOption("port")){
         	try{
         		port = Integer.parseInt(cmd.getOptionValue("port"));
@@ -87,6 +108,26 @@ public class AdminClient  {
         ClientManager clientManager = new ClientManager(host,port);
         clientManager.on(ClientManager.sessionStarted, (eventArgs)->{
         	Endpoint endpoint = (Endpoint) eventArgs[0];
+        	if(cmd2.hasOption("stats")) {
+        		endpoint.on(IndexServer.indexStatsResponse, (eventArgs2)->{
+        			System.out.print((String) eventArgs2[0]);
+        			clientManager.shutdown();
+        		});
+        		endpoint.emit(IndexServer.indexStats, "");
+        		// wait for the response before shutting down
+        		return;
+        	}
+        	if(cmd2.hasOption("hot")) {
+        		endpoint.on(IndexServer.loadStatsResponse, (eventArgs2)->{
+        			System.out.print((String) eventArgs2[0]);
+        			clientManager.shutdown();
+        		}).on(IndexServer.queryError, (eventArgs2)->{
+        			System.out.println("index server did not accept the request");
+        			clientManager.shutdown();
+        		});
+        		endpoint.emit(IndexServer.loadStats, hotItems);
+        		return;
+        	}
         	if(cmd2.hasOption("shutdown")) {
         		String password="";
         		if(cmd2.hasOption("password")) {
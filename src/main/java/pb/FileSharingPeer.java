@@ -1,18 +1,37 @@
 package pb;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
 import java.util.logging.Logger;
 
 import org.apache.commons.cli.CommandLine;
@@ -24,11 +43,29 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.codec.binary.Base64;
 
+import pb.index.CatalogDelta;
+import pb.index.CatalogWatcher;
+import pb.index.FuzzyDictionary;
+import pb.index.HashRing;
+import pb.index.QueryRanker;
+import pb.index.ShareCatalog;
 import pb.managers.ClientManager;
 import pb.managers.IOThread;
 import pb.managers.PeerManager;
 import pb.managers.ServerManager;
 import pb.managers.endpoint.Endpoint;
+import pb.protocols.Document;
+import pb.transfer.ArchiveReader;
+import pb.transfer.ArchiveStream;
+import pb.transfer.BlockSignatures;
+import pb.transfer.ChunkAssembler;
+import pb.transfer.ChunkCodec;
+import pb.transfer.ChunkStore;
+import pb.transfer.ChunkStream;
+import pb.transfer.DeltaReader;
+import pb.transfer.DeltaStream;
+import pb.transfer.DownloadManager;
+import pb.transfer.FlowControl;
 import pb.utils.Utils;
 
 /**
@@ -75,6 +112,146 @@ public class FileSharingPeer {
 	 */
 	private static final String fileError = "FILE_ERROR";
 	
+	/**
+	 * Emitted by a peer for each chunk of a transmission that it receives, in
+	 * the order received, so that the sending peer can pace the transmissions
+	 * to it and measure the link, see {@link FlowControl}. The single
+	 * argument is the empty string "", since the chunks are acknowledged in
+	 * the order they were sent.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}
+	 * </ul>
+	 */
+	private static final String chunkAck = "CHUNK_ACK";
+	
+	/**
+	 * Emitted by a peer that is about to get files, to say which compressed
+	 * chunks it can decode, see {@link ChunkCodec}. The single argument is a
+	 * string that is a comma separated list of codec names. The other peer
+	 * only compresses the chunks that it sends if it supports one of them,
+	 * and otherwise sends them as they are.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}
+	 * </ul>
+	 */
+	private static final String acceptEncodings = "ACCEPT_ENCODINGS";
+	
+	/**
+	 * Emitted when a peer wants to get many files from another peer over
+	 * the one connection. The single argument is a string that is the
+	 * filenames to get, separated by newlines, of at most
+	 * {@link Utils#batchSize} bytes. The files are sent back with
+	 * {@link #filesContents}, and the next request should not be emitted
+	 * until all of them have been received.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}
+	 * </ul>
+	 */
+	private static final String getFiles = "GET_FILES";
+	
+	/**
+	 * Emitted when a peer is sending a chunk of the files asked for with
+	 * {@link #getFiles}. The single argument is a string that is a Base64
+	 * encoded byte array that is the next chunk of an {@link ArchiveStream}
+	 * of the files, which frames each file with its name, length and hash.
+	 * If the argument is the empty string "" then all of the files have
+	 * been sent.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}
+	 * </ul>
+	 */
+	private static final String filesContents = "FILES_CONTENTS";
+	
+	/**
+	 * Emitted when a peer that has an older copy of a file wants to get only
+	 * the changes to it. The single argument is a string that is a JSON
+	 * document {"filename":"...","blockSize":n}, with the block size of the
+	 * signatures that follow as {@link #fileSignatures}. The changes are
+	 * sent back with {@link #fileDelta}, or {@link #fileError} if they can't
+	 * be, in which case the whole file should be asked for.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}
+	 * </ul>
+	 */
+	private static final String getFileDelta = "GET_FILE_DELTA";
+	
+	/**
+	 * Emitted after {@link #getFileDelta} with a chunk of the signatures of
+	 * the blocks of the older copy. The single argument is a string that is a
+	 * Base64 encoded byte array of {@link BlockSignatures#encode()}. If the
+	 * argument is the empty string "" then all of the signatures have been sent.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}
+	 * </ul>
+	 */
+	private static final String fileSignatures = "FILE_SIGNATURES";
+	
+	/**
+	 * Emitted when a peer is sending a chunk of the changes asked for by
+	 * {@link #getFileDelta}. The single argument is a string that is a Base64
+	 * encoded byte array that is the next chunk of a {@link DeltaStream}, the
+	 * blocks of the older copy to copy and the bytes that are new. If the
+	 * argument is the empty string "" then all of the changes have been sent.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}
+	 * </ul>
+	 */
+	private static final String fileDelta = "FILE_DELTA";
+	
+	/**
+	 * Emitted when a peer wants to get a file as chunks, so that it only
+	 * needs to get the chunks that it does not hold already. The single
+	 * argument is a string that is the filename to get. The chunks of the
+	 * file are sent back with {@link #fileRecipe}, or {@link #fileError} if
+	 * the file can't be read.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}
+	 * </ul>
+	 */
+	private static final String getFileChunks = "GET_FILE_CHUNKS";
+	
+	/**
+	 * Emitted when a peer is sending a chunk of the list of chunks of a file,
+	 * in the order of the file. The single argument is a string that is a
+	 * Base64 encoded byte array of {@link ChunkStore#encode(List)}, the hash
+	 * and length of each chunk. If the argument is the empty string "" then
+	 * the whole list has been sent.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}
+	 * </ul>
+	 */
+	private static final String fileRecipe = "FILE_RECIPE";
+	
+	/**
+	 * Emitted when a peer wants to get chunks, of a file whose list of chunks
+	 * it was sent. The single argument is a string that is a Base64 encoded
+	 * byte array of {@link ChunkStore#encodeHashes(List)}, the hashes of at
+	 * most {@link #maxChunkRequest} chunks. The chunks are sent back with
+	 * {@link #chunkContents}, and the next request should not be emitted
+	 * until all of them have been received.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}
+	 * </ul>
+	 */
+	private static final String getChunks = "GET_CHUNKS";
+	
+	/**
+	 * Emitted when a peer is sending a chunk of the contents of the chunks
+	 * asked for by {@link #getChunks}. The single argument is a string that
+	 * is a Base64 encoded byte array that is the next part of a
+	 * {@link ChunkStream} of the chunks, back-to-back in the order asked for.
+	 * If the argument is the empty string "" then all of them have been sent.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}
+	 * </ul>
+	 */
+	private static final String chunkContents = "CHUNK_CONTENTS";
+	
+	/**
+	 * Most chunks to ask for in one {@link #getChunks} request.
+	 */
+	private static final int maxChunkRequest = 512;
+	
 	/**
 	 * port to use for this peer's server
 	 */
@@ -92,108 +269,1581 @@ public class FileSharingPeer {
 	private static String host=Utils.serverHost; // default host for the index server
 	
 	/**
-	 * chunk size to use (bytes) when transferring a file
+	 * endpoints of the sessions with the index servers, one for each shard,
+	 * while they are up and being kept open for catalog changes and lease renewal
+	 */
+	private static final Set<Endpoint> indexEndpoints=ConcurrentHashMap.newKeySet();
+	
+	/**
+	 * the shards of the index when using a cluster of index servers,
+	 * or null when using a single index server
+	 */
+	private static HashRing shards=null;
+	
+	/**
+	 * the index servers to fail over between, in order, when using a primary
+	 * index server and its backups, or null when using a single index server
+	 */
+	private static List<String> indexServers=null;
+	
+	/**
+	 * how many times to try to connect to an index server before failing
+	 * over to the next one
+	 */
+	private static final int failoverRetries=2;
+	
+	/**
+	 * seconds to wait before sending the catalog changes again when an index
+	 * server did not accept them, for instance because it is a backup that has
+	 * not taken over yet, doubled each time it still does not accept them up
+	 * to maxRetrySeconds
+	 */
+	private static final int updateRetrySeconds=5;
+	private static final int maxRetrySeconds=120;
+	
+	/**
+	 * number of the most relevant files to download for a query, or 0
+	 * to download every file that matches
+	 */
+	private static int queryLimit=0;
+	
+	/**
+	 * true to keep a query open once the files already in the index have been
+	 * found, and download new files that match it as they are indexed
+	 */
+	private static boolean subscribe=false;
+	
+	/**
+	 * number of edits by which a word of the query may be misspelt, or 0 for
+	 * words to match exactly
+	 */
+	private static int fuzzyEdits=0;
+	
+	/**
+	 * the chunks of the files that we share and download, and true to get
+	 * files as chunks, leaving out the chunks that it already holds
+	 */
+	private static final ChunkStore chunkStore=new ChunkStore();
+	private static boolean chunked=false;
+	
+	/**
+	 * the directory that downloaded files are written under, by their
+	 * filenames
+	 */
+	private static Path downloadDir=Paths.get("").toAbsolutePath().normalize();
+	
+	/**
+	 * keeps the catalog in step with the shared directories and finds the
+	 * files of the names that they are shared under, or null if no
+	 * directories are shared
+	 */
+	private static volatile CatalogWatcher catalogWatcher=null;
+	
+	/**
+	 * true to get only the changes to files that we have an older copy of,
+	 * when the older copy is at least minDeltaBytes long
+	 */
+	private static boolean deltaSync=true;
+	private static final long minDeltaBytes=4*1024;
+	
+	/**
+	 * most bytes of block signatures to accept for one file, enough for
+	 * a 2GB file
+	 */
+	private static final int maxSignatureBytes=64*1024*BlockSignatures.signatureLength;
+	
+	/**
+	 * the most downloads to run at a time, and the most of them from the
+	 * same peer, when querying
+	 */
+	private static int maxDownloads=4;
+	private static int maxDownloadsPerPeer=2;
+	
+	/**
+	 * the bounds of the chunk size and of the number of chunks in flight that
+	 * transmissions to each peer adapt within, and the pacing of the
+	 * transmissions to each peer that is connected to us
+	 */
+	private static int minChunkSize=4*1024;
+	private static int maxChunkSize=40*1024;
+	private static int maxInFlight=16;
+	private static final Map<Endpoint,FlowControl> flows = new ConcurrentHashMap<>();
+	
+	/**
+	 * true to compress the chunks of files that compress well, for the peers
+	 * that can decode them, and to ask for them compressed
+	 */
+	private static boolean compression=true;
+	private static final Set<Endpoint> deflating = ConcurrentHashMap.newKeySet();
+	
+	/**
+	 * ms between reports of the progress of the downloads
+	 */
+	private static final int progressInterval=2000;
+	
+	/**
+	 * false once the peer has stopped sharing, so that there is no more failing over
+	 */
+	private static volatile boolean sharing=true;
+	
+	/**
+	 * our "host:port" as told to the index server
+	 */
+	private static volatile String sharePeerport=null;
+	
+	/**
+	 * Number of the most downloaded files to ask the index server for with
+	 * each heartbeat, the most of them to keep mapped, and the largest file
+	 * to map.
+	 */
+	private static final int hotFileCount=16;
+	private static final int maxHotFiles=32;
+	private static final long maxHotFileBytes=64*1024*1024;
+	
+	/**
+	 * A hot file mapped into memory, with the size and modification time the
+	 * file had when it was mapped, to tell whether it has changed since.
+	 */
+	private static class HotFile {
+		final MappedByteBuffer buffer;
+		final long size;
+		final long modified;
+
+		HotFile(MappedByteBuffer buffer,long size,long modified) {
+			this.buffer=buffer;
+			this.size=size;
+			this.modified=modified;
+		}
+	}
+
+	/**
+	 * The hot files that we share, mapped and loaded into memory, least
+	 * recently hot or sent first. Whole files asked for with {@link #getFile}
+	 * or {@link #getFiles} are sent from here when they are mapped, without
+	 * waiting for the disk.
+	 */
+	private static final Map<String,HotFile> hotMapped=Collections.synchronizedMap(
+			new LinkedHashMap<String,HotFile>(16,0.75f,true) {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String,HotFile> eldest) {
+					// the mapping is released once the buffer is collected
+					return size()>maxHotFiles;
+				}
+			});
+
+	/**
+	 * Set while the hot files are being mapped, which is done on its own
+	 * thread since loading them can read a lot from the disk.
+	 */
+	private static final AtomicBoolean mappingHotFiles = new AtomicBoolean();
+
+	/**
+	 * Reads a mapped file.
+	 */
+	private static class BufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		BufferInputStream(ByteBuffer buffer) {
+			this.buffer=buffer;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b,0,1)==-1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b,int off,int len) throws IOException {
+			if(len==0) return 0;
+			if(!buffer.hasRemaining()) return -1;
+			int n=Math.min(len,buffer.remaining());
+			try {
+				buffer.get(b,off,n);
+			} catch (InternalError e) {
+				// the file was truncated under the mapping
+				throw new IOException("file changed while it was being sent");
+			}
+			return n;
+		}
+	}
+
+	/**
+	 * Open a file that we share, from memory if it is a hot file that is
+	 * mapped and has not changed since.
+	 * @param filename
+	 * @return the contents of the file
+	 * @throws IOException if the file can't be opened
+	 */
+	private static InputStream openShared(String filename) throws IOException {
+		Path path=sharedPath(filename);
+		HotFile hot=hotMapped.get(filename);
+		if(hot!=null) {
+			if(Files.size(path)==hot.size && Files.getLastModifiedTime(path).toMillis()==hot.modified) {
+				return new BufferInputStream(hot.buffer.duplicate());
+			}
+			hotMapped.remove(filename);
+		}
+		return new FileInputStream(path.toFile());
+	}
+	
+	/**
+	 * @param filename a filename that we share, as published to the index server
+	 * @return the file that is shared under the filename, under one of the
+	 * shared directories if it is named after one, else as it is named
+	 * @throws IOException if the filename is not valid here
+	 */
+	private static Path sharedPath(String filename) throws IOException {
+		CatalogWatcher watcher=catalogWatcher;
+		Path path=watcher!=null ? watcher.resolve(filename) : null;
+		if(path!=null) return path;
+		try {
+			return Paths.get(filename);
+		} catch (InvalidPathException e) {
+			throw new IOException("not a valid filename: "+filename);
+		}
+	}
+	
+	/**
+	 * @param filename a filename as published by the peer that has the file
+	 * @return where the file is downloaded to, under {@link #downloadDir}
+	 * @throws IOException if the filename is absolute or has a ".." in it,
+	 * which would put the file anywhere the peer chose
+	 */
+	private static Path downloadPath(String filename) throws IOException {
+		if(filename.isEmpty()) throw new IOException("the filename is empty");
+		for(String part : filename.split("[/\\\\]",-1)) {
+			if(part.equals("..")) throw new IOException("the filename leaves the download directory: "+filename);
+		}
+		Path path;
+		try {
+			path=Paths.get(filename);
+		} catch (InvalidPathException e) {
+			throw new IOException("not a valid filename: "+filename);
+		}
+		if(path.isAbsolute() || path.getRoot()!=null) {
+			throw new IOException("the filename is absolute: "+filename);
+		}
+		path=downloadDir.resolve(path).normalize();
+		if(!path.startsWith(downloadDir) || path.equals(downloadDir)) {
+			throw new IOException("the filename leaves the download directory: "+filename);
+		}
+		return path;
+	}
+	
+	/**
+	 * @param filename a filename as published by the peer that has the file
+	 * @return where to write the file to, as for {@link #downloadPath(String)},
+	 * having made the directories that it goes in
+	 * @throws IOException if the filename is not allowed, or the directories
+	 * can't be made
+	 */
+	private static Path downloadTarget(String filename) throws IOException {
+		Path path=downloadPath(filename);
+		Files.createDirectories(path.getParent());
+		return path;
+	}
+	
+	/**
+	 * Read up to the chunk size bytes of a file and send to client.
+	 * If we have not reached the end of the file then set a timeout
+	 * to read some more bytes, once the peer has acknowledged enough
+	 * of the chunks in flight. Since this is using the timer thread
+	 * we have the danger that the transmission will block and that
+	 * this will block all the other timeouts. We could either use another
+	 * thread for each file transfer or else allow for buffering of
+	 * outgoing messages at the endpoint, to overcome this issue.
+	 * @param in the file input stream
+	 * @param endpoint the endpoint to send the file
+	 */
+	public static void continueTransmittingFile(InputStream in,Endpoint endpoint) {
+		startTransmitting(in,endpoint,fileContents);
+	}
+	
+	/**
+	 * Start sending the stream in chunks, as for
+	 * {@link #continueTransmittingFile(InputStream, Endpoint)}, compressing
+	 * the chunks that compress well if the peer can decode them.
+	 * @param in the stream, which only returns a short read at its end
+	 * @param endpoint the endpoint to send the stream
+	 * @param event the event to emit the chunks with
+	 */
+	private static void startTransmitting(InputStream in,Endpoint endpoint,String event) {
+		continueTransmitting(in,endpoint,event,new byte[maxChunkSize],
+				new ChunkCodec(compression && deflating.contains(endpoint)));
+	}
+	
+	/**
+	 * Send the next chunk of the stream.
+	 * @param in the stream, which only returns a short read at its end
+	 * @param endpoint the endpoint to send the stream
+	 * @param event the event to emit the chunks with
+	 * @param buffer for reading the stream, one for each transmission since
+	 * transmissions to different peers are interleaved, of at least
+	 * {@link #maxChunkSize} bytes
+	 * @param codec for encoding the chunks, one for each transmission
+	 */
+	private static void continueTransmitting(InputStream in,Endpoint endpoint,String event,byte[] buffer,
+			ChunkCodec codec) {
+		FlowControl flow=flowOf(endpoint);
+		if(!flow.canSend(()->continueTransmitting(in,endpoint,event,buffer,codec))) {
+			Utils.getInstance().setTimeout(()->{
+				resume(flow.expired());
+			},flow.getTimeout());
+			return;
+		}
+		try {
+			int size=flow.getChunkSize();
+			int read = in.read(buffer,0,size);
+			if(read==-1) {
+				endpoint.emit(event, ""); // signals no more bytes in file
+				in.close();
+			} else {
+				String chunk=codec.encode(buffer,read);
+				endpoint.emit(event, chunk);
+				flow.sent(read,chunk.length());
+				if(read<size) {
+					endpoint.emit(event, "");
+					in.close();
+				} else {
+					Utils.getInstance().setTimeout(()->{
+						continueTransmitting(in,endpoint,event,buffer,codec);
+					},0);
+				}
+			}
+		} catch (IOException e) {
+			endpoint.emit(fileError,e.toString());
+		}
+	}
+	
+	/**
+	 * @param endpoint
+	 * @return the pacing of the transmissions to the peer
+	 */
+	private static FlowControl flowOf(Endpoint endpoint) {
+		return flows.computeIfAbsent(endpoint,(e)->new FlowControl(minChunkSize,maxChunkSize,maxInFlight,
+				Utils.chunkSize));
+	}
+	
+	/**
+	 * Carry on with the transmissions that were waiting for room to send.
+	 * @param transmissions
+	 */
+	private static void resume(List<Runnable> transmissions) {
+		for(Runnable transmission : transmissions) {
+			Utils.getInstance().setTimeout(()->{
+				transmission.run();
+			},0);
+		}
+	}
+	
+	/**
+	 * Tell the peer which compressed chunks we can decode, before asking it
+	 * for files, see {@link #acceptEncodings}.
+	 * @param endpoint
+	 */
+	private static void offerEncodings(Endpoint endpoint) {
+		if(compression) endpoint.emit(acceptEncodings, ChunkCodec.deflate);
+	}
+	
+	/**
+	 * Acknowledge a chunk of a transmission from the peer, see {@link #chunkAck}.
+	 * @param endpoint
+	 * @param chunk
+	 */
+	private static void ack(Endpoint endpoint,String chunk) {
+		if(chunk.length()>0) endpoint.emit(chunkAck,"");
+	}
+	
+	/**
+	 * Test for the file existence and then start transmitting it, reporting
+	 * it as served. Emit {@link #fileError} if file can't be accessed.
+	 * @param filename
+	 * @param endpoint
+	 */
+	public static void startTransmittingFile(String filename,Endpoint endpoint) {
+		try {
+			InputStream in = openShared(filename);
+			reportServed(filename);
+			continueTransmittingFile(in,endpoint);
+		} catch (IOException e) {
+			endpoint.emit(fileError,e.toString());
+		}
+	}
+	
+	/**
+	 * Start transmitting the files back-to-back as one {@link ArchiveStream},
+	 * reporting each file as served as it is opened. A file that is not in the
+	 * catalog or can't be accessed is sent as an error in the stream, so that
+	 * the rest are still sent.
+	 * @param catalog the files that we share
+	 * @param filenames
+	 * @param endpoint
+	 */
+	public static void startTransmittingFiles(ShareCatalog catalog,List<String> filenames,Endpoint endpoint) {
+		startTransmitting(new ArchiveStream(filenames,(filename)->{
+			if(!catalog.contains(filename)) throw new IOException("file is not shared");
+			return sharedPath(filename);
+		},(filename)->{
+			InputStream in=openShared(filename);
+			reportServed(filename);
+			return in;
+		}),endpoint,filesContents);
+	}
+	
+	/**
+	 * Start transmitting the changes to a file, from an older copy with the
+	 * given signatures, as a {@link DeltaStream}, reporting it as served. Emit
+	 * {@link #fileError} if the file can't be accessed.
+	 * @param filename
+	 * @param signatures the signatures of the blocks of the older copy
+	 * @param endpoint
+	 */
+	public static void startTransmittingDelta(String filename,BlockSignatures signatures,Endpoint endpoint) {
+		try {
+			DeltaStream delta=new DeltaStream(sharedPath(filename),signatures);
+			reportServed(filename);
+			startTransmitting(delta,endpoint,fileDelta);
+		} catch (IOException e) {
+			endpoint.emit(fileError,e.toString());
+		}
+	}
+	
+	/**
+	 * Emit the changes that bring the index server up to date with our catalog,
+	 * as batches of at most {@link Utils#batchSize} bytes, all sent straight away.
+	 * @param catalog our catalog
+	 * @param peerport our "host:port"
+	 * @param knownCatalog the catalog id that the index server has for us
+	 * @param knownVersion the version of the catalog that the index server has for us
+	 * @param owned the filenames that the index server holds, or null for all of them
+	 * @param endpoint the endpoint to the index server
+	 */
+	public static void emitIndexDelta(ShareCatalog catalog,String peerport,String knownCatalog,
+			long knownVersion,Predicate<String> owned,Endpoint endpoint) {
+		CatalogDelta delta=catalog.deltaSince(peerport,knownCatalog,knownVersion);
+		if(owned!=null) delta=delta.filter(owned);
+		List<CatalogDelta> batches=delta.toBatches(Utils.batchSize);
+		log.info("Sending "+delta.size()+" index changes in "+batches.size()+
+				" batches, from version "+delta.getBase()+" to "+delta.getVersion());
+		for(CatalogDelta batch : batches) {
+			endpoint.emit(IndexServer.indexUpdateBatch, batch.toJson());
+		}
+	}
+	
+	/**
+	 * Renew our lease with the index server, if the session that it was granted
+	 * on is still up, and ask for the most downloaded files.
+	 * @param endpoint the endpoint to the index server that granted the lease
+	 */
+	private static void sendHeartbeat(Endpoint endpoint) {
+		if(indexEndpoints.contains(endpoint)) {
+			endpoint.emit(IndexServer.peerHeartbeat, sharePeerport);
+			endpoint.emit(IndexServer.hotFiles, Integer.toString(hotFileCount));
+		}
+	}
+	
+	/**
+	 * Map and load the hot files that we share, so that they are in memory
+	 * when they are asked for. Called on its own thread.
+	 * @param catalog our catalog
+	 * @param files the most downloaded filenames, separated by newlines
+	 */
+	private static void mapHotFiles(ShareCatalog catalog,String files) {
+		for(String filename : files.split("\n")) {
+			if(filename.isEmpty() || !catalog.contains(filename)) continue;
+			if(hotMapped.get(filename)!=null) continue; // already mapped, now the most recent
+			try(FileChannel channel=FileChannel.open(sharedPath(filename),StandardOpenOption.READ)) {
+				long modified=Files.getLastModifiedTime(sharedPath(filename)).toMillis();
+				long size=channel.size();
+				if(size>maxHotFileBytes) continue;
+				MappedByteBuffer mapped=channel.map(FileChannel.MapMode.READ_ONLY,0,size);
+				mapped.load();
+				hotMapped.put(filename,new HotFile(mapped,size,modified));
+				log.info("Mapped hot file: "+filename);
+			} catch (IOException e) {
+				log.warning("Could not map hot file: "+filename);
+			}
+		}
+	}
+	
+	/**
+	 * Tell the index servers that we are sending one of our files, so they
+	 * can count its downloads.
+	 * @param filename
+	 */
+	private static void reportServed(String filename) {
+		for(Endpoint endpoint : indexEndpoints) {
+			endpoint.emit(IndexServer.fileServed, filename);
+		}
+	}
+	
+	/**
+	 * Open a client connection to the index server, or to every shard of the
+	 * index, and send the changes to our catalog that the index server does not
+	 * have yet. Each shard is only sent the filenames that it owns.
+	 * @see #uploadFileList(ShareCatalog, PeerManager, String, String, int, Predicate)
+	 * @param catalog
+	 * @param peerManager
+	 * @param peerport
+	 * @throws InterruptedException 
+	 * @throws UnknownHostException 
+	 */
+	public static void uploadFileList(ShareCatalog catalog,PeerManager peerManager,
+			String peerport) throws UnknownHostException, InterruptedException {
+		if(indexServers!=null) {
+			uploadWithFailover(catalog,peerManager,peerport);
+			return;
+		}
+		if(shards==null) {
+			uploadFileList(catalog,peerManager,peerport,host,indexServerPort,null);
+			return;
+		}
+		for(String shard : shards.getShards()) {
+			uploadFileList(catalog,peerManager,peerport,shardHost(shard),shardPort(shard),
+					(filename)->shard.equals(shards.owner(filename)));
+		}
+	}
+	
+	/**
+	 * Open a client connection to an index server and send the changes to our
+	 * catalog that the index server does not have yet. The connection is kept
+	 * open, to renew our lease with the index server before it expires and to
+	 * send later changes using {@link #pushCatalogChanges()}. If the connection
+	 * is reestablished then only the changes since the version the index server
+	 * holds are sent.
+	 * @param catalog
+	 * @param peerManager
+	 * @param peerport
+	 * @param indexHost
+	 * @param indexPort
+	 * @param owned the filenames that the index server holds, or null for all of them
+	 * @return the client manager of the session with the index server
+	 * @throws InterruptedException 
+	 * @throws UnknownHostException 
+	 */
+	public static ClientManager uploadFileList(ShareCatalog catalog,PeerManager peerManager,
+			String peerport,String indexHost,int indexPort,Predicate<String> owned)
+					throws UnknownHostException, InterruptedException {
+		// connect to the index server and tell it the files we are sharing
+        ClientManager clientManager = connectIndexServer(peerManager,indexHost,indexPort);
+        clientManager.on(PeerManager.peerStarted, (args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			System.out.println("Connected to index server: "+endpoint.getOtherEndpointId());
+			// every batch of a delta is rejected, so only one retry is pending at a time
+			AtomicBoolean retryPending = new AtomicBoolean();
+			long[] retryDelay = new long[] {updateRetrySeconds*1000};
+			endpoint.on(IndexServer.indexUpdateError, (args2)->{
+				String update = (String) args2[0];
+				System.out.println("Index server did not accept the update: "+update);
+				if(indexServers!=null && retryPending.compareAndSet(false,true)) {
+					// a backup that has not yet taken over, try again later
+					long delay=retryDelay[0];
+					retryDelay[0]=Math.min(maxRetrySeconds*1000,delay*2);
+					Utils.getInstance().setTimeout(()->{
+						retryPending.set(false);
+						if(indexEndpoints.contains(endpoint)) {
+							endpoint.emit(IndexServer.indexSync, peerport);
+						}
+					}, delay);
+				}
+			}).on(IndexServer.indexVersion, (args2)->{
+				Document doc = Document.parse((String) args2[0]);
+				String knownCatalog = doc.getString("catalog");
+				long knownVersion = doc.getLong("version");
+				if(catalog.getCatalogId().equals(knownCatalog) && knownVersion==catalog.getVersion()) {
+					retryDelay[0]=updateRetrySeconds*1000;
+					System.out.println("Index server has version "+knownVersion+" of our file list.");
+					// no more index updates to do, until the catalog changes
+				} else {
+					System.out.println("Sending file list changes to the index server.");
+					emitIndexDelta(catalog,peerport,knownCatalog,knownVersion,owned,endpoint);
+				}
+			}).on(IndexServer.hotFilesResponse, (args2)->{
+				String files=(String) args2[0];
+				// the next heartbeat asks again, if the last list is still being mapped
+				if(!mappingHotFiles.compareAndSet(false,true)) return;
+				Thread mapper = new Thread(()->{
+					try {
+						mapHotFiles(catalog,files);
+					} finally {
+						mappingHotFiles.set(false);
+					}
+				},"HotFileMapper");
+				mapper.setDaemon(true);
+				mapper.start();
+			}).on(IndexServer.leaseGranted, (args2)->{
+				long leaseTime = Long.parseLong((String) args2[0]);
+				// renew well before the lease expires, in case a heartbeat is delayed
+				Utils.getInstance().setTimeout(()->{
+					sendHeartbeat(endpoint);
+				}, leaseTime/3);
+			});
+			System.out.println("Telling the index server our peer:port="+peerport);
+			endpoint.emit(IndexServer.peerUpdate, peerport);
+			endpoint.emit(IndexServer.indexSync, peerport);
+			sharePeerport=peerport;
+			indexEndpoints.add(endpoint);
+		}).on(PeerManager.peerStopped, (args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			indexEndpoints.remove(endpoint);
+			System.out.println("Disconnected from the index server: "+endpoint.getOtherEndpointId());
+		}).on(PeerManager.peerError, (args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			indexEndpoints.remove(endpoint);
+			System.out.println("There was an error communicating with the index server: "
+					+endpoint.getOtherEndpointId());
+		});
+        clientManager.start();
+        return clientManager;
+	}
+	
+	/**
+	 * Keep a session open with the first of the index servers that can be
+	 * reached, failing over to the next one when it can no longer be reached.
+	 * The index server that is failed over to is a backup that holds the same
+	 * index, so only the changes that it does not have yet are sent.
+	 * @param catalog
+	 * @param peerManager
+	 * @param peerport
+	 */
+	private static void uploadWithFailover(ShareCatalog catalog,PeerManager peerManager,
+			String peerport) {
+		Thread failover = new Thread(()->{
+			int next=0;
+			while(sharing) {
+				String server=indexServers.get(next);
+				try {
+					uploadFileList(catalog,peerManager,peerport,shardHost(server),shardPort(server),null).join();
+				} catch (UnknownHostException e) {
+					System.out.println("The index server host could not be found: "+server);
+				} catch (InterruptedException e) {
+					System.out.println("Interrupted while trying to send updates to the index server");
+					return;
+				}
+				next=(next+1)%indexServers.size();
+				if(sharing) System.out.println("Failing over to index server: "+indexServers.get(next));
+			}
+		});
+		failover.setDaemon(true);
+		failover.start();
+	}
+	
+	/**
+	 * Create a client manager for a session with an index server, that gives up
+	 * soon when failing over between index servers.
+	 * @param peerManager
+	 * @param indexHost
+	 * @param indexPort
+	 * @return the client manager, not yet started
+	 * @throws UnknownHostException
+	 * @throws InterruptedException
+	 */
+	private static ClientManager connectIndexServer(PeerManager peerManager,String indexHost,
+			int indexPort) throws UnknownHostException, InterruptedException {
+		ClientManager clientManager = peerManager.connect(indexPort, indexHost);
+		if(indexServers!=null) clientManager.setMaxRetries(failoverRetries);
+		return clientManager;
+	}
+	
+	/**
+	 * Called when the catalog has changed, to start sending the changes
+	 * over the sessions with the index servers. If a session is not up
+	 * then the changes are sent when it is reestablished.
+	 */
+	private static void pushCatalogChanges() {
+		for(Endpoint endpoint : indexEndpoints) {
+			// the index server replies with the version it has, and we
+			// reply to that with the changes
+			endpoint.emit(IndexServer.indexSync, sharePeerport);
+		}
+	}
+	
+	/**
+	 * @param shard "host:port"
+	 * @return the host of the shard
+	 */
+	private static String shardHost(String shard) {
+		return shard.substring(0,shard.lastIndexOf(':'));
+	}
+	
+	/**
+	 * @param shard "host:port"
+	 * @return the port of the shard
+	 * @throws NumberFormatException if the port is not a number
+	 */
+	private static int shardPort(String shard) {
+		return Integer.parseInt(shard.substring(shard.lastIndexOf(':')+1));
+	}
+	
+	/**
+	 * Print the transfer metrics of the transmissions to a peer that has
+	 * disconnected, with the chunk size and chunks in flight last chosen.
+	 * @param endpoint
+	 */
+	private static void reportFlow(Endpoint endpoint) {
+		deflating.remove(endpoint);
+		FlowControl flow=flows.remove(endpoint);
+		if(flow!=null) System.out.println("Sent to peer "+endpoint.getOtherEndpointId()+": "+flow.getStats());
+	}
+	
+	/**
+	 * Share files by starting up a server manager and then sending updates to
+	 * the index server to say which files are being shared. Files under the
+	 * shared directories are watched for changes, and the session with the
+	 * index server is kept open to send them.
+	 * @param files list of file names to share
+	 * @param dirs list of directories to share
+	 * @throws InterruptedException 
+	 * @throws IOException 
+	 */
+	private static void shareFiles(String[] files,String[] dirs) throws InterruptedException, IOException {
+		ShareCatalog catalog=new ShareCatalog();
+		for(String file : files) {
+			catalog.add(file);
+		}
+		CatalogWatcher watcher=null;
+		if(dirs.length>0) {
+			List<Path> paths=new ArrayList<>();
+			for(String dir : dirs) {
+				paths.add(Paths.get(dir));
+			}
+			watcher=new CatalogWatcher(catalog,paths,()->{
+				pushCatalogChanges();
+			});
+			catalogWatcher=watcher;
+			System.out.println("Scanning shared directories.");
+			watcher.scan();
+			System.out.println("Sharing "+catalog.size()+" files, watching for changes.");
+			watcher.start();
+		}
+        PeerManager peerManager = new PeerManager(peerPort);
+        peerManager.on(PeerManager.peerStarted, (args)->{
+        	Endpoint endpoint = (Endpoint)args[0];
+        	System.out.println("Connection from peer: "+endpoint.getOtherEndpointId());
+        	endpoint.on(chunkAck,(args2)->{
+        		resume(flowOf(endpoint).acked());
+        	}).on(acceptEncodings,(args2)->{
+        		if(Arrays.asList(((String) args2[0]).split(",")).contains(ChunkCodec.deflate)) {
+        			deflating.add(endpoint);
+        		}
+        	}).on(getFile,(args2)->{
+        		String filename = (String) args2[0];
+        		System.out.println("Peer is requesting file: "+filename);
+        		if(!catalog.contains(filename)) {
+        			endpoint.emit(fileError,"file is not shared: "+filename);
+        			return;
+        		}
+        		startTransmittingFile(filename,endpoint);
+        	}).on(getFiles,(args2)->{
+        		List<String> filenames = new ArrayList<>();
+        		for(String filename : ((String) args2[0]).split("\n")) {
+        			if(filename.isEmpty()) continue;
+        			filenames.add(filename);
+        		}
+        		System.out.println("Peer is requesting "+filenames.size()+" files");
+        		startTransmittingFiles(catalog,filenames,endpoint);
+        	});
+        	endpoint.on(getFileChunks,(args2)->{
+        		String filename = (String) args2[0];
+        		System.out.println("Peer is requesting the chunks of file: "+filename);
+        		if(!catalog.contains(filename)) {
+        			endpoint.emit(fileError,"file is not shared: "+filename);
+        			return;
+        		}
+        		try {
+        			List<ChunkStore.Chunk> recipe=chunkStore.add(sharedPath(filename));
+        			reportServed(filename);
+        			startTransmitting(new ByteArrayInputStream(ChunkStore.encode(recipe)),endpoint,fileRecipe);
+        		} catch (IOException | RuntimeException e) {
+        			endpoint.emit(fileError,e.toString());
+        		}
+        	}).on(getChunks,(args2)->{
+        		List<String> hashes;
+        		try {
+        			hashes=ChunkStore.decodeHashes(Base64.decodeBase64((String) args2[0]));
+        		} catch (IllegalArgumentException e) {
+        			endpoint.emit(fileError,e.getMessage());
+        			return;
+        		}
+        		startTransmitting(new ChunkStream(chunkStore,hashes),endpoint,chunkContents);
+        	});
+        	// the file and block size of the changes being asked for, while the signatures arrive
+        	String[] deltaFile = new String[1];
+        	int[] deltaBlockSize = new int[1];
+        	ByteArrayOutputStream signatures = new ByteArrayOutputStream();
+        	endpoint.on(getFileDelta,(args2)->{
+        		Document doc = Document.parse((String) args2[0]);
+        		deltaFile[0]=doc.getString("filename");
+        		deltaBlockSize[0]=doc.get("blockSize") instanceof Long ? (int)(long) doc.get("blockSize") : 0;
+        		signatures.reset();
+        		if(deltaFile[0]==null) endpoint.emit(fileError,"bad request: "+args2[0]);
+        	}).on(fileSignatures,(args2)->{
+        		String chunk = (String) args2[0];
+        		if(deltaFile[0]==null) return;
+        		if(chunk.length()>0) {
+        			byte[] bytes=Base64.decodeBase64(chunk);
+        			if(signatures.size()+bytes.length>maxSignatureBytes) {
+        				deltaFile[0]=null;
+        				endpoint.emit(fileError,"too many block signatures");
+        				return;
+        			}
+        			signatures.write(bytes,0,bytes.length);
+        			return;
+        		}
+        		String filename=deltaFile[0];
+        		deltaFile[0]=null;
+        		System.out.println("Peer is requesting the changes to file: "+filename);
+        		if(!catalog.contains(filename)) {
+        			endpoint.emit(fileError,"file is not shared: "+filename);
+        			return;
+        		}
+        		try {
+        			BlockSignatures older=BlockSignatures.decode(deltaBlockSize[0],signatures.toByteArray());
+        			startTransmittingDelta(filename,older,endpoint);
+        		} catch (IllegalArgumentException e) {
+        			endpoint.emit(fileError,e.getMessage());
+        		}
+        	});
+        }).on(PeerManager.peerStopped,(args)->{
+        	Endpoint endpoint = (Endpoint)args[0];
+        	System.out.println("Disconnected from peer: "+endpoint.getOtherEndpointId());
+        	reportFlow(endpoint);
+        }).on(PeerManager.peerError,(args)->{
+        	Endpoint endpoint = (Endpoint)args[0];
+        	System.out.println("There was an error communicating with the peer: "
+        			+endpoint.getOtherEndpointId());
+        	reportFlow(endpoint);
+        }).on(PeerManager.peerServerManager, (args)->{
+        	ServerManager serverManager = (ServerManager)args[0];
+        	serverManager.on(IOThread.ioThread, (args2)->{
+	        	String peerport = (String) args2[0];
+	        	try {
+					uploadFileList(catalog,peerManager,peerport);
+				} catch (UnknownHostException e) {
+					System.out.println("The index server host could not be found: "+host);
+				} catch (InterruptedException e) {
+					System.out.println("Interrupted while trying to send updates to the index server");
+				}
+	        });
+        });
+        peerManager.start();
+        
+        // just keep sharing until the user presses "return"
+        BufferedReader input= new BufferedReader(new InputStreamReader(System.in));
+        System.out.println("Press RETURN to stop sharing");
+        input.readLine();
+        System.out.println("RETURN pressed, stopping the peer");
+        sharing=false;
+        if(watcher!=null) watcher.shutdown();
+        peerManager.shutdown();
+	}
+	
+	/**
+	 * Process a query response from the index server and download the file
+	 * @param queryResponse
+	 * @param download the download that the file is part of, to report to
+	 * @return the client manager of the connection to the peer, or null if it
+	 * could not be started
+	 * @throws InterruptedException 
+	 */
+	private static ClientManager getFileFromPeer(PeerManager peerManager,String response,
+			DownloadManager.Download download) throws InterruptedException {
+		// Create a independent client manager (thread) for each download
+		// response has the format: PeerIP:PeerPort:filename
+		String[] parts=response.split(":",3);
+		ClientManager clientManager;
+		try {
+			clientManager = peerManager.connect(Integer.valueOf(parts[1]),parts[0]);
+		} catch (NumberFormatException e) {
+			System.out.println("Response from index server is bad, port is not a number: "+parts[1]);
+			return null;
+		} catch (UnknownHostException e) {
+			System.out.println("Could not find the peer IP address: "+parts[0]);
+			return null;
+		}
+		// with an older copy of the file we only ask for the changes, and
+		// don't touch the older copy until they have been applied; it is
+		// signed here rather than on the endpoint thread once connected
+		BlockSignatures signatures=null;
+		if(hasOlderCopy(parts[2])) {
+			try {
+				signatures=BlockSignatures.of(downloadPath(parts[2]));
+			} catch (IOException e) {
+				System.out.println("Could not read the older copy of "+parts[2]+": "+e.getMessage());
+			}
+		}
+		boolean delta=signatures!=null;
+		BlockSignatures signed=signatures;
+		OutputStream[] out = new OutputStream[1];
+		DeltaReader[] reader = new DeltaReader[1];
+		if(!delta) {
+			try {
+				out[0] = new FileOutputStream(downloadTarget(parts[2]).toFile());
+			} catch (IOException e) {
+				System.out.println("Could not create file: "+parts[2]+": "+e.getMessage());
+				return null;
+			}
+		}
+		clientManager.on(PeerManager.peerStarted, (args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			offerEncodings(endpoint);
+			endpoint.on(fileContents,(args2)->{
+				String chunk = (String) args2[0];
+				ack(endpoint,chunk);
+				if(out[0]==null) return;
+				if(chunk.length()==0) {
+					// file download complete
+					try {
+						out[0].close();
+						download.fileDone(parts[2],true);
+					} catch (IOException e) {
+						System.out.println("Possible error with downloaded file: "+parts[2]);
+					}
+					clientManager.shutdown();
+				} else {
+					try {
+						byte[] bytes=ChunkCodec.decode(chunk);
+						out[0].write(bytes);
+						download.received(bytes.length);
+					} catch (IOException e) {
+						System.out.println("Error writing file chunk: "+e.getMessage());
+					}
+				}
+			}).on(fileDelta,(args2)->{
+				String chunk = (String) args2[0];
+				ack(endpoint,chunk);
+				if(chunk.length()==0) {
+					if(reader[0]!=null && reader[0].finish()) {
+						System.out.println("Updated file "+parts[2]+" with its changes");
+						download.fileDone(parts[2],true);
+						clientManager.shutdown();
+					} else {
+						System.out.println("Could not apply the changes to "+parts[2]+", getting the whole file");
+						getWholeFile(parts[2],out,endpoint,clientManager);
+					}
+					reader[0]=null;
+				} else if(reader[0]!=null) {
+					try {
+						byte[] bytes=ChunkCodec.decode(chunk);
+						download.received(bytes.length);
+						reader[0].read(bytes);
+					} catch (IOException e) {
+						System.out.println("Error applying the changes to "+parts[2]+": "+e.getMessage());
+						reader[0].finish();
+						reader[0]=null; // the rest of the changes are ignored
+					}
+				}
+			}).on(fileError, (args2)->{
+				if(reader[0]!=null) {
+					// the peer could not send the changes, so ask for the whole file
+					reader[0].finish();
+					reader[0]=null;
+					getWholeFile(parts[2],out,endpoint,clientManager);
+					return;
+				}
+				System.out.println("Error downloading file");
+				try {
+					if(out[0]!=null) out[0].close();
+				} catch (IOException e) {
+					// the download failed anyway
+				}
+				clientManager.shutdown();
+			});
+			if(delta) {
+				reader[0]=requestChanges(parts[2],signed,endpoint);
+				if(reader[0]!=null) return;
+				getWholeFile(parts[2],out,endpoint,clientManager);
+			} else {
+				System.out.println("Getting file "+parts[2]+" from "+endpoint.getOtherEndpointId());
+				endpoint.emit(getFile, parts[2]);
+			}
+		}).on(PeerManager.peerStopped, (args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			System.out.println("Disconnected from peer: "+endpoint.getOtherEndpointId());
+		}).on(PeerManager.peerError, (args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			System.out.println("There was error while communication with peer: "
+					+endpoint.getOtherEndpointId());
+		});
+		clientManager.start();
+		return clientManager;
+	}
+	
+	/**
+	 * @param filename
+	 * @return true if we have an older copy of the file that is worth
+	 * updating with its changes rather than getting the whole file
+	 */
+	private static boolean hasOlderCopy(String filename) {
+		try {
+			return deltaSync && Files.isRegularFile(downloadPath(filename)) &&
+					Files.size(downloadPath(filename))>=minDeltaBytes;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Ask for the changes to a file that we have an older copy of, by sending
+	 * the signatures of the blocks of the older copy.
+	 * @param filename
+	 * @param signatures of the blocks of the older copy
+	 * @param endpoint the endpoint to the peer that has the file
+	 * @return the reader to apply the changes with, or null if the older copy
+	 * could not be read
+	 */
+	private static DeltaReader requestChanges(String filename,BlockSignatures signatures,Endpoint endpoint) {
+		DeltaReader reader;
+		try {
+			reader=new DeltaReader(downloadPath(filename),signatures.blockSize);
+		} catch (IOException e) {
+			System.out.println("Could not read the older copy of "+filename+": "+e.getMessage());
+			return null;
+		}
+		System.out.println("Getting the changes to file "+filename+" from "+endpoint.getOtherEndpointId());
+		Document doc = new Document();
+		doc.append("filename",filename);
+		doc.append("blockSize",signatures.blockSize);
+		endpoint.emit(getFileDelta, doc.toJson());
+		byte[] bytes=signatures.encode();
+		for(int i=0;i<bytes.length;i+=Utils.chunkSize) {
+			endpoint.emit(fileSignatures, new String(Base64.encodeBase64(
+					Arrays.copyOfRange(bytes,i,Math.min(bytes.length,i+Utils.chunkSize))),
+					StandardCharsets.US_ASCII));
+		}
+		endpoint.emit(fileSignatures, "");
+		return reader;
+	}
+	
+	/**
+	 * Ask for the whole of a file, after its changes could not be applied.
+	 * @param filename
+	 * @param out to set to the output stream of the file
+	 * @param endpoint the endpoint to the peer that has the file
+	 * @param clientManager
+	 */
+	private static void getWholeFile(String filename,OutputStream[] out,Endpoint endpoint,
+			ClientManager clientManager) {
+		try {
+			out[0] = new FileOutputStream(downloadTarget(filename).toFile());
+		} catch (IOException e) {
+			System.out.println("Could not create file: "+filename+": "+e.getMessage());
+			clientManager.shutdown();
+			return;
+		}
+		System.out.println("Getting file "+filename+" from "+endpoint.getOtherEndpointId());
+		endpoint.emit(getFile, filename);
+	}
+	
+	/**
+	 * @param filenames
+	 * @return the filenames as {@link #getFiles} requests, separated by
+	 * newlines, of at most {@link Utils#batchSize} bytes each once encoded
+	 */
+	private static List<String> fileRequests(List<String> filenames) {
+		List<String> requests = new ArrayList<>();
+		StringBuilder request = new StringBuilder();
+		int size=0;
+		for(String filename : filenames) {
+			// the newline is escaped to 2 bytes
+			int filenameSize=Utils.encodedLength(filename)+2;
+			if(request.length()>0 && size+filenameSize>Utils.batchSize) {
+				requests.add(request.toString());
+				request.setLength(0);
+				size=0;
+			}
+			if(request.length()>0) request.append('\n');
+			request.append(filename);
+			size+=filenameSize;
+		}
+		if(request.length()>0) requests.add(request.toString());
+		return requests;
+	}
+	
+	/**
+	 * Download many files from the one peer over a single connection, asking
+	 * for them with {@link #getFiles} a batch at a time, instead of connecting
+	 * to the peer once for each file. Each file is checked against its hash as
+	 * it is received, and deleted if it was corrupted.
+	 * @param peerManager
+	 * @param download the download to report to
+	 * @param filenames the files to download from the peer of the download
+	 * @return the client manager of the connection to the peer, or null if it
+	 * could not be started
+	 */
+	private static ClientManager getFilesFromPeer(PeerManager peerManager,DownloadManager.Download download,
+			List<String> filenames) {
+		String peer=download.peer;
+		ClientManager clientManager=connectPeer(peerManager,peer);
+		if(clientManager==null) return null;
+		List<String> requests=fileRequests(filenames);
+		int[] next = new int[] {0};
+		ArchiveReader[] reader = new ArchiveReader[1];
+		Set<String> expected = new HashSet<>();
+		clientManager.on(PeerManager.peerStarted, (args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			offerEncodings(endpoint);
+			Runnable request = ()->{
+				if(next[0]==requests.size()) {
+					clientManager.shutdown();
+					return;
+				}
+				String files=requests.get(next[0]++);
+				expected.clear();
+				expected.addAll(Arrays.asList(files.split("\n")));
+				reader[0]=new ArchiveReader(expected,(filename,error)->{
+					download.fileDone(filename,error==null);
+					if(error==null) {
+						System.out.println("Received file "+filename);
+					} else {
+						System.out.println("Error downloading file "+filename+": "+error);
+					}
+				},FileSharingPeer::downloadTarget);
+				System.out.println("Getting "+expected.size()+" files from "+endpoint.getOtherEndpointId());
+				endpoint.emit(getFiles, files);
+			};
+			endpoint.on(filesContents,(args2)->{
+				String chunk = (String) args2[0];
+				ack(endpoint,chunk);
+				if(chunk.length()==0) {
+					// all of the files of the request have been sent
+					reader[0].close();
+					if(!reader[0].isComplete()) System.out.println("The files from "+peer+" were cut short");
+					for(String filename : expected) {
+						System.out.println("Peer did not send file: "+filename);
+					}
+					request.run();
+				} else {
+					try {
+						byte[] bytes=ChunkCodec.decode(chunk);
+						download.received(bytes.length);
+						reader[0].read(bytes);
+					} catch (IOException e) {
+						System.out.println("Error receiving files from "+peer+": "+e.getMessage());
+						reader[0].close();
+						clientManager.shutdown();
+					}
+				}
+			}).on(fileError, (args2)->{
+				System.out.println("Error downloading files from "+peer);
+				reader[0].close();
+				clientManager.shutdown();
+			});
+			request.run();
+		}).on(PeerManager.peerStopped, (args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			System.out.println("Disconnected from peer: "+endpoint.getOtherEndpointId());
+			// a file the connection dropped part way through is not left behind
+			if(reader[0]!=null) reader[0].close();
+		}).on(PeerManager.peerError, (args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			System.out.println("There was error while communication with peer: "
+					+endpoint.getOtherEndpointId());
+		});
+		clientManager.start();
+		return clientManager;
+	}
+	
+	/**
+	 * @param peerManager
+	 * @param peer "PeerIP:PeerPort"
+	 * @return the client manager for a connection to the peer, not started
+	 * yet, or null if the peer is not valid
+	 */
+	private static ClientManager connectPeer(PeerManager peerManager,String peer) {
+		String[] parts=peer.split(":",2);
+		try {
+			return peerManager.connect(Integer.valueOf(parts[1]),parts[0]);
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			System.out.println("Response from index server is bad, no peer port in: "+peer);
+		} catch (UnknownHostException e) {
+			System.out.println("Could not find the peer IP address: "+parts[0]);
+		} catch (InterruptedException e) {
+			System.out.println("interrupted while trying to connect to: "+peer);
+		}
+		return null;
+	}
+	
+	/**
+	 * @param hashes
+	 * @return the hashes as {@link #getChunks} requests of at most
+	 * {@link #maxChunkRequest} hashes each
+	 */
+	private static List<String> chunkRequests(List<String> hashes) {
+		List<String> requests = new ArrayList<>();
+		for(int i=0;i<hashes.size();i+=maxChunkRequest) {
+			requests.add(new String(Base64.encodeBase64(ChunkStore.encodeHashes(
+					hashes.subList(i,Math.min(hashes.size(),i+maxChunkRequest)))),StandardCharsets.US_ASCII));
+		}
+		return requests;
+	}
+	
+	/**
+	 * Download files from the one peer as chunks, one file after the other
+	 * over a single connection. For each file the peer sends the list of its
+	 * chunks, and only the chunks that the {@link #chunkStore} does not hold
+	 * are asked for, the others are copied from the files that hold them.
+	 * Each chunk is checked against its hash as it is received.
+	 * @param peerManager
+	 * @param download the download to report to
+	 * @param filenames the files to download from the peer of the download
+	 * @return the client manager of the connection to the peer, or null if it
+	 * could not be started
+	 */
+	private static ClientManager getFilesChunked(PeerManager peerManager,DownloadManager.Download download,
+			List<String> filenames) {
+		ClientManager clientManager=connectPeer(peerManager,download.peer);
+		if(clientManager==null) return null;
+		int[] next = new int[] {0};
+		String[] current = new String[1];
+		ByteArrayOutputStream recipeBytes = new ByteArrayOutputStream();
+		String[] recipeBad = new String[1];
+		ChunkAssembler[] assembler = new ChunkAssembler[1];
+		List<String> requests = new ArrayList<>();
+		// the file being got whole, when its chunks could not be assembled
+		OutputStream[] whole = new OutputStream[1];
+		boolean[] wholeFailed = new boolean[1];
+		clientManager.on(PeerManager.peerStarted, (args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			offerEncodings(endpoint);
+			Runnable[] nextFile = new Runnable[1];
+			Runnable failFile = ()->{
+				if(assembler[0]!=null) assembler[0].finish();
+				assembler[0]=null;
+				requests.clear();
+				download.fileDone(current[0],false);
+			};
+			Runnable getWhole = ()->{
+				if(assembler[0]!=null) assembler[0].finish();
+				assembler[0]=null;
+				requests.clear();
+				try {
+					whole[0] = new FileOutputStream(downloadTarget(current[0]).toFile());
+				} catch (IOException e) {
+					System.out.println("Could not create file: "+current[0]+": "+e.getMessage());
+					download.fileDone(current[0],false);
+					nextFile[0].run();
+					return;
+				}
+				wholeFailed[0]=false;
+				System.out.println("Getting file "+current[0]+" whole from "+endpoint.getOtherEndpointId());
+				endpoint.emit(getFile, current[0]);
+			};
+			Runnable nextChunks = ()->{
+				if(!requests.isEmpty()) {
+					endpoint.emit(getChunks, requests.remove(0));
+					return;
+				}
+				if(assembler[0].finish()) {
+					System.out.println("Assembled file "+current[0]+", "+assembler[0].getHeld()+
+							" chunks were already held");
+					download.fileDone(current[0],true);
+					assembler[0]=null;
+					nextFile[0].run();
+				} else {
+					System.out.println("Could not assemble file "+current[0]);
+					assembler[0]=null;
+					getWhole.run();
+				}
+			};
+			nextFile[0]=()->{
+				if(next[0]==filenames.size()) {
+					clientManager.shutdown();
+					return;
+				}
+				current[0]=filenames.get(next[0]++);
+				recipeBytes.reset();
+				recipeBad[0]=null;
+				System.out.println("Getting the chunks of file "+current[0]+" from "+endpoint.getOtherEndpointId());
+				endpoint.emit(getFileChunks, current[0]);
+			};
+			endpoint.on(fileRecipe,(args2)->{
+				String chunk = (String) args2[0];
+				ack(endpoint,chunk);
+				if(chunk.length()>0) {
+					try {
+						byte[] bytes=ChunkCodec.decode(chunk);
+						download.received(bytes.length);
+						recipeBytes.write(bytes,0,bytes.length);
+					} catch (IOException e) {
+						recipeBad[0]=e.getMessage();
+					}
+					return;
+				}
+				List<ChunkStore.Chunk> recipe;
+				try {
+					if(recipeBad[0]!=null) throw new IOException(recipeBad[0]);
+					recipe=ChunkStore.decode(recipeBytes.toByteArray());
+					assembler[0]=new ChunkAssembler(chunkStore,downloadTarget(current[0]),recipe);
+				} catch (IllegalArgumentException | IOException e) {
+					System.out.println("Could not get the chunks of file "+current[0]+": "+e.getMessage());
+					failFile.run();
+					nextFile[0].run();
+					return;
+				}
+				List<String> missing=assembler[0].missing();
+				System.out.println("File "+current[0]+" has "+recipe.size()+" chunks, getting "+
+						missing.size()+" of them");
+				requests.addAll(chunkRequests(missing));
+				nextChunks.run();
+			}).on(chunkContents,(args2)->{
+				String chunk = (String) args2[0];
+				ack(endpoint,chunk);
+				if(chunk.length()==0) {
+					// a file that failed part way waits for the rest of its chunks to go by
+					if(assembler[0]==null) {
+						getWhole.run();
+					} else {
+						nextChunks.run();
+					}
+				} else if(assembler[0]!=null) {
+					try {
+						byte[] bytes=ChunkCodec.decode(chunk);
+						download.received(bytes.length);
+						assembler[0].read(bytes);
+					} catch (IOException e) {
+						System.out.println("Error receiving the chunks of file "+current[0]+": "+e.getMessage());
+						assembler[0].finish();
+						assembler[0]=null;
+						requests.clear();
+					}
+				}
+			}).on(fileContents,(args2)->{
+				String chunk = (String) args2[0];
+				ack(endpoint,chunk);
+				if(whole[0]==null) return;
+				if(chunk.length()>0) {
+					try {
+						byte[] bytes=ChunkCodec.decode(chunk);
+						whole[0].write(bytes);
+						download.received(bytes.length);
+					} catch (IOException e) {
+						System.out.println("Error writing file chunk: "+e.getMessage());
+						wholeFailed[0]=true;
+					}
+					return;
+				}
+				try {
+					whole[0].close();
+				} catch (IOException e) {
+					wholeFailed[0]=true;
+				}
+				whole[0]=null;
+				if(wholeFailed[0]) deleteQuietly(current[0]);
+				download.fileDone(current[0],!wholeFailed[0]);
+				nextFile[0].run();
+			}).on(fileError, (args2)->{
+				if(assembler[0]!=null) {
+					// the peer no longer holds a chunk it sent the recipe with
+					System.out.println("Error getting the chunks of file "+current[0]+": "+args2[0]);
+					getWhole.run();
+					return;
+				}
+				System.out.println("Error getting file "+current[0]+": "+args2[0]);
+				if(whole[0]!=null) {
+					try {
+						whole[0].close();
+					} catch (IOException e) {
+						// the file failed anyway
+					}
+					whole[0]=null;
+					deleteQuietly(current[0]);
+				}
+				failFile.run();
+				nextFile[0].run();
+			});
+			nextFile[0].run();
+		}).on(PeerManager.peerStopped, (args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			System.out.println("Disconnected from peer: "+endpoint.getOtherEndpointId());
+		}).on(PeerManager.peerError, (args)->{
+			Endpoint endpoint = (Endpoint)args[0];
+			System.out.println("There was error while communication with peer: "
+					+endpoint.getOtherEndpointId());
+		});
+		clientManager.start();
+		return clientManager;
+	}
+	
+	/**
+	 * Delete a file that was not completely downloaded, so that it is not
+	 * taken for a complete one.
+	 * @param filename
 	 */
-	private static int chunkSize=Utils.chunkSize;
+	private static void deleteQuietly(String filename) {
+		try {
+			Files.deleteIfExists(downloadPath(filename));
+		} catch (IOException e) {
+			System.out.println("Could not delete incomplete file: "+filename);
+		}
+	}
 	
 	/**
-	 * buffer for file reading
+	 * Run a download of the {@link DownloadManager}, returning once it has ended.
+	 * @param peerManager
+	 * @param download
 	 */
-	private static byte[] buffer = new byte[chunkSize];
+	private static void runDownload(PeerManager peerManager,DownloadManager.Download download) {
+		if(chunked) {
+			awaitDownload(getFilesChunked(peerManager,download,download.filenames),download);
+			return;
+		}
+		List<String> whole = new ArrayList<>();
+		List<String> single = new ArrayList<>();
+		for(String filename : download.filenames) {
+			// files that we have an older copy of are updated one at a time with their changes
+			(hasOlderCopy(filename) ? single : whole).add(filename);
+		}
+		if(whole.size()==1) {
+			single.add(whole.remove(0));
+		} else if(whole.size()>1) {
+			awaitDownload(getFilesFromPeer(peerManager,download,whole),download);
+		}
+		for(String filename : single) {
+			try {
+				awaitDownload(getFileFromPeer(peerManager,download.peer+":"+filename,download),download);
+			} catch (InterruptedException e) {
+				System.out.println("interrupted while trying to download: "+filename);
+				return;
+			}
+		}
+	}
 	
 	/**
-	 * Read up to chunkSize bytes of a file and send to client.
-	 * If we have not reached the end of the file then set a timeout
-	 * to read some more bytes. Since this is using the timer thread
-	 * we have the danger that the transmission will block and that
-	 * this will block all the other timeouts. We could either use another
-	 * thread for each file transfer or else allow for buffering of
-	 * outgoing messages at the endpoint, to overcome this issue.
-	 * @param in the file input stream
-	 * @param endpoint the endpoint to send the file
+	 * @param clientManager the connection of a download, or null if it could not be started
+	 * @param download
 	 */
-	public static void continueTransmittingFile(InputStream in,Endpoint endpoint) {
+	private static void awaitDownload(ClientManager clientManager,DownloadManager.Download download) {
+		if(clientManager==null) return;
 		try {
-			int read = in.read(buffer);
-			if(read==-1) {
-				endpoint.emit(fileContents, ""); // signals no more bytes in file
-				in.close();
-			} else {
-				endpoint.emit(fileContents, new String(Base64.encodeBase64(
-						Arrays.copyOfRange(buffer, 0, read)),
-						StandardCharsets.US_ASCII));
-				if(read<chunkSize) {
-					endpoint.emit(fileContents, "");
-					in.close();
-				} else {
-					Utils.getInstance().setTimeout(()->{
-						continueTransmittingFile(in,endpoint);
-					},100); // limit throughput to about 160kB/s, hopefully your bandwidth can keep up :-)
-				}
-			}
-		} catch (IOException e) {
-			endpoint.emit(fileError,e.toString());
+			clientManager.join();
+		} catch (InterruptedException e) {
+			System.out.println("interrupted while downloading from: "+download.peer);
 		}
 	}
 	
 	/**
-	 * Test for the file existence and then start transmitting it. Emit
-	 * {@link #fileError} if file can't be accessed.
-	 * @param filename
-	 * @param endpoint
+	 * Print the progress of the downloads every {@link #progressInterval} ms while
+	 * there are any.
+	 * @param downloadManager
+	 * @param finished set once there will be no more downloads
 	 */
-	public static void startTransmittingFile(String filename,Endpoint endpoint) {
-		try {
-			InputStream in = new FileInputStream(filename);
-			continueTransmittingFile(in,endpoint);
-		} catch (FileNotFoundException e) {
-			endpoint.emit(fileError,e.toString());
-		}
+	private static void reportProgress(DownloadManager downloadManager,AtomicBoolean finished) {
+		if(finished.get()) return;
+		if(!downloadManager.isIdle()) System.out.println("Downloads: "+downloadManager.getProgress());
+		Utils.getInstance().setTimeout(()->{
+			reportProgress(downloadManager,finished);
+		}, progressInterval);
 	}
 	
 	/**
-	 * Emit a filename as an index update if possible, close when all done.
-	 * @param filenames
-	 * @param endpoint
+	 * Queue the files of many query responses for download, those from the
+	 * same peer to be downloaded over a single connection, leaving out any
+	 * that are already being downloaded.
+	 * @param downloadManager
+	 * @param responses each "PeerIP:PeerPort:filename"
+	 * @param downloads the filenames being downloaded
+	 * @param priority the priority of each response, those from a peer are
+	 * downloaded with the highest of their priorities
 	 */
-	public static void emitIndexUpdate(String peerport,List<String> filenames,Endpoint endpoint,
-			ClientManager clientManager) {
-		if(filenames.size()==0) {
-			clientManager.shutdown(); // no more index updates to do
-		} else {
-			String filename=filenames.remove(0);
-			log.info("Sending index update: "+peerport+":"+filename);
-			// an index update has the format: host:port:filename
-			endpoint.emit(IndexServer.indexUpdate, peerport+":"+filename);
-			Utils.getInstance().setTimeout(()->{
-				emitIndexUpdate(peerport,filenames,endpoint,clientManager);
-			}, 100); // send 10 index updates per second, this shouldn't kill the bandwidth :-]
+	private static void downloadAll(DownloadManager downloadManager,List<String> responses,
+			Set<String> downloads,ToLongFunction<String> priority) {
+		Map<String,List<String>> byPeer = new LinkedHashMap<>();
+		Map<String,Long> priorities = new HashMap<>();
+		for(String response : responses) {
+			String[] parts=response.split(":",3);
+			if(parts.length<3) {
+				System.out.println("Response from index server is bad: "+response);
+				continue;
+			}
+			try {
+				downloadPath(parts[2]);
+			} catch (IOException e) {
+				System.out.println("Not downloading "+parts[2]+", "+e.getMessage());
+				continue;
+			}
+			if(!downloads.add(parts[2])) {
+				System.out.println("Already downloading: "+parts[2]);
+				continue;
+			}
+			String peer=parts[0]+":"+parts[1];
+			byPeer.computeIfAbsent(peer,(key)->new ArrayList<>()).add(parts[2]);
+			priorities.merge(peer,priority.applyAsLong(response),Math::max);
+		}
+		for(Map.Entry<String,List<String>> peer : byPeer.entrySet()) {
+			downloadManager.submit(peer.getKey(),peer.getValue(),priorities.get(peer.getKey()));
 		}
 	}
 	
 	/**
-	 * Open a client connection to the index server and send the filenames to
-	 * update the index.
-	 * @param filenames
+	 * Send the query to an index server and download the files of its responses
+	 * as they arrive, asking for more responses after each batch. If
+	 * {@link #subscribe} is set, the query is first registered as a standing
+	 * query, so that no file indexed during the query is missed, and the session
+	 * is kept open to download the files that match as they are indexed.
 	 * @param peerManager
+	 * @param query
+	 * @param indexHost
+	 * @param indexPort
+	 * @param downloadManager to queue the downloads with
+	 * @param downloads the filenames being downloaded, shared by all the index servers queried
+	 * @param finished set once all of the responses to the query have been received
+	 * @return the client manager of the session with the index server
 	 * @throws InterruptedException 
 	 * @throws UnknownHostException 
 	 */
-	public static void uploadFileList(List<String> filenames,PeerManager peerManager,
-			String peerport) throws UnknownHostException, InterruptedException {
-		// connect to the index server and tell it the files we are sharing
-        ClientManager clientManager = peerManager.connect(indexServerPort, host);
+	private static ClientManager queryIndexServer(PeerManager peerManager,String query,
+			String indexHost,int indexPort,DownloadManager downloadManager,Set<String> downloads,
+			AtomicBoolean finished)
+					throws UnknownHostException, InterruptedException {
+        ClientManager clientManager = connectIndexServer(peerManager,indexHost,indexPort);
         clientManager.on(PeerManager.peerStarted, (args)->{
 			Endpoint endpoint = (Endpoint)args[0];
 			System.out.println("Connected to index server: "+endpoint.getOtherEndpointId());
-			endpoint.on(IndexServer.indexUpdateError, (args2)->{
-				String filename = (String) args2[0];
-				System.out.println("Index server did not accept the file: "+filename);
+			endpoint.on(IndexServer.queryResponseHeader, (args2)->{
+				System.out.println("Index server "+endpoint.getOtherEndpointId()+" found "+
+						args2[0]+" matching files.");
+			}).on(IndexServer.queryResponseBatch, (args2)->{
+				String[] responses = ((String) args2[0]).split("\n");
+				System.out.println("Received "+responses.length+" query responses.");
+				downloadAll(downloadManager,Arrays.asList(responses),downloads,(response)->0);
+				// ready for another batch
+				endpoint.emit(IndexServer.queryMore, "1");
+			}).on(IndexServer.queryResponse, (args2)->{
+				String response = (String) args2[0];
+				if(response.length()==0) {
+					System.out.println("Received all responses from "+endpoint.getOtherEndpointId());
+					finished.set(true);
+					if(subscribe) {
+						System.out.println("Waiting for new files that match the query.");
+					} else {
+						clientManager.shutdown();
+					}
+				} else {
+					System.out.println("Received query response: "+response);
+					downloadAll(downloadManager,Collections.singletonList(response),downloads,(hit)->0);
+				}
+			}).on(IndexServer.queryError, (args2)->{
+				System.out.println("Index server did not accept the query: "+query);
+				finished.set(true);
+				clientManager.shutdown();
 			});
-			System.out.println("Telling the index server our peer:port="+peerport);
-			endpoint.emit(IndexServer.peerUpdate, peerport);
-			System.out.println("Sending file list to the index server.");
-			emitIndexUpdate(peerport,filenames,endpoint,clientManager);
+			if(subscribe) {
+				System.out.println("Sending standing query to the index server.");
+				endpoint.emit(IndexServer.querySubscribe, query);
+			}
+			if(fuzzyEdits>0) {
+				Document doc = new Document();
+				doc.append("query",query);
+				doc.append("edits",fuzzyEdits);
+				System.out.println("Sending fuzzy query to the index server.");
+				endpoint.emit(IndexServer.queryFuzzy, doc.toJson());
+			} else {
+				System.out.println("Sending query to the index server.");
+				endpoint.emit(IndexServer.queryIndex, query);
+			}
 		}).on(PeerManager.peerStopped, (args)->{
 			Endpoint endpoint = (Endpoint)args[0];
 			System.out.println("Disconnected from the index server: "+endpoint.getOtherEndpointId());
@@ -203,156 +1853,88 @@ public class FileSharingPeer {
 					+endpoint.getOtherEndpointId());
 		});
         clientManager.start();
+        return clientManager;
 	}
 	
 	/**
-	 * Share files by starting up a server manager and then sending updates to
-	 * the index server to say which files are being shared.
-	 * @param files list of file names to share
-	 * @throws InterruptedException 
-	 * @throws IOException 
-	 */
-	private static void shareFiles(String[] files) throws InterruptedException, IOException {
-		List<String> filenames=new ArrayList<String>();
-		for(String file : files) {
-			filenames.add(file);
-		}
-        PeerManager peerManager = new PeerManager(peerPort);
-        peerManager.on(PeerManager.peerStarted, (args)->{
-        	Endpoint endpoint = (Endpoint)args[0];
-        	System.out.println("Connection from peer: "+endpoint.getOtherEndpointId());
-        	endpoint.on(getFile,(args2)->{
-        		String filename = (String) args2[0];
-        		System.out.println("Peer is requesting file: "+filename);
-        		startTransmittingFile(filename,endpoint);
-        	});
-        }).on(PeerManager.peerStopped,(args)->{
-        	Endpoint endpoint = (Endpoint)args[0];
-        	System.out.println("Disconnected from peer: "+endpoint.getOtherEndpointId());
-        }).on(PeerManager.peerError,(args)->{
-        	Endpoint endpoint = (Endpoint)args[0];
-        	System.out.println("There was an error communicating with the peer: "
-        			+endpoint.getOtherEndpointId());
-        }).on(PeerManager.peerServerManager, (args)->{
-        	ServerManager serverManager = (ServerManager)args[0];
-        	serverManager.on(IOThread.ioThread, (args2)->{
-	        	String peerport = (String) args2[0];
-	        	try {
-					uploadFileList(filenames,peerManager,peerport);
-				} catch (UnknownHostException e) {
-					System.out.println("The index server host could not be found: "+host);
-				} catch (InterruptedException e) {
-					System.out.println("Interrupted while trying to send updates to the index server");
-				}
-	        });
-        });
-        peerManager.start();
-        
-        // just keep sharing until the user presses "return"
-        BufferedReader input= new BufferedReader(new InputStreamReader(System.in));
-        System.out.println("Press RETURN to stop sharing");
-        input.readLine();
-        System.out.println("RETURN pressed, stopping the peer");
-        peerManager.shutdown();
-	}
-	
-	/**
-	 * Process a query response from the index server and download the file
-	 * @param queryResponse
-	 * @throws InterruptedException 
+	 * @param query
+	 * @param limit
+	 * @param cursor
+	 * @return the argument of a {@link IndexServer#queryRanked} event
 	 */
-	private static void getFileFromPeer(PeerManager peerManager,String response) throws InterruptedException {
-		// Create a independent client manager (thread) for each download
-		// response has the format: PeerIP:PeerPort:filename
-		String[] parts=response.split(":",3);
-		ClientManager clientManager;
-		try {
-			clientManager = peerManager.connect(Integer.valueOf(parts[1]),parts[0]);
-		} catch (NumberFormatException e) {
-			System.out.println("Response from index server is bad, port is not a number: "+parts[1]);
-			return;
-		} catch (UnknownHostException e) {
-			System.out.println("Could not find the peer IP address: "+parts[0]);
-			return;
-		}
-		try {
-			OutputStream out = new FileOutputStream(parts[2]);
-			clientManager.on(PeerManager.peerStarted, (args)->{
-				Endpoint endpoint = (Endpoint)args[0];
-				endpoint.on(fileContents,(args2)->{
-					String chunk = (String) args2[0];
-					if(chunk.length()==0) {
-						// file download complete
-						try {
-							out.close();
-						} catch (IOException e) {
-							System.out.println("Possible error with downloaded file: "+parts[2]);
-						}
-						clientManager.shutdown();
-					} else {
-						try {
-							out.write(Base64.decodeBase64(chunk));
-						} catch (IOException e) {
-							System.out.println("Error writing file chunk: "+chunk);
-						}
-					}
-				}).on(fileError, (args2)->{
-					System.out.println("Error downloading file");
-					clientManager.shutdown();
-				});
-				System.out.println("Getting file "+parts[2]+" from "+endpoint.getOtherEndpointId());
-				endpoint.emit(getFile, parts[2]);
-			}).on(PeerManager.peerStopped, (args)->{
-				Endpoint endpoint = (Endpoint)args[0];
-				System.out.println("Disconnected from peer: "+endpoint.getOtherEndpointId());
-			}).on(PeerManager.peerError, (args)->{
-				Endpoint endpoint = (Endpoint)args[0];
-				System.out.println("There was error while communication with peer: "
-						+endpoint.getOtherEndpointId());
-			});
-			clientManager.start();
-			// we can't call clientManager.join() because the thread that called this method is
-			// the endpoint thread from the query to the index server, which needs
-			// to continue to process its session, so we can join with this later
-		} catch (FileNotFoundException e) {
-			System.out.println("Could not create file: "+parts[2]);
-		}	
-		
+	private static String rankedRequest(String query,int limit,String cursor) {
+		Document doc = new Document();
+		doc.append("query",query);
+		doc.append("limit",limit);
+		doc.append("cursor",cursor);
+		return doc.toJson();
 	}
 	
 	/**
-	 * Query the index server for the keywords and download files for each of the query responses.
-	 * @param keywords list of keywords to query for and download matching files
+	 * Send a ranked query to an index server and collect the most relevant
+	 * responses, asking for further pages until there are {@link #queryLimit}
+	 * of them or no more.
+	 * @param peerManager
+	 * @param query
+	 * @param indexHost
+	 * @param indexPort
+	 * @param ranked the responses of all the index servers queried, with their scores
+	 * @param finished set once all of the responses have been received
+	 * @return the client manager of the session with the index server
 	 * @throws InterruptedException 
 	 * @throws UnknownHostException 
 	 */
-	private static void queryFiles(String[] keywords) throws UnknownHostException, InterruptedException {
-		String query = String.join(",",keywords);
-		// connect to the index server and tell it the files we are sharing
-		PeerManager peerManager = new PeerManager(peerPort);
-        ClientManager clientManager = peerManager.connect(indexServerPort, host);
+	private static ClientManager queryIndexServerRanked(PeerManager peerManager,String query,
+			String indexHost,int indexPort,List<QueryRanker.ScoredHit> ranked,AtomicBoolean finished)
+					throws UnknownHostException, InterruptedException {
+        ClientManager clientManager = connectIndexServer(peerManager,indexHost,indexPort);
         clientManager.on(PeerManager.peerStarted, (args)->{
 			Endpoint endpoint = (Endpoint)args[0];
 			System.out.println("Connected to index server: "+endpoint.getOtherEndpointId());
-			endpoint.on(IndexServer.queryResponse, (args2)->{
-				String response = (String) args2[0];
-				if(response.length()==0) {
-					System.out.println("Received all responses.");
+			int[] received = new int[] {0};
+			endpoint.on(IndexServer.queryRankedResponse, (args2)->{
+				Document doc = Document.parse((String) args2[0]);
+				Object hits=doc.get("hits");
+				Object scores=doc.get("scores");
+				Object cursorValue=doc.get("cursor");
+				List<QueryRanker.ScoredHit> page=null;
+				if(hits instanceof List && scores instanceof List && cursorValue instanceof String &&
+						((List<?>) hits).size()==((List<?>) scores).size()) {
+					List<?> hitList=(List<?>) hits;
+					List<?> scoreList=(List<?>) scores;
+					page=new ArrayList<>();
+					for(int i=0;i<hitList.size() && page!=null;i++) {
+						if(hitList.get(i) instanceof String && scoreList.get(i) instanceof Long) {
+							page.add(new QueryRanker.ScoredHit((String) hitList.get(i),(Long) scoreList.get(i)));
+						} else {
+							page=null;
+						}
+					}
+				}
+				if(page==null) {
+					System.out.println("Response from index server is bad: "+args2[0]);
+					finished.set(true);
 					clientManager.shutdown();
+					return;
+				}
+				String cursor=(String) cursorValue;
+				ranked.addAll(page);
+				received[0]+=page.size();
+				System.out.println("Received "+page.size()+" ranked query responses.");
+				if(!cursor.isEmpty() && received[0]<queryLimit) {
+					endpoint.emit(IndexServer.queryRanked, rankedRequest(query,queryLimit-received[0],cursor));
 				} else {
-					System.out.println("Received query response: "+response);
-					try {
-						getFileFromPeer(peerManager,response);
-					} catch (InterruptedException e) {
-						System.out.println("interrupted while trying to download: "+response);
-					}
+					System.out.println("Received all responses from "+endpoint.getOtherEndpointId());
+					finished.set(true);
+					clientManager.shutdown();
 				}
 			}).on(IndexServer.queryError, (args2)->{
 				System.out.println("Index server did not accept the query: "+query);
+				finished.set(true);
 				clientManager.shutdown();
 			});
-			System.out.println("Sending query to the index server.");
-			endpoint.emit(IndexServer.queryIndex, query);
+			System.out.println("Sending ranked query to the index server.");
+			endpoint.emit(IndexServer.queryRanked, rankedRequest(query,queryLimit,""));
 		}).on(PeerManager.peerStopped, (args)->{
 			Endpoint endpoint = (Endpoint)args[0];
 			System.out.println("Disconnected from the index server: "+endpoint.getOtherEndpointId());
@@ -362,7 +1944,109 @@ public class FileSharingPeer {
 					+endpoint.getOtherEndpointId());
 		});
         clientManager.start();
-        clientManager.join(); // wait for the query to finish
+        return clientManager;
+	}
+	
+	/**
+	 * Query an index server, for the most relevant files if there is a
+	 * {@link #queryLimit} and otherwise for every file that matches.
+	 * @param peerManager
+	 * @param query
+	 * @param indexHost
+	 * @param indexPort
+	 * @param downloadManager to queue the downloads with
+	 * @param downloads the filenames being downloaded
+	 * @param ranked the ranked responses
+	 * @param finished set once all of the responses have been received
+	 * @return the client manager of the session with the index server
+	 * @throws UnknownHostException
+	 * @throws InterruptedException
+	 */
+	private static ClientManager startQuery(PeerManager peerManager,String query,String indexHost,
+			int indexPort,DownloadManager downloadManager,Set<String> downloads,
+			List<QueryRanker.ScoredHit> ranked,AtomicBoolean finished)
+					throws UnknownHostException, InterruptedException {
+		if(queryLimit>0) {
+			return queryIndexServerRanked(peerManager,query,indexHost,indexPort,ranked,finished);
+		}
+		return queryIndexServer(peerManager,query,indexHost,indexPort,downloadManager,downloads,finished);
+	}
+	
+	/**
+	 * Download the files of the most relevant responses, from all the index
+	 * servers queried, up to the {@link #queryLimit}, the most relevant first.
+	 * @param downloadManager to queue the downloads with
+	 * @param ranked the responses, with the filename of each hit being "PeerIP:PeerPort:filename"
+	 * @param downloads the filenames being downloaded
+	 */
+	private static void downloadBest(DownloadManager downloadManager,List<QueryRanker.ScoredHit> ranked,
+			Set<String> downloads) {
+		List<QueryRanker.ScoredHit> best = new ArrayList<>(ranked);
+		Collections.sort(best);
+		List<String> responses = new ArrayList<>();
+		Map<String,Long> scores = new HashMap<>();
+		Set<String> chosen = new HashSet<>();
+		for(QueryRanker.ScoredHit hit : best) {
+			if(chosen.size()>=queryLimit) break;
+			String[] parts=hit.filename.split(":",3);
+			// the same file may be ranked by more than one shard
+			if(parts.length==3 && !chosen.add(parts[2])) continue;
+			System.out.println("Score "+hit.score+": "+hit.filename);
+			responses.add(hit.filename);
+			scores.put(hit.filename,hit.score);
+		}
+		downloadAll(downloadManager,responses,downloads,scores::get);
+	}
+	
+	/**
+	 * Query the index server for the keywords and download files for each of the query responses.
+	 * With a cluster of index servers every shard is queried at the same time, since any shard
+	 * may hold matching files, and the responses are merged as they arrive. With a primary
+	 * index server and its backups, the next index server is queried if the query did not
+	 * finish, and files already being downloaded are not downloaded again. With a
+	 * {@link #queryLimit}, only the most relevant files of all the responses are downloaded.
+	 * At most {@link #maxDownloads} downloads run at a time, and the rest are queued.
+	 * @param keywords list of keywords to query for and download matching files
+	 * @throws InterruptedException 
+	 * @throws UnknownHostException 
+	 */
+	private static void queryFiles(String[] keywords) throws UnknownHostException, InterruptedException {
+		String query = String.join(",",keywords);
+		PeerManager peerManager = new PeerManager(peerPort);
+		Set<String> downloads = ConcurrentHashMap.newKeySet();
+		List<QueryRanker.ScoredHit> ranked = Collections.synchronizedList(new ArrayList<>());
+		List<ClientManager> queries = new ArrayList<>();
+		DownloadManager downloadManager = new DownloadManager(maxDownloads,maxDownloadsPerPeer,(download)->{
+			runDownload(peerManager,download);
+		});
+		AtomicBoolean downloaded = new AtomicBoolean(false);
+		reportProgress(downloadManager,downloaded);
+		if(indexServers!=null) {
+			AtomicBoolean finished = new AtomicBoolean(false);
+			for(String server : indexServers) {
+				startQuery(peerManager,query,shardHost(server),shardPort(server),downloadManager,downloads,
+						ranked,finished).join();
+				// a standing query carries on with the backup once the primary is gone
+				if(finished.get() && !subscribe) break;
+				System.out.println("Query did not finish, trying the next index server.");
+			}
+		} else if(shards==null) {
+			queries.add(startQuery(peerManager,query,host,indexServerPort,downloadManager,downloads,ranked,
+					new AtomicBoolean(false)));
+		} else {
+			for(String shard : shards.getShards()) {
+				queries.add(startQuery(peerManager,query,shardHost(shard),shardPort(shard),downloadManager,
+						downloads,ranked,new AtomicBoolean(false)));
+			}
+		}
+		for(ClientManager clientManager : queries) {
+			clientManager.join(); // wait for the query to finish
+		}
+		if(queryLimit>0) downloadBest(downloadManager,ranked,downloads);
+		downloadManager.awaitIdle();
+		downloaded.set(true);
+		downloadManager.shutdown();
+		System.out.println("Downloads finished: "+downloadManager.getProgress());
         /*
          * We also have to join with any other client managers that were started for
          * download purposes.
@@ -389,12 +2073,43 @@ public class FileSharingPeer {
         options.addOption("port",true,"peer server port, an integer");
         options.addOption("host",true,"index server hostname, a string");
         options.addOption("indexServerPort",true,"index server port, an integer");
+        options.addOption("shards",true,"comma separated list of host:port of the index servers"
+        		+ " of a sharded index, instead of -host and -indexServerPort");
+        options.addOption("indexServers",true,"comma separated list of host:port of a primary index"
+        		+ " server and its backups, to fail over between in order, instead of -host and -indexServerPort");
         Option optionShare = new Option("share",true,"list of files to share");
         optionShare.setArgs(Option.UNLIMITED_VALUES);
         options.addOption(optionShare);
+        Option optionShareDir = new Option("shareDir",true,"list of directories to share and watch for changes");
+        optionShareDir.setArgs(Option.UNLIMITED_VALUES);
+        options.addOption(optionShareDir);
         Option optionQuery = new Option("query",true,"keywords to search for and download files that match");
         optionQuery.setArgs(Option.UNLIMITED_VALUES);
         options.addOption(optionQuery);
+        options.addOption("fuzzy",true,"also match words of filenames that are up to this number"
+        		+ " of edits from the words of the query, at most "+FuzzyDictionary.maxEdits);
+        options.addOption("subscribe",false,"keep the query open and download new files that match"
+        		+ " it as they are shared, until stopped");
+        options.addOption("limit",true,"download only this number of the most relevant files"
+        		+ " that match the query, at most "+IndexServer.maxRankedLimit);
+        options.addOption("chunkStore",true,"get files as chunks, leaving out those already held by the"
+        		+ " files in this comma separated list of directories and the files downloaded; the chunks"
+        		+ " are found where they are in those files, this saves transfer but not disk");
+        options.addOption("downloadDir",true,"directory to write the downloaded files under, by their"
+        		+ " filenames, default the current directory");
+        options.addOption("noDelta",false,"always get whole files, rather than only the changes to files"
+        		+ " that there is an older copy of");
+        options.addOption("maxDownloads",true,"most downloads to run at a time, default "+maxDownloads);
+        options.addOption("maxPerPeer",true,"most downloads to run from the same peer at a time, default "
+        		+maxDownloadsPerPeer);
+        options.addOption("noCompression",false,"send and get the chunks of files as they are, rather than"
+        		+ " compressing those that compress well, when the other peer can decode them");
+        options.addOption("minChunkSize",true,"for sharing peers, least chunk size in kB that transfers"
+        		+ " adapt to the link within, default "+minChunkSize/1024);
+        options.addOption("maxChunkSize",true,"for sharing peers, largest chunk size in kB that transfers"
+        		+ " adapt to the link within, at most "+maxChunkSize/1024+" and by default that");
+        options.addOption("maxInFlight",true,"for sharing peers, most chunks sent to a peer before it"
+        		+ " acknowledges them, default "+maxInFlight);
         
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = null;
@@ -424,22 +2139,171 @@ public class FileSharingPeer {
 			}
         }
         
+        if(cmd.hasOption("chunkStore")) {
+        	chunked=true;
+        	for(String dir : cmd.getOptionValue("chunkStore").split(",")) {
+        		if(dir.isEmpty()) continue;
+        		try {
+        			chunkStore.addAll(Paths.get(dir));
+        		} catch (IOException | InvalidPathException e) {
+        			System.out.println("-chunkStore requires a list of directories, could not read: "+dir);
+        			help(options);
+        		}
+        	}
+        	System.out.println("Chunk store: "+chunkStore.getStats());
+        }
+        
+        if(cmd.hasOption("downloadDir")) {
+        	try {
+        		downloadDir=Paths.get(cmd.getOptionValue("downloadDir")).toAbsolutePath().normalize();
+        		Files.createDirectories(downloadDir);
+        	} catch (IOException | InvalidPathException e) {
+        		System.out.println("-downloadDir requires a directory, could not make: "+
+        				cmd.getOptionValue("downloadDir"));
+        		help(options);
+        	}
+        }
+        
+        if(cmd.hasOption("noDelta")) {
+        	deltaSync=false;
+        }
+        
+        if(cmd.hasOption("maxDownloads")) {
+        	try{
+        		maxDownloads = Integer.parseInt(cmd.getOptionValue("maxDownloads"));
+        		if(maxDownloads<1) throw new NumberFormatException();
+			} catch (NumberFormatException e){
+				System.out.println("-maxDownloads requires a positive integer, parsed: "+
+						cmd.getOptionValue("maxDownloads"));
+				help(options);
+			}
+        }
+        
+        if(cmd.hasOption("maxPerPeer")) {
+        	try{
+        		maxDownloadsPerPeer = Integer.parseInt(cmd.getOptionValue("maxPerPeer"));
+        		if(maxDownloadsPerPeer<1) throw new NumberFormatException();
+			} catch (NumberFormatException e){
+				System.out.println("-maxPerPeer requires a positive integer, parsed: "+
+						cmd.getOptionValue("maxPerPeer"));
+				help(options);
+			}
+        }
+        
+        if(cmd.hasOption("minChunkSize") || cmd.hasOption("maxChunkSize")) {
+        	try{
+        		int min = Integer.parseInt(cmd.getOptionValue("minChunkSize",Integer.toString(minChunkSize/1024)));
+        		int max = Integer.parseInt(cmd.getOptionValue("maxChunkSize",Integer.toString(maxChunkSize/1024)));
+        		if(min<1 || max<min || max>maxChunkSize/1024) throw new NumberFormatException();
+        		minChunkSize=min*1024;
+        		maxChunkSize=max*1024;
+			} catch (NumberFormatException e){
+				System.out.println("-minChunkSize and -maxChunkSize require positive integers, in order, of at most "+
+						maxChunkSize/1024+", parsed: "+cmd.getOptionValue("minChunkSize")+" and "+
+						cmd.getOptionValue("maxChunkSize"));
+				help(options);
+			}
+        }
+        
+        if(cmd.hasOption("noCompression")) {
+        	compression=false;
+        }
+        
+        if(cmd.hasOption("maxInFlight")) {
+        	try{
+        		maxInFlight = Integer.parseInt(cmd.getOptionValue("maxInFlight"));
+        		if(maxInFlight<1) throw new NumberFormatException();
+			} catch (NumberFormatException e){
+				System.out.println("-maxInFlight requires a positive integer, parsed: "+
+						cmd.getOptionValue("maxInFlight"));
+				help(options);
+			}
+        }
+        
+        if(cmd.hasOption("limit")) {
+        	try{
+        		queryLimit = Integer.parseInt(cmd.getOptionValue("limit"));
+        		if(queryLimit<1 || queryLimit>IndexServer.maxRankedLimit) throw new NumberFormatException();
+			} catch (NumberFormatException e){
+				System.out.println("-limit requires an integer from 1 to "+IndexServer.maxRankedLimit+
+						", parsed: "+cmd.getOptionValue("limit"));
+				help(options);
+			}
+        }
+        
+        if(cmd.hasOption("fuzzy")) {
+        	try{
+        		fuzzyEdits = Integer.parseInt(cmd.getOptionValue("fuzzy"));
+        		if(fuzzyEdits<1 || fuzzyEdits>FuzzyDictionary.maxEdits) throw new NumberFormatException();
+			} catch (NumberFormatException e){
+				System.out.println("-fuzzy requires an integer from 1 to "+FuzzyDictionary.maxEdits+
+						", parsed: "+cmd.getOptionValue("fuzzy"));
+				help(options);
+			}
+        	if(queryLimit>0) {
+        		System.out.println("-fuzzy cannot be used with -limit");
+        		help(options);
+        	}
+        }
+        
+        if(cmd.hasOption("subscribe")) {
+        	if(queryLimit>0) {
+        		System.out.println("-subscribe cannot be used with -limit");
+        		help(options);
+        	}
+        	subscribe=true;
+        }
+        
         if(cmd.hasOption("host")) {
         	host = cmd.getOptionValue("host");
         }
         
+        if(cmd.hasOption("shards")) {
+        	List<String> shardList = new ArrayList<>();
+        	for(String shard : cmd.getOptionValue("shards").split(",")) {
+        		try {
+        			shardPort(shard);
+        			shardHost(shard);
+        		} catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+        			System.out.println("-shards requires a list of host:port, parsed: "+shard);
+        			help(options);
+        		}
+        		shardList.add(shard);
+        	}
+        	shards = new HashRing(shardList);
+        }
+        
+        if(cmd.hasOption("indexServers")) {
+        	if(shards!=null) {
+        		System.out.println("-indexServers cannot be used with -shards");
+        		help(options);
+        	}
+        	indexServers = new ArrayList<>();
+        	for(String server : cmd.getOptionValue("indexServers").split(",")) {
+        		try {
+        			shardPort(server);
+        			shardHost(server);
+        		} catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+        			System.out.println("-indexServers requires a list of host:port, parsed: "+server);
+        			help(options);
+        		}
+        		indexServers.add(server);
+        	}
+        }
+        
         
         // start up the client
         log.info("PB Peer starting up");
  
-        if(cmd.hasOption("share")) {
-        	String[] files = cmd.getOptionValues("share");
-        	shareFiles(files);
+        if(cmd.hasOption("share") || cmd.hasOption("shareDir")) {
+        	String[] files = cmd.hasOption("share") ? cmd.getOptionValues("share") : new String[0];
+        	String[] dirs = cmd.hasOption("shareDir") ? cmd.getOptionValues("shareDir") : new String[0];
+        	shareFiles(files,dirs);
         } else if(cmd.hasOption("query")) {
         	String[] keywords = cmd.getOptionValues("query");
         	queryFiles(keywords);
         } else {
-        	System.out.println("must use either the -query or -share option");
+        	System.out.println("must use either the -query or -share/-shareDir option");
         	help(options);
         }
         Utils.getInstance().cleanUp();
@@ -1,15 +1,14 @@
 package pb;
 
 import java.io.IOException;
-import java.time.Instant;
+import java.net.UnknownHostException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
 import org.apache.commons.cli.CommandLine;
@@ -18,10 +17,22 @@ import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
+import org.json.simple.JSONValue;
 
+import pb.index.CatalogDelta;
+import pb.index.FileIndex;
+import pb.index.FuzzyDictionary;
+import pb.index.HeavyHitters;
+import pb.index.IndexReplicator;
+import pb.index.IndexStore;
+import pb.index.QueryCache;
+import pb.index.QueryRanker;
+import pb.index.StandingQueries;
+import pb.managers.ClientManager;
 import pb.managers.IOThread;
 import pb.managers.ServerManager;
 import pb.managers.endpoint.Endpoint;
+import pb.protocols.Document;
 import pb.utils.Utils;
 
 /**
@@ -45,15 +56,81 @@ public class IndexServer {
 	 */
 	public static final String indexUpdate = "INDEX_UPDATE";
 	
+	/**
+	 * Emitted to apply a batch of changes to the index for a peer's catalog.
+	 * The argument is a JSON string as given by
+	 * {@link pb.index.CatalogDelta#toJson()}. A batch is only applied if its base
+	 * version matches the version that the index server has for the peer's
+	 * catalog, or if it is a reset. After the last batch of a delta the index
+	 * server replies with {@link #indexVersion}.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String indexUpdateBatch = "INDEX_UPDATE_BATCH";
+	
+	/**
+	 * Emitted to ask which catalog and version the index server has for a peer,
+	 * before sending changes with {@link #indexUpdateBatch}. The argument must
+	 * have the format "host:port". The index server replies with
+	 * {@link #indexVersion}.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String indexSync = "INDEX_SYNC";
+	
 	/**
 	 * Emitted to query the index for keywords. The argument
-	 * must have the format "keyword,keyword,..."
+	 * must have the format "keyword,keyword,..." and a file matches
+	 * if it contains any of the keywords, ignoring case. A keyword is
+	 * matched as it is, spaces included, and an empty keyword matches
+	 * every file.
 	 * <ul>
 	 * <li>{@code args[0] instanceof String}</li>
 	 * </ul>
 	 */
 	public static final String queryIndex = "QUERY_INDEX";
 	
+	/**
+	 * Emitted to query the index for the most relevant files. The argument
+	 * is JSON of the form {"query":"keyword,keyword,...","limit":n,"cursor":""},
+	 * where the query is as for {@link #queryIndex}, the limit is the number of
+	 * files wanted, at most {@link #maxRankedLimit}, and the cursor is "" for the
+	 * first page or the cursor of the previous {@link #queryRankedResponse}.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String queryRanked = "QUERY_RANKED";
+	
+	/**
+	 * Emitted to query the index allowing for misspelt keywords. The argument
+	 * is JSON of the form {"query":"keyword,keyword,...","edits":n}, where the
+	 * query is as for {@link #queryIndex} and each word of a keyword also
+	 * matches the words of filenames within n edits of it, at most
+	 * {@link pb.index.FuzzyDictionary#maxEdits}. The index server replies as
+	 * for {@link #queryIndex}.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String queryFuzzy = "QUERY_FUZZY";
+	
+	/**
+	 * Emitted to register a standing query, replacing any standing query
+	 * of the client. The argument is as for {@link #queryIndex}. From then on,
+	 * each time a peer adds a file that matches the query, the index server
+	 * sends a {@link #queryResponse} for it, until the session ends. The
+	 * files already in the index are not sent, they can be found with a
+	 * {@link #queryIndex} after subscribing. The empty string cancels the
+	 * standing query.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String querySubscribe = "QUERY_SUBSCRIBE";
+	
 	/**
 	 * Emitted to tell the index server that your peer is
 	 * available for other peers to connect to it. The argument
@@ -64,6 +141,76 @@ public class IndexServer {
 	 */
 	public static final String peerUpdate = "PEER_UPDATE";
 	
+	/**
+	 * Emitted to renew the lease of your peer, without the cost of
+	 * a {@link #peerUpdate}. The argument must have the format
+	 * "host:port". If the index no longer holds anything for the
+	 * peer, because its lease expired, the index server replies with
+	 * {@link #indexVersion} so that the peer can send its catalog again.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String peerHeartbeat = "PEER_HEARTBEAT";
+	
+	/**
+	 * Emitted to ask for more batches of the current query's results. The
+	 * argument is the number of further {@link #queryResponseBatch} events
+	 * that the client is ready to receive, as a decimal string.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String queryMore = "QUERY_MORE";
+	
+	/**
+	 * Emitted to ask for the index and query cache metrics. The argument
+	 * is ignored and may be the empty string.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String indexStats = "INDEX_STATS";
+	
+	/**
+	 * Emitted by a sharing peer each time it starts sending one of its
+	 * files to another peer, to count the downloads of each file. The
+	 * argument is the filename.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String fileServed = "FILE_SERVED";
+	
+	/**
+	 * Emitted to ask for the most frequent queries, query hits and downloaded
+	 * files. The argument is the number of each to list, as a decimal string,
+	 * or the empty string for {@link #defaultHotItems}.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String loadStats = "LOAD_STATS";
+	
+	/**
+	 * Emitted by a sharing peer to ask for the most downloaded files, so that
+	 * it can have the ones it shares ready to send. The argument is the number
+	 * of files to list, as a decimal string.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String hotFiles = "HOT_FILES";
+	
+	/**
+	 * Emitted by a backup index server to have the changes to the index
+	 * sent to it. The argument is ignored.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String replicaSubscribe = "REPLICA_SUBSCRIBE";
+	
 	/**
 	 * Events that this server will send back to the client.
 	 */
@@ -77,10 +224,59 @@ public class IndexServer {
 	 */
 	public static final String indexUpdateError = "INDEX_UPDATE_ERROR";
 	
+	/**
+	 * Emitted to tell a peer which catalog and version of its catalog the index
+	 * holds. The argument is a JSON string of the form
+	 * {"peer":"host:port","catalog":"id","version":7}, where the catalog is the
+	 * empty string if the index server knows nothing about the peer.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String indexVersion = "INDEX_VERSION";
+	
+	/**
+	 * Emitted in reply to {@link #peerUpdate} and {@link #peerHeartbeat},
+	 * to say that the peer's lease has been renewed. The argument is the
+	 * length of the lease in ms, as a decimal string. The peer must send
+	 * a {@link #peerHeartbeat} before then or the index server will
+	 * remove everything it holds for the peer.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String leaseGranted = "LEASE_GRANTED";
+	
+	/**
+	 * Emitted first in reply to a query. The argument is the total number
+	 * of files that matched, as a decimal string. Files that are removed
+	 * from the index while the results are being sent, or that are only
+	 * held by peers whose leases have expired, are left out, so fewer
+	 * results may follow.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String queryResponseHeader = "QUERY_RESPONSE_HEADER";
+	
+	/**
+	 * Emitted with a batch of query results. The argument is a list of
+	 * responses in the form "host:port:filename", separated by newlines,
+	 * of at most {@link pb.utils.Utils#batchSize} bytes. The first
+	 * {@link #initialQueryCredit} batches are sent straight away and
+	 * further batches only as the client asks for them with {@link #queryMore}.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String queryResponseBatch = "QUERY_RESPONSE_BATCH";
+	
 	/**
 	 * Emitted as a query response. The argument either gives
 	 * a response in the form "host:port:filename" or the empty
-	 * string "" to mean no more responses remain.
+	 * string "" to mean no more responses remain, which is sent
+	 * after the last {@link #queryResponseBatch}. Also emitted with
+	 * each new match of a standing query, see {@link #querySubscribe}.
 	 * <ul>
 	 * <li>{@code args[0] instanceof String}</li>
 	 * </ul>
@@ -88,21 +284,137 @@ public class IndexServer {
 	public static final String queryResponse = "QUERY_RESPONSE";
 	
 	/**
-	 * Emitted when the query was in error. No argument is given.
+	 * Emitted in reply to {@link #queryRanked}. The argument is JSON of the
+	 * form {"hits":["PeerIP:PeerPort:filename",...],"scores":[score,...],
+	 * "cursor":"..."}, with the most relevant files first. The cursor is ""
+	 * if there are no more results, and otherwise continues the query from
+	 * the last hit. A page may have fewer hits than the limit, to keep it
+	 * within {@link Utils#batchSize}.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String queryRankedResponse = "QUERY_RANKED_RESPONSE";
+	
+	/**
+	 * Emitted when the query was in error. The argument is the empty string.
 	 */
 	public static final String queryError = "QUERY_ERROR";
 	
 	/**
-	 * Storage of the key value index
-	 * "filename" to list of "PeerIP:PeerPort" strings that have that file
+	 * Emitted in reply to {@link #indexStats}. The argument is a list of
+	 * metrics in the form "name=value", separated by newlines.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String indexStatsResponse = "INDEX_STATS_RESPONSE";
+	
+	/**
+	 * Emitted in reply to {@link #loadStats}. The argument is a report of the
+	 * most frequent items of each kind, one per line in the form
+	 * "kind count item", most frequent first, where the kind is "query", "hit"
+	 * or "download" and the count may be an overestimate.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String loadStatsResponse = "LOAD_STATS_RESPONSE";
+	
+	/**
+	 * Emitted in reply to {@link #hotFiles}. The argument is a list of the
+	 * most downloaded filenames, most downloaded first, separated by newlines.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String hotFilesResponse = "HOT_FILES_RESPONSE";
+	
+	/**
+	 * Emitted to a backup index server with a batch of changes to the index,
+	 * as sent by an {@link IndexReplicator}.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String replicaChanges = "REPLICA_CHANGES";
+	
+	/**
+	 * The index of which peers have which files, created once the
+	 * command line options are known.
+	 */
+	private static FileIndex index;
+	
+	/**
+	 * Keeps the index on disk, or null if it is only kept in memory.
+	 */
+	private static IndexStore store=null;
+	
+	/**
+	 * True while this server is the backup of a primary index server. A backup
+	 * answers queries but rejects index updates, until it takes over from the
+	 * primary.
+	 */
+	private static volatile boolean backup=false;
+	
+	/**
+	 * The replicators sending the changes to the index to the backups
+	 * of this server, by the backup's endpoint.
 	 */
-	public static final Map<String,Set<String>> keyValueMap=new HashMap<>();
+	private static Map<Endpoint,IndexReplicator> replicators = new ConcurrentHashMap<>();
 	
 	/**
-	 * Last time seen "PeerIP:PeerPort" to timestamp, the last time the peer has
-	 * been seen. We will use this to give the most recent peer that has the file.
+	 * The standing queries of the clients, created once the index is.
 	 */
-	public static final Map<String,Long> lastTimeSeen=new HashMap<>();
+	private static StandingQueries<Endpoint> standingQueries;
+	
+	/**
+	 * The most frequent queries, by their {@link QueryCache#key(String[])},
+	 * the files most often returned by queries, and the files most often
+	 * downloaded from the sharing peers.
+	 */
+	private static final HeavyHitters hotQueries = new HeavyHitters();
+	private static final HeavyHitters hotHits = new HeavyHitters();
+	private static final HeavyHitters hotDownloads = new HeavyHitters();
+	
+	/**
+	 * Number of items of each kind listed by {@link #loadStats} by default,
+	 * and the largest number that can be asked for.
+	 */
+	public static final int defaultHotItems = 10;
+	public static final int maxHotItems = 100;
+	
+	/**
+	 * Number of the most frequent queries kept in the query cache, and the
+	 * time in ms between putting them back into it.
+	 */
+	private static final int warmQueries = 16;
+	private static final long warmInterval = 10*1000;
+	
+	/**
+	 * Largest number of files that a ranked query can ask for.
+	 */
+	public static final int maxRankedLimit = 1000;
+	
+	/**
+	 * Number of result batches sent before the client asks for more.
+	 */
+	public static final int initialQueryCredit = 2;
+	
+	/**
+	 * The results of a query that are still to be sent to a client, and how
+	 * many more batches the client is ready to receive.
+	 */
+	private static class QueryStream {
+		private final List<String> hits;
+		private int next=0;
+		private int credit=initialQueryCredit;
+		private boolean finished=false;
+		
+		QueryStream(List<String> hits) {
+			this.hits=hits;
+		}
+	}
 	
 	/**
 	 * The default port number for the server.
@@ -111,88 +423,339 @@ public class IndexServer {
 	
 
 	/**
-	 * Update the index with the filename and peerport.
-	 * @param filename
+	 * Tell the client which catalog and version the index holds for the peer.
 	 * @param peerport
+	 * @param client
+	 */
+	private static void transmitVersion(String peerport,Endpoint client) {
+		Document doc = new Document();
+		doc.append("peer", peerport);
+		FileIndex.CatalogVersion held=index.getCatalogVersion(peerport);
+		doc.append("catalog", held==null ? "" : held.catalog);
+		doc.append("version", held==null ? 0 : held.version);
+		client.emit(indexVersion, doc.toJson());
+	}
+	
+	/**
+	 * Transmit batches of hits while the client has credit for them, and the
+	 * end of results marker once all hits are sent. Each hit gives the peer that
+	 * has the file and that was the most recently seen, to try and make sure its
+	 * still online. Called on the endpoint thread for the query and for each
+	 * {@link #queryMore}.
+	 * @param stream
+	 * @param client
 	 */
-	private static void indexUpdate(String filename,String peerport) {
-		synchronized(keyValueMap) {
-			if(!keyValueMap.containsKey(filename)) {
-				keyValueMap.put(filename, new HashSet<String>());
+	private static void transmitHits(QueryStream stream,Endpoint client) {
+		synchronized(stream) {
+			while(stream.credit>0 && stream.next<stream.hits.size()) {
+				StringBuilder batch = new StringBuilder();
+				List<String> sent = new ArrayList<>();
+				int size=0;
+				while(stream.next<stream.hits.size()) {
+					String hit=stream.hits.get(stream.next);
+					String peer=index.bestPeer(hit);
+					if(peer==null) {
+						stream.next++;
+						continue; // removed since the query
+					}
+					String response=peer+":"+hit;
+					// with the newline before it
+					int responseSize=Utils.encodedLength(response)+2;
+					if(responseSize>Utils.batchSize) {
+						log.warning("Leaving out a query response that is too long to send: "+hit);
+						stream.next++;
+						continue;
+					}
+					if(size+responseSize>Utils.batchSize) break;
+					stream.next++;
+					if(!sent.isEmpty()) batch.append('\n');
+					batch.append(response);
+					size+=responseSize;
+					sent.add(hit);
+				}
+				int count=sent.size();
+				if(count==0) break;
+				hotHits.addAll(sent);
+				log.info("Sending query response batch of "+count+" hits");
+				client.emit(queryResponseBatch, batch.toString());
+				stream.credit--;
+			}
+			if(stream.next>=stream.hits.size() && !stream.finished) {
+				stream.finished=true;
+				log.info("Sending blank query response");
+				client.emit(queryResponse, "");
 			}
-			Set<String> possiblepeers=keyValueMap.get(filename);
-			possiblepeers.add(peerport);
 		}
 	}
 	
 	/**
-	 * Transmit a response for each hit. Return the peer that has the file
-	 * and that was the most recently seen, to try and make sure its still
-	 * online.
+	 * Generate hits from the substring index and start returning them to the client.
+	 * @param query a comma separated list of terms to search for
+	 * @param client
+	 * @return the stream of results for the client
+	 */
+	private static QueryStream queryIndex(String query,Endpoint client) {
+		String[] terms = query.split(",");
+		hotQueries.add(QueryCache.key(terms));
+		return streamHits(index.query(terms),client);
+	}
+	
+	/**
+	 * Generate hits allowing for misspelt words and start returning them to the client.
+	 * @param request the argument of {@link #queryFuzzy}
+	 * @param client
+	 * @return the stream of results for the client, or null if the request is not valid
+	 */
+	private static QueryStream queryFuzzy(String request,Endpoint client) {
+		String query;
+		int edits;
+		try {
+			Document doc = Document.parse(request);
+			query=doc.getString("query");
+			edits=(int) Math.min(doc.getLong("edits"),FuzzyDictionary.maxEdits);
+			if(query==null || edits<0) throw new IllegalArgumentException();
+		} catch (NullPointerException | ClassCastException | IllegalArgumentException e) {
+			log.warning("Fuzzy query is not valid: "+request);
+			client.emit(queryError, "");
+			return null;
+		}
+		return streamHits(index.fuzzyQuery(query.split(","),edits),client);
+	}
+	
+	/**
+	 * Start returning the hits of a query to the client.
 	 * @param hits
 	 * @param client
+	 * @return the stream of results for the client
 	 */
-	private static void transmitHits(List<String> hits,Endpoint client) {
-		if(hits.isEmpty()) {
-			log.info("Sending blank query response");
-			client.emit(queryResponse, "");
+	private static QueryStream streamHits(Set<String> hits,Endpoint client) {
+		QueryStream stream = new QueryStream(new ArrayList<String>(hits));
+		client.emit(queryResponseHeader, Integer.toString(hits.size()));
+		transmitHits(stream,client);
+		return stream;
+	}
+	
+	/**
+	 * Answer a ranked query with a page of the most relevant hits.
+	 * @param request the argument of {@link #queryRanked}
+	 * @param client
+	 */
+	private static void transmitRankedHits(String request,Endpoint client) {
+		String query;
+		int limit;
+		QueryRanker.ScoredHit after=null;
+		try {
+			Document doc = Document.parse(request);
+			query=doc.getString("query");
+			limit=(int) Math.min(doc.getLong("limit"),maxRankedLimit);
+			String cursor=doc.getString("cursor");
+			if(query==null || limit<1) throw new IllegalArgumentException();
+			if(cursor!=null && !cursor.isEmpty()) after=QueryRanker.ScoredHit.parseCursor(cursor);
+		} catch (NullPointerException | ClassCastException | IllegalArgumentException e) {
+			log.warning("Ranked query is not valid: "+request);
+			client.emit(queryError, "");
 			return;
 		}
-		String hit = hits.remove(0);
-		synchronized(keyValueMap) {
-			synchronized(lastTimeSeen) {
-				if(keyValueMap.containsKey(hit)) {
-					List<String> peers = new ArrayList<String>(keyValueMap.get(hit));
-					Collections.sort(peers,
-					new Comparator<String>() {
-						@Override
-						public int compare(String o1, String o2) {
-							// sort largest to smallest
-							return lastTimeSeen.get(o2).compareTo(lastTimeSeen.get(o1));
-						}
-					});
-					log.info("Sending query response: "+peers.get(0)+":"+hit);
-					client.emit(queryResponse, peers.get(0)+":"+hit);
+		String[] terms = query.split(",");
+		// count a query once, not once for each page
+		if(after==null) hotQueries.add(QueryCache.key(terms));
+		List<QueryRanker.ScoredHit> ranked=index.topHits(terms,limit,after);
+		ArrayList<String> hits = new ArrayList<>();
+		ArrayList<Long> scores = new ArrayList<>();
+		List<String> sent = new ArrayList<>();
+		// the page goes on from the last hit looked at, sent or not
+		QueryRanker.ScoredHit last=null;
+		boolean full=false;
+		int size=0;
+		for(QueryRanker.ScoredHit hit : ranked) {
+			String peer=index.bestPeer(hit.filename);
+			if(peer!=null) {
+				String response=peer+":"+hit.filename;
+				// the hit is escaped in the reply and again in the event, allow
+				// for the quotes and the score as well
+				size+=Utils.encodedLength(JSONValue.escape(response))+32;
+				if(size>Utils.batchSize && !hits.isEmpty()) {
+					full=true;
+					break;
 				}
-			}
+				hits.add(response);
+				scores.add(hit.score);
+				sent.add(hit.filename);
+			} // else its lease expired since the query
+			last=hit;
+		}
+		hotHits.addAll(sent);
+		// fewer hits than the limit were ranked, so there are no more
+		boolean more=last!=null && (full || ranked.size()==limit);
+		Document doc = new Document();
+		doc.append("hits",hits);
+		doc.append("scores",scores);
+		doc.append("cursor",more ? last.toCursor() : "");
+		log.info("Sending "+hits.size()+" ranked hits");
+		client.emit(queryRankedResponse, doc.toJson());
+	}
+	
+	/**
+	 * Parse the number of hot items asked for.
+	 * @param arg a decimal string, or the empty string for the default
+	 * @return the number of items, between 1 and {@link #maxHotItems}
+	 * @throws NumberFormatException if it is not a number
+	 */
+	private static int hotItems(String arg) {
+		if(arg.isEmpty()) return defaultHotItems;
+		return Math.max(1,Math.min(Integer.parseInt(arg),maxHotItems));
+	}
+	
+	/**
+	 * Send the most frequent queries, query hits and downloads to the client.
+	 * @param n the number of each kind to send
+	 * @param client
+	 */
+	private static void transmitLoadStats(int n,Endpoint client) {
+		StringBuilder report = new StringBuilder();
+		appendHot(report,"query",hotQueries,n);
+		appendHot(report,"hit",hotHits,n);
+		appendHot(report,"download",hotDownloads,n);
+		client.emit(loadStatsResponse,report.toString());
+	}
+	
+	private static void appendHot(StringBuilder report,String kind,HeavyHitters hitters,int n) {
+		report.append(kind).append(' ').append(hitters.getTotal()).append(" total\n");
+		for(HeavyHitters.Counter counter : hitters.top(n)) {
+			report.append(kind).append(' ').append(counter.getCount()).append(' ')
+				.append(counter.item).append('\n');
+		}
+	}
+	
+	/**
+	 * Send the most downloaded filenames to the client.
+	 * @param n the number of filenames to send
+	 * @param client
+	 */
+	private static void transmitHotFiles(int n,Endpoint client) {
+		StringBuilder files = new StringBuilder();
+		for(HeavyHitters.Counter counter : hotDownloads.top(n)) {
+			if(files.length()>0) files.append('\n');
+			files.append(counter.item);
+		}
+		client.emit(hotFilesResponse,files.toString());
+	}
+	
+	/**
+	 * Put the results of the most frequent queries back into the query cache,
+	 * if they have been evicted or invalidated, so the next time they are asked
+	 * they are answered from the cache. Done every {@link #warmInterval} ms from
+	 * now on.
+	 */
+	private static void warmQueryCache() {
+		for(HeavyHitters.Counter counter : hotQueries.top(warmQueries)) {
+			index.query(counter.item.split(","));
 		}
 		Utils.getInstance().setTimeout(()->{
-			transmitHits(hits,client);
-		}, 100); // transmit 10 hits per second... no real bandwidth control here.
+			warmQueryCache();
+		}, warmInterval);
 	}
 	
 	/**
-	 * Generate hits and return them to the client. Not a very
-	 * efficient search mechanism, but ok for testing.
-	 * @param query a comma separated list of terms to search for
+	 * Remove the peers whose leases have expired from the index, once
+	 * a second from now on.
 	 */
-	private static void queryIndex(String query,Endpoint client) {
-		String[] terms = query.split(",");
-		Set<String> hits = new HashSet<>();
-		List<String> filenames;
-		synchronized(keyValueMap) {
-			filenames=new ArrayList<String>(keyValueMap.keySet());
+	private static void sweepExpiredPeers() {
+		int removed=index.expirePeers();
+		if(removed>0) log.info("Removed "+removed+" peers whose leases expired");
+		Utils.getInstance().setTimeout(()->{
+			sweepExpiredPeers();
+		}, 1000);
+	}
+	
+	/**
+	 * Stop sending the changes to the index to the client, if it is a backup.
+	 * @param endpoint
+	 */
+	private static void stopReplicating(Endpoint endpoint) {
+		IndexReplicator replicator = replicators.remove(endpoint);
+		if(replicator!=null) {
+			log.info("Backup index server has gone: "+endpoint.getOtherEndpointId());
+			replicator.shutdown();
 		}
-		for(String filename : filenames) {
-			String filelower=filename.toLowerCase();
-			for(String term : terms) {
-				if(filelower.contains(term.toLowerCase())) {
-					hits.add(filename);
+	}
+	
+	/**
+	 * Follow the primary index server, applying the changes to its index
+	 * as they are received, and take over from it once it can no longer
+	 * be reached.
+	 * @param primaryHost
+	 * @param primaryPort
+	 * @throws UnknownHostException
+	 * @throws InterruptedException
+	 */
+	private static void followPrimary(String primaryHost,int primaryPort)
+			throws UnknownHostException, InterruptedException {
+		IndexReplicator.Receiver receiver = new IndexReplicator.Receiver(index);
+		ClientManager clientManager = new ClientManager(primaryHost,primaryPort);
+		// give up on the primary soon, the peers are waiting
+		clientManager.setMaxRetries(2);
+		clientManager.on(ClientManager.sessionStarted, (eventArgs)->{
+			Endpoint endpoint = (Endpoint)eventArgs[0];
+			log.info("Following primary index server: "+primaryHost+":"+primaryPort);
+			endpoint.on(replicaChanges, (eventArgs2)->{
+				try {
+					receiver.apply((String) eventArgs2[0]);
+				} catch (IllegalArgumentException e) {
+					log.severe(e.getMessage());
 				}
+			});
+			endpoint.emit(replicaSubscribe, "");
+		}).on(ClientManager.sessionError, (eventArgs)->{
+			log.warning("Lost the primary index server: "+primaryHost+":"+primaryPort);
+		});
+		clientManager.start();
+		Thread promoter = new Thread(()->{
+			try {
+				clientManager.join();
+			} catch (InterruptedException e) {
+				log.warning("interrupted while following the primary");
 			}
+			promote();
+		});
+		promoter.setDaemon(true);
+		promoter.start();
+	}
+	
+	/**
+	 * Take over from the primary index server.
+	 */
+	private static void promote() {
+		backup=false;
+		log.info("Primary index server can no longer be reached, taking over");
+		sweepExpiredPeers();
+	}
+	
+	/**
+	 * Wait until the changes made to the index so far are on disk, if the
+	 * index is being kept on disk.
+	 */
+	private static void awaitDurable() {
+		if(store==null) return;
+		try {
+			store.sync();
+		} catch (InterruptedException e) {
+			log.warning("interrupted while waiting for the index to be written");
 		}
-		transmitHits(new ArrayList<String>(hits),client);
 	}
 	
 	/**
-	 * Keep a time stamp of the last time we've seen this peer. Multiple
-	 * endpoints could call this at the same time.
-	 * @param peerport
+	 * Send the index and query cache metrics to the client.
+	 * @param client
 	 */
-	private static void peerUpdate(String peerport) {
-		synchronized(lastTimeSeen) {
-			lastTimeSeen.put(peerport, Instant.now().toEpochMilli());
+	private static void transmitStats(Endpoint client) {
+		StringBuilder stats = new StringBuilder();
+		Map<String,Long> metrics=index.getStats();
+		metrics.putAll(standingQueries.getStats());
+		for(Map.Entry<String,Long> metric : metrics.entrySet()) {
+			stats.append(metric.getKey()).append("=").append(metric.getValue()).append("\n");
 		}
+		client.emit(indexStatsResponse,stats.toString());
 	}
 	
 	private static void help(Options options){
@@ -203,7 +766,7 @@ public class IndexServer {
 		System.exit(-1);
 	}
 	
-	public static void main( String[] args ) throws IOException
+	public static void main( String[] args ) throws IOException, InterruptedException
     {
     	// set a nice log format
 		System.setProperty("java.util.logging.SimpleFormatter.format",
@@ -213,6 +776,22 @@ public class IndexServer {
         Options options = new Options();
         options.addOption("port",true,"server port, an integer");
         options.addOption("password",true,"password for server");
+        options.addOption("dataDir",true,"directory to keep the index in across restarts,"
+        		+ " by default the index is only kept in memory");
+        options.addOption("segmentDir",true,"directory to keep the substring index in, off the heap"
+        		+ " in memory mapped segments, for very large indexes; the filenames themselves stay"
+        		+ " on the heap");
+        options.addOption("leaseTime",true,"seconds that a peer stays in the index without"
+        		+ " a heartbeat, default "+FileIndex.defaultLeaseTime/1000);
+        options.addOption("primary",true,"host:port of the primary index server,"
+        		+ " to run as its backup until it can no longer be reached");
+        options.addOption("cacheSize",true,"number of query results to cache, 0 to disable, default "+
+        		FileIndex.defaultCacheSize+"; the results hold at most "+QueryCache.hitsPerEntry
+        		+" filenames for each");
+        options.addOption("partitions",true,"number of partitions of the substring index that queries"
+        		+ " run over in parallel, default "+FileIndex.defaultPartitions);
+        options.addOption("parallelThreshold",true,"number of files in the index at which queries"
+        		+ " run over the partitions in parallel, default "+FileIndex.defaultParallelThreshold);
         
        
         CommandLineParser parser = new DefaultParser();
@@ -232,6 +811,76 @@ public class IndexServer {
 			}
         }
         
+        int cacheSize=FileIndex.defaultCacheSize;
+        if(cmd.hasOption("cacheSize")){
+        	try{
+        		cacheSize = Integer.parseInt(cmd.getOptionValue("cacheSize"));
+        		if(cacheSize<0) throw new NumberFormatException();
+			} catch (NumberFormatException e){
+				System.out.println("-cacheSize requires a non-negative integer, parsed: "+cmd.getOptionValue("cacheSize"));
+				help(options);
+			}
+        }
+        long leaseTime=FileIndex.defaultLeaseTime;
+        if(cmd.hasOption("leaseTime")){
+        	try{
+        		leaseTime = Long.parseLong(cmd.getOptionValue("leaseTime"))*1000;
+        		if(leaseTime<=0) throw new NumberFormatException();
+			} catch (NumberFormatException e){
+				System.out.println("-leaseTime requires a positive integer, parsed: "+cmd.getOptionValue("leaseTime"));
+				help(options);
+			}
+        }
+        int partitions=FileIndex.defaultPartitions;
+        if(cmd.hasOption("partitions")){
+        	try{
+        		partitions = Integer.parseInt(cmd.getOptionValue("partitions"));
+        		if(partitions<=0) throw new NumberFormatException();
+			} catch (NumberFormatException e){
+				System.out.println("-partitions requires a positive integer, parsed: "+cmd.getOptionValue("partitions"));
+				help(options);
+			}
+        }
+        int parallelThreshold=FileIndex.defaultParallelThreshold;
+        if(cmd.hasOption("parallelThreshold")){
+        	try{
+        		parallelThreshold = Integer.parseInt(cmd.getOptionValue("parallelThreshold"));
+        		if(parallelThreshold<0) throw new NumberFormatException();
+			} catch (NumberFormatException e){
+				System.out.println("-parallelThreshold requires a non-negative integer, parsed: "+
+						cmd.getOptionValue("parallelThreshold"));
+				help(options);
+			}
+        }
+        if(cmd.hasOption("segmentDir")) {
+        	index=new FileIndex(cacheSize,leaseTime,Paths.get(cmd.getOptionValue("segmentDir")),
+        			partitions,parallelThreshold);
+        } else {
+        	index=new FileIndex(cacheSize,leaseTime,partitions,parallelThreshold);
+        }
+        standingQueries=new StandingQueries<>((endpoint,match)->endpoint.emit(queryResponse,match));
+        index.addChangeHandler(standingQueries);
+        standingQueries.start();
+        if(cmd.hasOption("dataDir")) {
+        	store=new IndexStore(Paths.get(cmd.getOptionValue("dataDir")));
+        	store.load(index);
+        	store.start();
+        }
+        String primaryHost=null;
+        int primaryPort=0;
+        if(cmd.hasOption("primary")) {
+        	String[] parts=cmd.getOptionValue("primary").split(":");
+        	try {
+        		if(parts.length!=2) throw new NumberFormatException();
+        		primaryHost=parts[0];
+        		primaryPort=Integer.parseInt(parts[1]);
+        	} catch (NumberFormatException e) {
+        		System.out.println("-primary requires host:port, parsed: "+cmd.getOptionValue("primary"));
+        		help(options);
+        	}
+        	backup=true;
+        }
+        
         // create a server manager and setup event handlers
         ServerManager serverManager;
         
@@ -247,31 +896,130 @@ public class IndexServer {
         serverManager.on(ServerManager.sessionStarted,(eventArgs)->{
         	Endpoint endpoint = (Endpoint)eventArgs[0];
         	log.info("Client session started: "+endpoint.getOtherEndpointId());
+        	// the results of this client's latest query
+        	AtomicReference<QueryStream> queryStream = new AtomicReference<>();
         	endpoint.on(indexUpdate, (eventArgs2)->{
         		String update = (String) eventArgs2[0];
         		log.info("Received index update: "+update);
         		String[] parts=update.split(":",3);
-        		if(parts.length!=3) {
+        		if(parts.length!=3 || backup) {
         			endpoint.emit(indexUpdateError,update);
         		} else {
 	        		String peerport = parts[0]+":"+parts[1];
-	        		indexUpdate(parts[2],peerport);
+	        		index.indexUpdate(parts[2],peerport);
         		}
+        	}).on(indexUpdateBatch, (eventArgs2)->{
+        		String update = (String) eventArgs2[0];
+        		if(backup) {
+        			// the peer should try the primary
+        			endpoint.emit(indexUpdateError,update);
+        			return;
+        		}
+        		CatalogDelta batch;
+        		try {
+        			batch = CatalogDelta.parse(update);
+        		} catch (IllegalArgumentException e) {
+        			log.warning(e.getMessage());
+        			endpoint.emit(indexUpdateError,update);
+        			return;
+        		}
+        		log.info("Received index update batch of "+batch.size()+" changes from "+
+        				batch.getPeer()+" for version "+batch.getVersion());
+        		boolean applied=index.indexUpdateBatch(batch);
+        		if(batch.isLast()) {
+        			if(!applied) log.info("Index update batch did not match the version held for: "+
+        					batch.getPeer());
+        			// don't confirm a version that could be lost
+        			awaitDurable();
+        			// either confirms the new version or asks the peer to try again
+        			transmitVersion(batch.getPeer(),endpoint);
+        		}
+        	}).on(indexSync, (eventArgs2)->{
+        		String peerport = (String) eventArgs2[0];
+        		log.info("Received index sync: "+peerport);
+        		transmitVersion(peerport,endpoint);
         	}).on(queryIndex, (eventArgs2)->{
         		String query = (String) eventArgs2[0];
         		log.info("Received query: "+query);
-        		queryIndex(query,endpoint);
+        		queryStream.set(queryIndex(query,endpoint));
+        	}).on(queryFuzzy, (eventArgs2)->{
+        		String request = (String) eventArgs2[0];
+        		log.info("Received fuzzy query: "+request);
+        		queryStream.set(queryFuzzy(request,endpoint));
+        	}).on(queryRanked, (eventArgs2)->{
+        		String request = (String) eventArgs2[0];
+        		log.info("Received ranked query: "+request);
+        		transmitRankedHits(request,endpoint);
+        	}).on(querySubscribe, (eventArgs2)->{
+        		String query = (String) eventArgs2[0];
+        		log.info("Received standing query: "+query);
+        		if(query.isEmpty()) {
+        			standingQueries.unsubscribe(endpoint);
+        			log.info("Cancelled standing query of: "+endpoint.getOtherEndpointId());
+        		} else {
+        			standingQueries.subscribe(endpoint,query.split(","));
+        		}
+        	}).on(queryMore, (eventArgs2)->{
+        		QueryStream stream = queryStream.get();
+        		if(stream==null) return;
+        		try {
+        			int credit = Integer.parseInt((String) eventArgs2[0]);
+        			synchronized(stream) {
+        				stream.credit+=credit;
+        			}
+        			transmitHits(stream,endpoint);
+        		} catch (NumberFormatException e) {
+        			endpoint.emit(queryError, "");
+        		}
         	}).on(peerUpdate, (eventArgs2)->{
         		String peerport = (String) eventArgs2[0];
         		log.info("Received peer update: "+peerport);
-        		peerUpdate(peerport);
+        		index.peerUpdate(peerport);
+        		endpoint.emit(leaseGranted, Long.toString(index.getLeaseTime()));
+        	}).on(peerHeartbeat, (eventArgs2)->{
+        		String peerport = (String) eventArgs2[0];
+        		boolean known=index.renewLease(peerport);
+        		endpoint.emit(leaseGranted, Long.toString(index.getLeaseTime()));
+        		if(!known) {
+        			log.info("Received heartbeat from a peer that is not in the index: "+peerport);
+        			transmitVersion(peerport,endpoint);
+        		}
+        	}).on(indexStats, (eventArgs2)->{
+        		log.info("Received index stats request");
+        		transmitStats(endpoint);
+        	}).on(fileServed, (eventArgs2)->{
+        		hotDownloads.add((String) eventArgs2[0]);
+        	}).on(loadStats, (eventArgs2)->{
+        		log.info("Received load stats request");
+        		try {
+        			transmitLoadStats(hotItems((String) eventArgs2[0]),endpoint);
+        		} catch (NumberFormatException e) {
+        			endpoint.emit(queryError, "");
+        		}
+        	}).on(hotFiles, (eventArgs2)->{
+        		try {
+        			transmitHotFiles(hotItems((String) eventArgs2[0]),endpoint);
+        		} catch (NumberFormatException e) {
+        			endpoint.emit(queryError, "");
+        		}
+        	}).on(replicaSubscribe, (eventArgs2)->{
+        		log.info("Backup index server subscribed: "+endpoint.getOtherEndpointId());
+        		IndexReplicator started = new IndexReplicator(index,
+        				(changes)->endpoint.emit(replicaChanges,changes),Utils.batchSize);
+        		IndexReplicator previous = replicators.put(endpoint,started);
+        		if(previous!=null) previous.shutdown();
+        		started.start();
         	});
         }).on(ServerManager.sessionStopped,(eventArgs)->{
         	Endpoint endpoint = (Endpoint)eventArgs[0];
         	log.info("Client session ended: "+endpoint.getOtherEndpointId());
+        	stopReplicating(endpoint);
+        	standingQueries.unsubscribe(endpoint);
         }).on(ServerManager.sessionError, (eventArgs)->{
         	Endpoint endpoint = (Endpoint)eventArgs[0];
         	log.warning("Client session ended in error: "+endpoint.getOtherEndpointId());
+        	stopReplicating(endpoint);
+        	standingQueries.unsubscribe(endpoint);
         }).on(IOThread.ioThread, (eventArgs)->{
         	String peerport = (String) eventArgs[0];
         	// we don't need this info, but let's log it
@@ -281,6 +1029,19 @@ public class IndexServer {
         // start up the server
         log.info("PB Index Server starting up");
         serverManager.start();
+        if(backup) {
+        	// the primary expires the peers until we take over
+        	followPrimary(primaryHost,primaryPort);
+        } else {
+        	sweepExpiredPeers();
+        }
+        if(cacheSize>0) warmQueryCache();
+        // nothing more for the main thread to do
+        serverManager.join();
+        if(store!=null) store.shutdown();
+        standingQueries.shutdown();
+        index.shutdown();
+        Utils.getInstance().cleanUp();
         
     }
 
@@ -0,0 +1,222 @@
+package pb.index;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+import pb.protocols.Document;
+
+/**
+ * A set of changes to a peer's {@link ShareCatalog}, taking the index server's
+ * view of the catalog from version {@link #getBase()} to version
+ * {@link #getVersion()}. The changes are net changes, so applying the same delta
+ * twice has no further effect. A delta that is a reset replaces everything that
+ * the index server knows about the peer.
+ * <br/>
+ * A delta is transmitted as one or more batches, each one small enough to fit in
+ * a single event, and only the last batch moves the index server to the new
+ * version. A batch is marshaled as a JSON string, e.g.
+ * <pre>
+ * {"peer":"host:port","catalog":"id","base":3,"version":7,"reset":false,
+ *  "last":true,"adds":["a.txt","b.txt"],"removes":["c.txt"]}
+ * </pre>
+ * @see {@link pb.index.ShareCatalog}
+ * @author aaron
+ *
+ */
+public class CatalogDelta {
+
+	/**
+	 * Approximate overhead in bytes of each filename in a batch,
+	 * for quotes and commas.
+	 */
+	private static final int entryOverhead = 8;
+
+	/**
+	 * The "host:port" of the peer that owns the catalog.
+	 */
+	private String peer;
+
+	/**
+	 * The catalog id.
+	 */
+	private String catalog;
+
+	/**
+	 * The version that the changes apply to.
+	 */
+	private long base;
+
+	/**
+	 * The version after the changes have been applied.
+	 */
+	private long version;
+
+	/**
+	 * Whether the changes replace everything known about the peer.
+	 */
+	private boolean reset;
+
+	/**
+	 * Whether this is the last batch of the delta.
+	 */
+	private boolean last=true;
+
+	/**
+	 * Filenames added.
+	 */
+	private List<String> adds;
+
+	/**
+	 * Filenames removed.
+	 */
+	private List<String> removes;
+
+	public CatalogDelta(String peer,String catalog,long base,long version,boolean reset,
+			List<String> adds,List<String> removes) {
+		this.peer=peer;
+		this.catalog=catalog;
+		this.base=base;
+		this.version=version;
+		this.reset=reset;
+		this.adds=adds;
+		this.removes=removes;
+	}
+
+	/**
+	 * Parse a batch from its JSON string.
+	 * @param json
+	 * @return the batch
+	 * @throws IllegalArgumentException if the string is not a valid batch
+	 */
+	public static CatalogDelta parse(String json) {
+		Document doc = Document.parse(json);
+		try {
+			CatalogDelta delta = new CatalogDelta(doc.getString("peer"),doc.getString("catalog"),
+					doc.getLong("base"),doc.getLong("version"),doc.getBoolean("reset"),
+					toStrings(doc.get("adds")),toStrings(doc.get("removes")));
+			delta.last=doc.getBoolean("last");
+			if(delta.peer==null || delta.catalog==null)
+				throw new IllegalArgumentException("batch is missing the peer or catalog");
+			return delta;
+		} catch (ClassCastException | NullPointerException e) {
+			throw new IllegalArgumentException("batch is not valid: "+json);
+		}
+	}
+
+	private static List<String> toStrings(Object list) {
+		List<String> strings = new ArrayList<>();
+		for(Object o : (List<?>)list) {
+			strings.add((String)o);
+		}
+		return strings;
+	}
+
+	/**
+	 * @return the batch as a JSON string
+	 */
+	public String toJson() {
+		Document doc = new Document();
+		doc.append("peer",peer);
+		doc.append("catalog",catalog);
+		doc.append("base",base);
+		doc.append("version",version);
+		doc.append("reset",reset);
+		doc.append("last",last);
+		doc.append("adds",new ArrayList<String>(adds));
+		doc.append("removes",new ArrayList<String>(removes));
+		return doc.toJson();
+	}
+
+	/**
+	 * Split the delta into batches, each holding at most maxBytes of
+	 * filenames. Only the last batch is marked as last and only the first
+	 * batch can be a reset, so that a reset does not wipe out earlier batches
+	 * of the same delta.
+	 * @param maxBytes
+	 * @return the batches, of which there is always at least one
+	 */
+	public List<CatalogDelta> toBatches(int maxBytes) {
+		List<CatalogDelta> batches = new ArrayList<>();
+		CatalogDelta batch = new CatalogDelta(peer,catalog,base,version,reset,
+				new ArrayList<>(),new ArrayList<>());
+		int size=0;
+		for(int i=0;i<adds.size()+removes.size();i++) {
+			boolean isAdd=i<adds.size();
+			String filename = isAdd ? adds.get(i) : removes.get(i-adds.size());
+			int entrySize=filename.getBytes(StandardCharsets.UTF_8).length+entryOverhead;
+			if(size>0 && size+entrySize>maxBytes) {
+				batch.last=false;
+				batches.add(batch);
+				batch = new CatalogDelta(peer,catalog,base,version,false,
+						new ArrayList<>(),new ArrayList<>());
+				size=0;
+			}
+			if(isAdd) batch.adds.add(filename); else batch.removes.add(filename);
+			size+=entrySize;
+		}
+		batch.last=true;
+		batches.add(batch);
+		return batches;
+	}
+
+	/**
+	 * The part of the delta for the filenames that pass the filter, for
+	 * instance the filenames that are owned by one shard of the index.
+	 * @param keep
+	 * @return a delta with the same versions, holding only the kept changes
+	 */
+	public CatalogDelta filter(Predicate<String> keep) {
+		List<String> keptAdds = new ArrayList<>();
+		List<String> keptRemoves = new ArrayList<>();
+		for(String filename : adds) {
+			if(keep.test(filename)) keptAdds.add(filename);
+		}
+		for(String filename : removes) {
+			if(keep.test(filename)) keptRemoves.add(filename);
+		}
+		CatalogDelta delta = new CatalogDelta(peer,catalog,base,version,reset,keptAdds,keptRemoves);
+		delta.last=last;
+		return delta;
+	}
+
+	public String getPeer() {
+		return peer;
+	}
+
+	public String getCatalog() {
+		return catalog;
+	}
+
+	public long getBase() {
+		return base;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public boolean isReset() {
+		return reset;
+	}
+
+	public boolean isLast() {
+		return last;
+	}
+
+	public List<String> getAdds() {
+		return adds;
+	}
+
+	public List<String> getRemoves() {
+		return removes;
+	}
+
+	/**
+	 * @return the number of changes in the delta
+	 */
+	public int size() {
+		return adds.size()+removes.size();
+	}
+}
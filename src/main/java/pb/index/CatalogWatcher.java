@@ -0,0 +1,318 @@
+package pb.index;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import pb.protocols.ICallback;
+
+/**
+ * Keeps a {@link ShareCatalog} in step with the files under a number of shared
+ * directories. The directories are first scanned in parallel on the common
+ * fork/join pool, registering every directory with a {@link WatchService}. The
+ * watcher thread then collects file system events, waiting until there have been
+ * no new events for {@link #debounceDelay} ms (or at most {@link #maxDelay} ms)
+ * before applying them to the catalog, so that a burst of changes turns into a
+ * single catalog change and a single callback.
+ * <br/>
+ * Symbolic links to directories under the shared directories are not
+ * followed, so that a link to a parent directory does not make a scan recurse
+ * for ever; symbolic links to files are shared like the files.
+ * <br/>
+ * Files are added to the catalog by the name of their shared directory
+ * followed by their path under it, separated by "/", such as
+ * {@code music/jazz/track.mp3} for a file under the shared directory
+ * {@code /home/aaron/music}, so that where the files are on this host is not
+ * published. {@link #resolve(String)} turns such a name back into the file.
+ * @see {@link pb.index.ShareCatalog}
+ * @author aaron
+ *
+ */
+public class CatalogWatcher extends Thread {
+	private static Logger log = Logger.getLogger(CatalogWatcher.class.getName());
+
+	/**
+	 * Time in ms without new events before pending changes are applied.
+	 */
+	private static final long debounceDelay = 500;
+
+	/**
+	 * Maximum time in ms that a change is held back during a long burst of events.
+	 */
+	private static final long maxDelay = 5000;
+
+	/**
+	 * The catalog to keep up to date.
+	 */
+	private final ShareCatalog catalog;
+
+	/**
+	 * The shared directories.
+	 */
+	private final List<Path> dirs;
+
+	/**
+	 * The name that each shared directory is published under, to the directory.
+	 */
+	private final Map<String,Path> roots;
+
+	/**
+	 * Called after changes have been applied to the catalog.
+	 */
+	private final ICallback onChange;
+
+	/**
+	 * The watch service that all directories are registered with.
+	 */
+	private final WatchService watchService;
+
+	/**
+	 * Watch key to the directory it watches. Written by the scanning threads.
+	 */
+	private final Map<WatchKey,Path> watchedDirs;
+
+	/**
+	 * Paths that have had events since the last changes were applied.
+	 */
+	private final Set<Path> pending;
+
+	/**
+	 * Initialise the watcher, the directories are not scanned until {@link #scan()}.
+	 * @param catalog the catalog to add files to
+	 * @param dirs the directories to share
+	 * @param onChange called on the watcher thread after the catalog changes
+	 * @throws IOException if the watch service is not available
+	 */
+	public CatalogWatcher(ShareCatalog catalog,List<Path> dirs,ICallback onChange) throws IOException {
+		this.catalog=catalog;
+		this.dirs=new ArrayList<>();
+		roots=new ConcurrentHashMap<>();
+		for(Path dir : dirs) {
+			Path root=dir.toAbsolutePath().normalize();
+			String name=root.getFileName()!=null ? root.getFileName().toString() : "root";
+			// two shared directories with the same name are told apart by a number
+			String unique=name;
+			for(int i=2;roots.containsKey(unique);i++) unique=name+"-"+i;
+			roots.put(unique,root);
+			this.dirs.add(root);
+		}
+		this.onChange=onChange;
+		watchService=FileSystems.getDefault().newWatchService();
+		watchedDirs=new ConcurrentHashMap<>();
+		pending=new HashSet<>();
+		setName("CatalogWatcher");
+		setDaemon(true);
+	}
+
+	/**
+	 * Scan all of the shared directories in parallel, adding every regular file
+	 * to the catalog. Returns when the scan is complete.
+	 */
+	public void scan() {
+		List<DirectoryScan> scans = new ArrayList<>();
+		for(Path dir : dirs) {
+			scans.add(new DirectoryScan(dir));
+		}
+		ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected void compute() {
+				invokeAll(scans);
+			}
+		});
+		log.info("scanned "+dirs.size()+" directories, found "+catalog.size()+" files");
+	}
+
+	/**
+	 * @param path a file or directory under one of the shared directories
+	 * @return the name that the path is published under, or null if it is not
+	 * under a shared directory
+	 */
+	public String nameOf(Path path) {
+		for(Map.Entry<String,Path> root : roots.entrySet()) {
+			if(!path.startsWith(root.getValue())) continue;
+			StringBuilder name = new StringBuilder(root.getKey());
+			for(Path part : root.getValue().relativize(path)) {
+				if(part.toString().isEmpty()) continue;
+				name.append('/').append(part);
+			}
+			return name.toString();
+		}
+		return null;
+	}
+
+	/**
+	 * @param name a name as published by {@link #nameOf(Path)}
+	 * @return the path that the name is for, or null if the name is not under
+	 * one of the shared directories
+	 */
+	public Path resolve(String name) {
+		String[] parts=name.split("/",-1);
+		Path path=roots.get(parts[0]);
+		if(path==null) return null;
+		for(int i=1;i<parts.length;i++) {
+			// nothing outside of the shared directory is given out
+			if(parts[i].isEmpty() || parts[i].equals(".") || parts[i].equals("..")) return null;
+			try {
+				path=path.resolve(parts[i]);
+			} catch (InvalidPathException e) {
+				return null;
+			}
+			if(path.getNameCount()==0 || !path.getFileName().toString().equals(parts[i])) return null;
+		}
+		return path;
+	}
+
+	/**
+	 * Stop watching.
+	 */
+	public void shutdown() {
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			log.warning("watch service did not close properly: "+e.getMessage());
+		}
+		interrupt();
+	}
+
+	@Override
+	public void run() {
+		long firstPending=0;
+		while(!isInterrupted()) {
+			WatchKey key;
+			try {
+				if(pending.isEmpty()) {
+					key=watchService.take();
+				} else {
+					key=watchService.poll(debounceDelay,TimeUnit.MILLISECONDS);
+				}
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				break;
+			}
+			if(key!=null) {
+				if(pending.isEmpty()) firstPending=Instant.now().toEpochMilli();
+				collectEvents(key);
+			}
+			if(!pending.isEmpty() && (key==null ||
+					Instant.now().toEpochMilli()-firstPending>maxDelay)) {
+				applyPending();
+			}
+		}
+		log.info("catalog watcher terminating");
+	}
+
+	/**
+	 * Add the paths of the key's events to the pending set.
+	 * @param key
+	 */
+	private void collectEvents(WatchKey key) {
+		Path dir=watchedDirs.get(key);
+		for(WatchEvent<?> event : key.pollEvents()) {
+			if(dir==null) continue;
+			if(event.kind()==OVERFLOW) {
+				// events were lost, so look at the whole directory again
+				pending.add(dir);
+			} else {
+				pending.add(dir.resolve((Path)event.context()));
+			}
+		}
+		if(!key.reset()) {
+			watchedDirs.remove(key);
+		}
+	}
+
+	/**
+	 * Apply the pending paths to the catalog and tell the callback if the
+	 * catalog changed.
+	 */
+	private void applyPending() {
+		long version=catalog.getVersion();
+		for(Path path : pending) {
+			String name=nameOf(path);
+			if(name==null) continue;
+			if(Files.isDirectory(path,LinkOption.NOFOLLOW_LINKS)) {
+				// new directory, or one that overflowed; the scan will not
+				// find files that have gone, so remove those first
+				for(String filename : catalog.getFilesUnder(name)) {
+					Path file=resolve(filename);
+					if(file==null || !Files.isRegularFile(file))
+						catalog.remove(filename);
+				}
+				ForkJoinPool.commonPool().invoke(new DirectoryScan(path));
+			} else if(Files.isRegularFile(path)) {
+				catalog.add(name);
+			} else {
+				// removed file or directory
+				catalog.remove(name);
+				for(String filename : catalog.getFilesUnder(name)) {
+					catalog.remove(filename);
+				}
+			}
+		}
+		pending.clear();
+		if(catalog.getVersion()!=version) {
+			log.info("catalog changed to version "+catalog.getVersion());
+			onChange.callback();
+		}
+	}
+
+	/**
+	 * Scan a directory, registering it with the watch service and forking
+	 * a scan of each of its subdirectories.
+	 */
+	private class DirectoryScan extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Path dir;
+
+		DirectoryScan(Path dir) {
+			this.dir=dir;
+		}
+
+		@Override
+		protected void compute() {
+			List<DirectoryScan> subdirs = new ArrayList<>();
+			List<String> files = new ArrayList<>();
+			try {
+				watchedDirs.put(dir.register(watchService,ENTRY_CREATE,ENTRY_DELETE),dir);
+				try(DirectoryStream<Path> stream=Files.newDirectoryStream(dir)) {
+					for(Path path : stream) {
+						if(Files.isDirectory(path,LinkOption.NOFOLLOW_LINKS)) {
+							subdirs.add(new DirectoryScan(path));
+						} else if(Files.isRegularFile(path)) {
+							String name=nameOf(path);
+							if(name!=null) files.add(name);
+						}
+					}
+				}
+			} catch (IOException | ClosedWatchServiceException e) {
+				log.warning("could not scan directory "+dir+": "+e.getMessage());
+			}
+			catalog.addAll(files);
+			invokeAll(subdirs);
+		}
+	}
+}
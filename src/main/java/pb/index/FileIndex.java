@@ -0,0 +1,792 @@
+package pb.index;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The index of which peers have which files, as used by the
+ * {@link pb.IndexServer}. All of the structures are concurrent, so that index
+ * updates from many peers and queries can proceed in parallel on their endpoint
+ * threads without a global lock. Changes to a single filename are atomic, since
+ * they are made inside {@link ConcurrentHashMap#compute}, and the changes for a
+ * single peer are made one at a time using striped locks.
+ * <br/>
+ * The peers that have a file are kept ordered from the most to the least
+ * recently seen, so the best peers for a file are simply the first few of its
+ * holders and no sorting is needed when answering queries. When a peer is seen
+ * again its entries are moved to the front of the holders of each of its files.
+ * <br/>
+ * Filenames and peers are interned as int ids by {@link IdDictionary}s, so
+ * each is kept once. The holders of a file are an array of peer ids that is
+ * replaced whenever it changes, so it is read without locking, and the files
+ * of a peer are an {@link IntSet} of file ids. A (file, peer) pair costs a few
+ * bytes rather than the objects of a set entry and a map entry of strings.
+ * {@link IndexBenchmark} reports the memory used for each pair.
+ * <br/>
+ * The substring index can be split into partitions, so that a query over a
+ * large index is evaluated on several cores.
+ * @see {@link pb.index.TrigramIndex}
+ * @see {@link pb.index.CatalogDelta}
+ * @author aaron
+ *
+ */
+public class FileIndex {
+
+	/**
+	 * Number of locks that peers are striped over.
+	 */
+	private static final int numPeerLocks = 64;
+
+	/**
+	 * Default number of queries to cache.
+	 */
+	public static final int defaultCacheSize = 1024;
+
+	/**
+	 * Default length of a peer's lease in ms.
+	 */
+	public static final long defaultLeaseTime = 60*1000;
+
+	/**
+	 * Default number of partitions of the substring index, one per core.
+	 */
+	public static final int defaultPartitions = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Default number of filenames at which queries run over the partitions in parallel.
+	 */
+	public static final int defaultParallelThreshold = 50000;
+
+	/**
+	 * Length of a tick of the lease timer wheel in ms, and its number of slots.
+	 */
+	private static final long leaseTick = 1000;
+	private static final int leaseSlots = 256;
+
+	/**
+	 * The catalog and version of a peer's catalog that the index holds.
+	 */
+	public static class CatalogVersion {
+		public final String catalog;
+		public final long version;
+
+		public CatalogVersion(String catalog,long version) {
+			this.catalog=catalog;
+			this.version=version;
+		}
+	}
+
+	/**
+	 * Storage of the key value index, "filename" interned as a file id, with
+	 * the ids of the peers that have that file, most recently seen first. A
+	 * filename is released when no peers have it.
+	 */
+	private final IdDictionary<int[]> keyValueMap;
+
+	/**
+	 * "PeerIP:PeerPort" interned as a peer id, with the last time the peer has
+	 * been seen, or null if it has not been seen. This is the time that the
+	 * peer's holder entries are ordered by. A removed peer keeps its id until
+	 * the second expiry after it was removed, so that a holder read without
+	 * locking does not turn into another peer, and then its id is released.
+	 */
+	private final IdDictionary<Long> peerIds;
+
+	/**
+	 * Peers removed since the last expiry, and those removed in the interval
+	 * before it, whose ids are released by the next expiry, guarded by
+	 * retireLock.
+	 */
+	private final Object retireLock = new Object();
+	private List<String> retiring = new ArrayList<>();
+	private List<String> retired = new ArrayList<>();
+
+	/**
+	 * Number of (file, peer) pairs in the index.
+	 */
+	private final AtomicLong holders = new AtomicLong();
+
+	/**
+	 * Substring index of the filenames in {@link #keyValueMap}.
+	 */
+	private final IFilenameIndex trigramIndex;
+
+	/**
+	 * The tokens of the filenames in {@link #keyValueMap}, for fuzzy queries.
+	 */
+	private final FuzzyDictionary tokens = new FuzzyDictionary();
+
+	/**
+	 * Results of recent queries, kept up to date as filenames are added and removed.
+	 */
+	private final QueryCache queryCache;
+
+	/**
+	 * "PeerIP:PeerPort" to the ids of the files that the peer has in the index,
+	 * so that a peer's files can be removed when its catalog changes. Each set
+	 * is guarded by its peer's lock.
+	 */
+	private final Map<String,IntSet> peerFiles;
+
+	/**
+	 * "PeerIP:PeerPort" to the catalog and version that the index holds for the peer.
+	 */
+	private final Map<String,CatalogVersion> peerCatalogs;
+
+	/**
+	 * Locks for changes to the entries of a peer, striped by peer.
+	 */
+	private final Object[] peerLocks;
+
+	/**
+	 * Told about every change to the index, for instance to keep it on disk.
+	 */
+	private final List<IIndexChangeHandler> changeHandlers = new CopyOnWriteArrayList<>();
+
+	/**
+	 * The leases of the peers in the index. A peer's holder entries are not
+	 * used once its lease has expired, and are removed by {@link #expirePeers()}.
+	 */
+	private final PeerLeases leases;
+
+	/**
+	 * Number of peers removed because their leases expired.
+	 */
+	private final AtomicLong expiredPeers = new AtomicLong();
+
+	/**
+	 * Initialise an index with the default query cache size and lease time.
+	 */
+	public FileIndex() {
+		this(defaultCacheSize,defaultLeaseTime);
+	}
+
+	/**
+	 * Initialise an index.
+	 * @param cacheSize the maximum number of queries to cache
+	 * @param leaseTime the length of a peer's lease in ms
+	 */
+	public FileIndex(int cacheSize,long leaseTime) {
+		this(cacheSize,leaseTime,1,defaultParallelThreshold);
+	}
+
+	/**
+	 * Initialise an index whose substring index is split into partitions that
+	 * are queried in parallel once the index is large.
+	 * @see {@link pb.index.PartitionedIndex}
+	 * @param cacheSize the maximum number of queries to cache
+	 * @param leaseTime the length of a peer's lease in ms
+	 * @param partitions the number of partitions
+	 * @param parallelThreshold number of filenames at which queries are run in parallel
+	 */
+	public FileIndex(int cacheSize,long leaseTime,int partitions,int parallelThreshold) {
+		leases=new PeerLeases(leaseTime,leaseTick,leaseSlots,Instant.now().toEpochMilli());
+		queryCache=new QueryCache(cacheSize);
+		keyValueMap=new IdDictionary<>();
+		peerIds=new IdDictionary<>();
+		if(partitions>1) {
+			List<IFilenameIndex> indexes = new ArrayList<>();
+			for(int i=0;i<partitions;i++) indexes.add(new TrigramIndex());
+			trigramIndex=new PartitionedIndex(indexes,keyValueMap::size,parallelThreshold);
+		} else {
+			trigramIndex=new TrigramIndex();
+		}
+		peerFiles=new ConcurrentHashMap<>();
+		peerCatalogs=new ConcurrentHashMap<>();
+		peerLocks=new Object[numPeerLocks];
+		for(int i=0;i<numPeerLocks;i++) peerLocks[i]=new Object();
+		tokens.start();
+	}
+
+	/**
+	 * Initialise an index whose substring index is kept off the heap, in
+	 * memory mapped segments.
+	 * @see {@link pb.index.SegmentedIndex}
+	 * @param cacheSize the maximum number of queries to cache
+	 * @param leaseTime the length of a peer's lease in ms
+	 * @param segmentDir directory to keep the segment files in
+	 * @throws IOException if the directory cannot be used
+	 */
+	public FileIndex(int cacheSize,long leaseTime,Path segmentDir) throws IOException {
+		this(cacheSize,leaseTime,segmentDir,1,defaultParallelThreshold);
+	}
+
+	/**
+	 * Initialise an index whose substring index is kept off the heap, in
+	 * memory mapped segments, and is split into partitions that are queried in
+	 * parallel once the index is large. Each partition keeps its segments in a
+	 * directory of its own.
+	 * @param cacheSize the maximum number of queries to cache
+	 * @param leaseTime the length of a peer's lease in ms
+	 * @param segmentDir directory to keep the segment files in
+	 * @param partitions the number of partitions
+	 * @param parallelThreshold number of filenames at which queries are run in parallel
+	 * @throws IOException if the directory cannot be used
+	 */
+	public FileIndex(int cacheSize,long leaseTime,Path segmentDir,int partitions,
+			int parallelThreshold) throws IOException {
+		leases=new PeerLeases(leaseTime,leaseTick,leaseSlots,Instant.now().toEpochMilli());
+		queryCache=new QueryCache(cacheSize);
+		keyValueMap=new IdDictionary<>();
+		peerIds=new IdDictionary<>();
+		if(partitions>1) {
+			List<IFilenameIndex> indexes = new ArrayList<>();
+			for(int i=0;i<partitions;i++) {
+				indexes.add(startSegments(segmentDir.resolve("partition-"+i)));
+			}
+			trigramIndex=new PartitionedIndex(indexes,keyValueMap::size,parallelThreshold);
+		} else {
+			trigramIndex=startSegments(segmentDir);
+		}
+		peerFiles=new ConcurrentHashMap<>();
+		peerCatalogs=new ConcurrentHashMap<>();
+		peerLocks=new Object[numPeerLocks];
+		for(int i=0;i<numPeerLocks;i++) peerLocks[i]=new Object();
+		tokens.start();
+	}
+
+	/**
+	 * @param segmentDir
+	 * @return a started substring index of the filenames of this index, kept
+	 * in segments in the directory
+	 * @throws IOException
+	 */
+	private SegmentedIndex startSegments(Path segmentDir) throws IOException {
+		SegmentedIndex segments=new SegmentedIndex(segmentDir,(filename)->keyValueMap.id(filename)>=0);
+		segments.start();
+		return segments;
+	}
+
+	private Object peerLock(String peerport) {
+		return peerLocks[(peerport.hashCode() & 0x7fffffff) % numPeerLocks];
+	}
+
+	/**
+	 * Update the index with the filename and peerport.
+	 * @param filename
+	 * @param peerport
+	 */
+	public void indexUpdate(String filename,String peerport) {
+		synchronized(peerLock(peerport)) {
+			int peer=peerIds.intern(peerport);
+			int file=keyValueMap.compute(filename,(possiblepeers)->{
+				if(possiblepeers==null) {
+					trigramIndex.add(filename);
+					tokens.add(filename);
+					queryCache.added(filename);
+					holders.incrementAndGet();
+					return new int[] {peer};
+				}
+				for(int holder : possiblepeers) {
+					if(holder==peer) return possiblepeers;
+				}
+				holders.incrementAndGet();
+				return placeHolder(possiblepeers,peer,seen(peer));
+			});
+			peerFiles.computeIfAbsent(peerport,(key)->new IntSet()).add(file);
+			leases.ensure(peerport,Instant.now().toEpochMilli());
+			for(IIndexChangeHandler handler : changeHandlers) handler.fileAdded(filename,peerport);
+		}
+	}
+
+	/**
+	 * Remove the peerport from the index entry for the filename, and the
+	 * filename from the index if no peers have it any more.
+	 * @param filename
+	 * @param peerport
+	 */
+	public void indexRemove(String filename,String peerport) {
+		synchronized(peerLock(peerport)) {
+			// the peer holds the file while we hold its lock, so the id can't be reused
+			int file=keyValueMap.id(filename);
+			removeHolder(filename,peerport);
+			IntSet files=peerFiles.get(peerport);
+			if(files!=null && file>=0) files.remove(file);
+			for(IIndexChangeHandler handler : changeHandlers) handler.fileRemoved(filename,peerport);
+		}
+	}
+
+	/**
+	 * Remove the peerport from the index entry for the filename, and the
+	 * filename from the index if no peers have it any more. Must be called
+	 * holding the peer's lock.
+	 * @param filename
+	 * @param peerport
+	 */
+	private void removeHolder(String filename,String peerport) {
+		int peer=peerIds.id(peerport);
+		keyValueMap.compute(filename,(possiblepeers)->{
+			if(possiblepeers==null) return null;
+			int at=indexOf(possiblepeers,peer);
+			if(at<0) return possiblepeers;
+			holders.decrementAndGet();
+			if(possiblepeers.length==1) {
+				trigramIndex.remove(filename);
+				tokens.remove(filename);
+				queryCache.removed(filename);
+				return null;
+			}
+			int[] kept=new int[possiblepeers.length-1];
+			System.arraycopy(possiblepeers,0,kept,0,at);
+			System.arraycopy(possiblepeers,at+1,kept,at,kept.length-at);
+			return kept;
+		});
+	}
+
+	/**
+	 * @param possiblepeers
+	 * @param peer
+	 * @return the position of the peer in the holders, or -1 if it is not a holder
+	 */
+	private static int indexOf(int[] possiblepeers,int peer) {
+		for(int i=0;i<possiblepeers.length;i++) {
+			if(possiblepeers[i]==peer) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param peer
+	 * @return the last time the peer was seen, or 0 if it has not been seen
+	 */
+	private long seen(int peer) {
+		Long seen=peerIds.value(peer);
+		return seen==null ? 0L : seen;
+	}
+
+	/**
+	 * Place the peer among the holders of a file, after the holders that were
+	 * seen at the same time or more recently.
+	 * @param possiblepeers the holders, which may already include the peer
+	 * @param peer
+	 * @param seen the time the peer was seen
+	 * @return a new array of the holders
+	 */
+	private int[] placeHolder(int[] possiblepeers,int peer,long seen) {
+		int at=indexOf(possiblepeers,peer);
+		int[] placed=new int[at<0 ? possiblepeers.length+1 : possiblepeers.length];
+		int j=0;
+		boolean done=false;
+		for(int i=0;i<possiblepeers.length;i++) {
+			if(i==at) continue;
+			if(!done && seen(possiblepeers[i])<seen) {
+				placed[j++]=peer;
+				done=true;
+			}
+			placed[j++]=possiblepeers[i];
+		}
+		if(!done) placed[j]=peer;
+		return placed;
+	}
+
+	/**
+	 * @param peerport
+	 * @return the names of the files the peer has in the index, must be called
+	 * holding the peer's lock
+	 */
+	private List<String> filesOf(String peerport) {
+		List<String> filenames = new ArrayList<>();
+		IntSet files=peerFiles.get(peerport);
+		if(files!=null) files.forEach((file)->filenames.add(keyValueMap.name(file)));
+		return filenames;
+	}
+
+	/**
+	 * Apply a batch of changes to a peer's catalog. Changes are only applied
+	 * when the batch is a reset or its base version is the version held for
+	 * the peer; the version is only advanced by the last batch of a delta.
+	 * @param batch
+	 * @return true if the batch was applied
+	 */
+	public boolean indexUpdateBatch(CatalogDelta batch) {
+		String peerport=batch.getPeer();
+		synchronized(peerLock(peerport)) {
+			if(batch.isReset()) {
+				for(String filename : filesOf(peerport)) {
+					indexRemove(filename,peerport);
+				}
+				putCatalogVersion(peerport,batch.getCatalog(),batch.getBase());
+			}
+			CatalogVersion held=peerCatalogs.get(peerport);
+			if(held==null || !batch.getCatalog().equals(held.catalog) ||
+					batch.getBase()!=held.version) {
+				return false;
+			}
+			for(String filename : batch.getRemoves()) {
+				indexRemove(filename,peerport);
+			}
+			for(String filename : batch.getAdds()) {
+				indexUpdate(filename,peerport);
+			}
+			if(batch.isLast()) {
+				putCatalogVersion(peerport,batch.getCatalog(),batch.getVersion());
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Set the catalog and version held for the peer.
+	 * @param peerport
+	 * @param catalog
+	 * @param version
+	 */
+	void putCatalogVersion(String peerport,String catalog,long version) {
+		synchronized(peerLock(peerport)) {
+			peerCatalogs.put(peerport,new CatalogVersion(catalog,version));
+			for(IIndexChangeHandler handler : changeHandlers) handler.catalogChanged(peerport,catalog,version);
+		}
+	}
+
+	/**
+	 * @param peerport
+	 * @return the catalog and version held for the peer, or null if there is none
+	 */
+	public CatalogVersion getCatalogVersion(String peerport) {
+		return peerCatalogs.get(peerport);
+	}
+
+	/**
+	 * Keep a time stamp of the last time we've seen this peer, and move the
+	 * peer to the front of the holders of each of its files.
+	 * @param peerport
+	 */
+	public void peerUpdate(String peerport) {
+		peerUpdate(peerport,Instant.now().toEpochMilli());
+	}
+
+	/**
+	 * Record that the peer was seen at the given time, and move the peer to
+	 * the front of the holders of each of its files.
+	 * @param peerport
+	 * @param seen the time in ms
+	 */
+	void peerUpdate(String peerport,long seen) {
+		synchronized(peerLock(peerport)) {
+			leases.renew(peerport,Instant.now().toEpochMilli());
+			int peer=peerIds.intern(peerport);
+			peerIds.setValue(peer,seen);
+			for(IIndexChangeHandler handler : changeHandlers) handler.peerSeen(peerport,seen);
+			for(String filename : filesOf(peerport)) {
+				keyValueMap.compute(filename,(possiblepeers)->{
+					return possiblepeers==null ? null : placeHolder(possiblepeers,peer,seen);
+				});
+			}
+		}
+	}
+
+	/**
+	 * Renew the peer's lease, without changing when it was last seen.
+	 * @param peerport
+	 * @return true if the index holds a catalog or files for the peer, false if
+	 * it does not, for instance because the peer's lease had expired
+	 */
+	public boolean renewLease(String peerport) {
+		synchronized(peerLock(peerport)) {
+			leases.renew(peerport,Instant.now().toEpochMilli());
+			for(IIndexChangeHandler handler : changeHandlers) handler.leaseRenewed(peerport);
+			return peerCatalogs.containsKey(peerport) || peerFiles.containsKey(peerport);
+		}
+	}
+
+	/**
+	 * @return the length of a peer's lease in ms
+	 */
+	public long getLeaseTime() {
+		return leases.getLeaseTime();
+	}
+
+	/**
+	 * Remove the peers whose leases have expired, and everything the index
+	 * holds for them.
+	 * @return the number of peers removed
+	 */
+	public int expirePeers() {
+		List<String> release;
+		synchronized(retireLock) {
+			release=retired;
+			retired=retiring;
+			retiring=new ArrayList<>();
+		}
+		for(String peerport : release) releasePeer(peerport);
+		int removed=0;
+		for(String peerport : leases.advance(Instant.now().toEpochMilli())) {
+			synchronized(peerLock(peerport)) {
+				// the peer may have renewed its lease since
+				if(leases.isLive(peerport,Instant.now().toEpochMilli())) continue;
+				removePeer(peerport);
+			}
+			removed++;
+		}
+		expiredPeers.addAndGet(removed);
+		return removed;
+	}
+
+	/**
+	 * Remove everything the index holds for the peer.
+	 * @param peerport
+	 */
+	void removePeer(String peerport) {
+		synchronized(peerLock(peerport)) {
+			for(String filename : filesOf(peerport)) {
+				removeHolder(filename,peerport);
+			}
+			peerFiles.remove(peerport);
+			int peer=peerIds.id(peerport);
+			if(peer>=0) peerIds.setValue(peer,null);
+			peerCatalogs.remove(peerport);
+			leases.remove(peerport);
+			for(IIndexChangeHandler handler : changeHandlers) handler.peerRemoved(peerport);
+		}
+		synchronized(retireLock) {
+			retiring.add(peerport);
+		}
+	}
+
+	/**
+	 * Release the id of a removed peer, unless the peer has been back since
+	 * and has been seen or holds files.
+	 * @param peerport
+	 */
+	private void releasePeer(String peerport) {
+		synchronized(peerLock(peerport)) {
+			IntSet files=peerFiles.get(peerport);
+			if(files!=null && files.size()>0) return;
+			// released if it has no seen time
+			peerIds.compute(peerport,(seen)->seen);
+		}
+	}
+
+	/**
+	 * Tell the handler about all further changes to the index.
+	 * @param handler
+	 */
+	public void addChangeHandler(IIndexChangeHandler handler) {
+		changeHandlers.add(handler);
+	}
+
+	/**
+	 * Stop telling the handler about changes to the index.
+	 * @param handler
+	 */
+	public void removeChangeHandler(IIndexChangeHandler handler) {
+		changeHandlers.remove(handler);
+	}
+
+	/**
+	 * Tell the handler everything the index holds for the peer, as though the
+	 * peer had been removed and then added again, while holding the peer's lock
+	 * so that the handler sees it in order with the peer's other changes.
+	 * @param peerport
+	 * @param handler
+	 */
+	void replayPeer(String peerport,IIndexChangeHandler handler) {
+		synchronized(peerLock(peerport)) {
+			handler.peerRemoved(peerport);
+			Long seen=peerIds.get(peerport);
+			if(seen!=null) handler.peerSeen(peerport,seen);
+			CatalogVersion held=peerCatalogs.get(peerport);
+			if(held!=null) handler.catalogChanged(peerport,held.catalog,held.version);
+			for(String filename : filesOf(peerport)) handler.fileAdded(filename,peerport);
+		}
+	}
+
+	/**
+	 * @return the peers that the index holds anything for
+	 */
+	Set<String> getPeers() {
+		Set<String> peers = new HashSet<>();
+		for(String peerport : peerIds.names()) {
+			if(peerIds.get(peerport)!=null) peers.add(peerport);
+		}
+		peers.addAll(peerFiles.keySet());
+		peers.addAll(peerCatalogs.keySet());
+		return peers;
+	}
+
+	/**
+	 * @param peerport
+	 * @return a copy of everything the index holds for the peer
+	 */
+	IndexStore.PeerState getPeerState(String peerport) {
+		IndexStore.PeerState peer = new IndexStore.PeerState();
+		synchronized(peerLock(peerport)) {
+			Long seen=peerIds.get(peerport);
+			peer.seen=seen==null ? 0L : seen;
+			CatalogVersion held=peerCatalogs.get(peerport);
+			if(held!=null) {
+				peer.catalog=held.catalog;
+				peer.version=held.version;
+			}
+			peer.files.addAll(filesOf(peerport));
+		}
+		return peer;
+	}
+
+	/**
+	 * Put back everything the index held for a peer, when it is restored from
+	 * a store. The peer must not already be in the index.
+	 * @param peerport
+	 * @param peer
+	 */
+	void restorePeer(String peerport,IndexStore.PeerState peer) {
+		synchronized(peerLock(peerport)) {
+			if(peer.seen!=0) peerIds.setValue(peerIds.intern(peerport),peer.seen);
+			if(peer.catalog!=null) peerCatalogs.put(peerport,new CatalogVersion(peer.catalog,peer.version));
+			// give the peer a whole lease to get back in touch
+			leases.renew(peerport,Instant.now().toEpochMilli());
+			for(String filename : peer.files) {
+				indexUpdate(filename,peerport);
+			}
+		}
+	}
+
+	/**
+	 * Find the filenames that match the query terms, from the query cache
+	 * if possible.
+	 * @see {@link pb.index.TrigramIndex#matchAny(String[])}
+	 * @param terms
+	 * @return the matching filenames
+	 */
+	public Set<String> query(String[] terms) {
+		// a query of only commas has no terms, and would share the key of the empty term
+		if(terms.length==0) return new HashSet<>();
+		String key=QueryCache.key(terms);
+		Set<String> hits=queryCache.get(key);
+		if(hits!=null) return hits;
+		queryCache.begin(key,terms);
+		return queryCache.complete(key,trigramIndex.matchAny(terms));
+	}
+
+	/**
+	 * Find the filenames that match the query terms allowing for misspelt
+	 * words. Each token of a term, as split by {@link Tokenizer#tokenize(String)},
+	 * matches the filenames that contain the token or any token of the index
+	 * within the edit distance of it, as found by the {@link FuzzyDictionary}.
+	 * A filename matches a term if it matches every token of the term, and
+	 * matches the query if it matches any term. Fuzzy queries are not cached.
+	 * @param terms
+	 * @param edits the largest edit distance of each token, at most {@link FuzzyDictionary#maxEdits}
+	 * @return the matching filenames
+	 */
+	public Set<String> fuzzyQuery(String[] terms,int edits) {
+		Set<String> hits = new HashSet<>();
+		for(String term : terms) {
+			Set<String> matched=null;
+			for(String token : new HashSet<>(Tokenizer.tokenize(term))) {
+				Set<String> similar=tokens.similar(token,edits);
+				similar.add(token);
+				Set<String> tokenHits=trigramIndex.matchAny(similar.toArray(new String[similar.size()]));
+				if(matched==null) {
+					matched=tokenHits;
+				} else {
+					matched.retainAll(tokenHits);
+				}
+				if(matched.isEmpty()) break;
+			}
+			if(matched!=null) hits.addAll(matched);
+		}
+		return hits;
+	}
+
+	/**
+	 * Find the most relevant filenames that match the query terms.
+	 * @see {@link pb.index.QueryRanker}
+	 * @param terms
+	 * @param k the maximum number of filenames
+	 * @param after the last hit of the previous page, or null for the first page
+	 * @return up to k hits that a live peer has, best first
+	 */
+	public List<QueryRanker.ScoredHit> topHits(String[] terms,int k,QueryRanker.ScoredHit after) {
+		return QueryRanker.topK(query(terms),terms,k,after,this::liveHolders);
+	}
+
+	/**
+	 * @param filename
+	 * @return the number of peers whose leases have not expired that have the file
+	 */
+	public int liveHolders(String filename) {
+		int[] possiblepeers=keyValueMap.get(filename);
+		if(possiblepeers==null) return 0;
+		long now=Instant.now().toEpochMilli();
+		int live=0;
+		for(int holder : possiblepeers) {
+			String peerport=peerIds.name(holder);
+			if(peerport!=null && leases.isLive(peerport,now)) live++;
+		}
+		return live;
+	}
+
+	/**
+	 * The peers that have the file and that were the most recently seen, to try
+	 * and make sure they are still online. Peers whose leases have expired are
+	 * left out.
+	 * @param filename
+	 * @param k the maximum number of peers to return
+	 * @return the "PeerIP:PeerPort" of up to k peers, most recently seen first
+	 */
+	public List<String> bestPeers(String filename,int k) {
+		List<String> peers = new ArrayList<>(k);
+		int[] possiblepeers=keyValueMap.get(filename);
+		if(possiblepeers==null) return peers;
+		long now=Instant.now().toEpochMilli();
+		for(int holder : possiblepeers) {
+			if(peers.size()==k) break;
+			String peerport=peerIds.name(holder);
+			if(peerport!=null && leases.isLive(peerport,now)) peers.add(peerport);
+		}
+		return peers;
+	}
+
+	/**
+	 * The peer that has the file and that was the most recently seen, of the
+	 * peers whose leases have not expired.
+	 * @param filename
+	 * @return the "PeerIP:PeerPort" of the peer or null if no live peer has the file
+	 */
+	public String bestPeer(String filename) {
+		List<String> peers=bestPeers(filename,1);
+		return peers.isEmpty() ? null : peers.get(0);
+	}
+
+	/**
+	 * Stop any background work of the index.
+	 */
+	public void shutdown() {
+		trigramIndex.shutdown();
+		tokens.shutdown();
+	}
+
+	/**
+	 * @return the number of filenames in the index
+	 */
+	public int size() {
+		return keyValueMap.size();
+	}
+
+	/**
+	 * @return index and query cache metrics, by name
+	 */
+	public Map<String,Long> getStats() {
+		Map<String,Long> stats = new LinkedHashMap<>();
+		stats.put("files",(long)keyValueMap.size());
+		stats.put("peers",(long)peerFiles.size());
+		stats.put("holders",holders.get());
+		stats.putAll(trigramIndex.getStats());
+		stats.putAll(tokens.getStats());
+		stats.put("leases",(long)leases.size());
+		stats.put("expiredPeers",expiredPeers.get());
+		stats.putAll(queryCache.getStats());
+		return stats;
+	}
+}
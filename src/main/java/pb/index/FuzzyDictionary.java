@@ -0,0 +1,304 @@
+package pb.index;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The dictionary of the tokens of the filenames in a {@link FileIndex}, as
+ * split by {@link Tokenizer#tokenize(String)}, for finding the tokens that are
+ * within a small edit distance of a misspelt query word. The tokens are kept in
+ * a trie, and a search walks the trie computing one row of the Levenshtein
+ * table of the word per character, sharing the rows of a common prefix. This
+ * runs the Levenshtein automaton of the word over the trie: once every entry of
+ * a row is more than the edit distance, no token below that prefix can be
+ * close enough, so the walk only visits the prefixes within the distance of a
+ * prefix of the word, rather than computing the distance to every token.
+ * <br/>
+ * Each token counts the filenames that contain it, and a token whose count
+ * drops to zero is left in the trie, but is not returned by searches. Once more
+ * than half of the trie is such tokens, it is rebuilt from the live tokens.
+ * <br/>
+ * Tokens are added and removed while the index holds its own locks, so they
+ * are only counted there, without locks, and the tokens that are new are
+ * queued. This thread inserts the queued tokens in batches, and does the
+ * rebuilds, copy-on-write: the nodes along the path of each token are copied,
+ * and the new root is swapped in once the batch is done, as
+ * {@link StandingQueries} does with its automaton. Searches walk whichever
+ * trie is current without locks, so a new token is found by searches once its
+ * batch is swapped in, normally within milliseconds.
+ * @author aaron
+ *
+ */
+public class FuzzyDictionary extends Thread {
+
+	/**
+	 * Largest edit distance that can be searched for, beyond which much of
+	 * the trie would be visited and the matches would be mostly noise.
+	 */
+	public static final int maxEdits = 2;
+
+	private static final char[] noLabels = new char[0];
+	private static final Node[] noChildren = new Node[0];
+
+	/**
+	 * A prefix in the trie, with the children by their next character.
+	 */
+	private static class Node {
+		private char[] labels=noLabels;
+		private Node[] children=noChildren;
+
+		/**
+		 * The token that ends here, or null.
+		 */
+		private String token=null;
+
+		/**
+		 * @return the index of the child labelled c, or -1
+		 */
+		int index(char c) {
+			for(int i=0;i<labels.length;i++) {
+				if(labels[i]==c) return i;
+			}
+			return -1;
+		}
+
+		/**
+		 * @return a copy of the node, sharing its children
+		 */
+		Node copy() {
+			Node copy=new Node();
+			copy.labels=labels;
+			copy.children=children.clone();
+			copy.token=token;
+			return copy;
+		}
+
+		Node addChild(char c) {
+			Node child=new Node();
+			labels=Arrays.copyOf(labels,labels.length+1);
+			children=Arrays.copyOf(children,children.length+1);
+			labels[labels.length-1]=c;
+			children[children.length-1]=child;
+			return child;
+		}
+	}
+
+	/**
+	 * Token to the number of filenames that contain it.
+	 */
+	private final Map<String,Integer> counts = new ConcurrentHashMap<>();
+
+	/**
+	 * Root of the current trie, the empty prefix, which is not changed once
+	 * it is swapped in, and the number of tokens in it.
+	 */
+	private volatile Node root=new Node();
+	private volatile int trieSize=0;
+
+	/**
+	 * Tokens new to the dictionary, not yet in the trie, and a flag that is
+	 * set when there is work for this thread, guarded by queued.
+	 */
+	private final ConcurrentLinkedQueue<String> queued = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger queuedCount = new AtomicInteger();
+	private boolean work=false;
+
+	private final AtomicInteger batches = new AtomicInteger();
+	private final AtomicInteger rebuilds = new AtomicInteger();
+
+	private volatile boolean running=true;
+
+	public FuzzyDictionary() {
+		setDaemon(true);
+	}
+
+	/**
+	 * Insert a token into a trie of this batch, copying the nodes on its path
+	 * that are not of this batch.
+	 * @param top the root of the trie of this batch
+	 * @param token
+	 * @param fresh the nodes made in this batch, which can be changed
+	 * @return true if the token was not in the trie
+	 */
+	private static boolean insert(Node top,String token,Set<Node> fresh) {
+		Node node=top;
+		for(int i=0;i<token.length();i++) {
+			char c=token.charAt(i);
+			int at=node.index(c);
+			if(at<0) {
+				node=node.addChild(c);
+				fresh.add(node);
+				continue;
+			}
+			Node child=node.children[at];
+			if(!fresh.contains(child)) {
+				child=child.copy();
+				fresh.add(child);
+				node.children[at]=child;
+			}
+			node=child;
+		}
+		if(node.token!=null) return false;
+		node.token=token;
+		return true;
+	}
+
+	private void wake() {
+		synchronized(queued) {
+			work=true;
+			queued.notify();
+		}
+	}
+
+	/**
+	 * Add the tokens of a filename that is new to the index.
+	 * @param filename
+	 */
+	public void add(String filename) {
+		boolean added=false;
+		for(String token : new HashSet<>(Tokenizer.tokenize(filename))) {
+			if(counts.merge(token,1,Integer::sum)>1) continue;
+			queued.add(token);
+			queuedCount.incrementAndGet();
+			added=true;
+		}
+		if(added) wake();
+	}
+
+	/**
+	 * Remove the tokens of a filename that has gone from the index.
+	 * @param filename
+	 */
+	public void remove(String filename) {
+		boolean emptied=false;
+		for(String token : new HashSet<>(Tokenizer.tokenize(filename))) {
+			if(counts.computeIfPresent(token,(key,count)->count>1 ? count-1 : null)==null) emptied=true;
+		}
+		if(emptied && trieSize>2*counts.size()+16) wake();
+	}
+
+	/**
+	 * Insert the queued tokens into a copy of the trie and swap it in, or
+	 * rebuild the trie from the tokens in use if it is mostly unused tokens.
+	 */
+	private void batch() {
+		Set<Node> fresh=Collections.newSetFromMap(new IdentityHashMap<>());
+		Node top;
+		int size;
+		if(trieSize>2*counts.size()+16) {
+			// tokens queued from now on are inserted by the next batch
+			while(queued.poll()!=null) queuedCount.decrementAndGet();
+			top=new Node();
+			size=0;
+			for(String token : counts.keySet()) {
+				if(insert(top,token,fresh)) size++;
+			}
+			rebuilds.incrementAndGet();
+		} else {
+			if(queued.isEmpty()) return;
+			top=root.copy();
+			size=trieSize;
+			String token;
+			while((token=queued.poll())!=null) {
+				queuedCount.decrementAndGet();
+				if(insert(top,token,fresh)) size++;
+			}
+			batches.incrementAndGet();
+		}
+		trieSize=size;
+		root=top;
+	}
+
+	/**
+	 * Stop the thread.
+	 */
+	public void shutdown() {
+		running=false;
+		interrupt();
+	}
+
+	@Override
+	public void run() {
+		while(running) {
+			synchronized(queued) {
+				while(!work) {
+					try {
+						queued.wait();
+					} catch (InterruptedException e) {
+						if(!running) return;
+					}
+				}
+				work=false;
+			}
+			batch();
+		}
+	}
+
+	/**
+	 * Find the tokens within an edit distance of a word. Short words are
+	 * allowed fewer edits, since a couple of edits turn them into almost any
+	 * other short word: none up to 2 characters and 1 up to 5.
+	 * @param word a lower-case word
+	 * @param edits the largest edit distance, at most {@link #maxEdits}
+	 * @return the tokens that filenames in the index contain
+	 */
+	public Set<String> similar(String word,int edits) {
+		edits=Math.min(edits,word.length()<=2 ? 0 : word.length()<=5 ? 1 : maxEdits);
+		Set<String> tokens = new HashSet<>();
+		int[] row = new int[word.length()+1];
+		for(int j=0;j<row.length;j++) row[j]=j;
+		walk(root,word,row,edits,tokens);
+		return tokens;
+	}
+
+	/**
+	 * Visit the children of a prefix that may still lead to a token within
+	 * the edit distance of the word.
+	 * @param node the prefix
+	 * @param word
+	 * @param row the row of the Levenshtein table for the prefix, the distance
+	 * from the prefix to each prefix of the word
+	 * @param edits
+	 * @param tokens the set to add the tokens found to
+	 */
+	private void walk(Node node,String word,int[] row,int edits,Set<String> tokens) {
+		for(int i=0;i<node.labels.length;i++) {
+			char c=node.labels[i];
+			Node child=node.children[i];
+			int[] next = new int[row.length];
+			next[0]=row[0]+1;
+			int least=next[0];
+			for(int j=1;j<row.length;j++) {
+				int substitute=row[j-1]+(word.charAt(j-1)==c ? 0 : 1);
+				next[j]=Math.min(substitute,Math.min(row[j],next[j-1])+1);
+				least=Math.min(least,next[j]);
+			}
+			if(child.token!=null && next[row.length-1]<=edits && counts.containsKey(child.token)) {
+				tokens.add(child.token);
+			}
+			// longer prefixes can only be further away
+			if(least<=edits) walk(child,word,next,edits,tokens);
+		}
+	}
+
+	/**
+	 * @return the dictionary metrics, by name
+	 */
+	public Map<String,Long> getStats() {
+		Map<String,Long> stats = new LinkedHashMap<>();
+		stats.put("tokens",(long)counts.size());
+		stats.put("tokenTrieSize",(long)trieSize);
+		stats.put("tokensQueued",(long)queuedCount.get());
+		stats.put("tokenBatches",(long)batches.get());
+		stats.put("tokenRebuilds",(long)rebuilds.get());
+		return stats;
+	}
+}
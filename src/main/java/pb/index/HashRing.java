@@ -0,0 +1,83 @@
+package pb.index;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A consistent hash ring that assigns filenames to the index servers (shards)
+ * of a cluster. Each shard is placed on the ring at {@link #virtualNodes}
+ * points, and a filename is owned by the shard at the first point at or after
+ * the filename's hash, so that the filenames are spread evenly and adding or
+ * removing a shard only moves the filenames of the ranges next to it. Every
+ * peer must use the same list of shards, the order does not matter.
+ * @author aaron
+ *
+ */
+public class HashRing {
+
+	/**
+	 * Number of points on the ring for each shard.
+	 */
+	private static final int virtualNodes = 128;
+
+	/**
+	 * Point on the ring to the shard at that point.
+	 */
+	private final TreeMap<Long,String> ring;
+
+	/**
+	 * The shards, as "host:port".
+	 */
+	private final List<String> shards;
+
+	/**
+	 * @param shards the shards, as "host:port"
+	 */
+	public HashRing(List<String> shards) {
+		if(shards.isEmpty()) throw new IllegalArgumentException("a hash ring needs at least one shard");
+		this.shards=Collections.unmodifiableList(new ArrayList<>(shards));
+		ring=new TreeMap<>();
+		for(String shard : shards) {
+			for(int i=0;i<virtualNodes;i++) {
+				ring.put(hash(shard+"#"+i),shard);
+			}
+		}
+	}
+
+	/**
+	 * @param s
+	 * @return the first 8 bytes of the MD5 digest of the string, the same in every JVM
+	 */
+	private static long hash(String s) {
+		try {
+			byte[] digest=MessageDigest.getInstance("MD5").digest(s.getBytes(StandardCharsets.UTF_8));
+			long h=0;
+			for(int i=0;i<8;i++) h=(h<<8) | (digest[i] & 0xff);
+			return h;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 is not available",e); // every JVM has MD5
+		}
+	}
+
+	/**
+	 * @param filename
+	 * @return the shard that owns the filename, as "host:port"
+	 */
+	public String owner(String filename) {
+		Map.Entry<Long,String> point=ring.ceilingEntry(hash(filename));
+		return point!=null ? point.getValue() : ring.firstEntry().getValue();
+	}
+
+	/**
+	 * @return the shards, as "host:port"
+	 */
+	public List<String> getShards() {
+		return shards;
+	}
+}
@@ -0,0 +1,185 @@
+package pb.index;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Counts how often each item of a stream occurs, such as the filenames that
+ * are downloaded, in constant memory however many distinct items there are. A
+ * count-min sketch, a table of {@link #depth} rows of {@link #width} counters
+ * where each item adds to one counter per row chosen by hashing, estimates the
+ * count of any item as the least of its counters, which is never less than the
+ * true count. A space-saving list keeps the {@link #capacity} items that look
+ * the most frequent: an item that is not on the full list replaces the one with
+ * the lowest count and takes over that count, so a frequent item is never
+ * pushed off the list. The top items are reported with the lower of the two
+ * overestimates.
+ * <br/>
+ * The methods are synchronized, each item is a few hash lookups, and a batch
+ * of items can be counted under the one lock.
+ * @author aaron
+ *
+ */
+public class HeavyHitters {
+
+	/**
+	 * Number of rows and number of counters in a row of the sketch.
+	 */
+	private static final int depth = 4;
+	private static final int width = 4096;
+
+	/**
+	 * Number of items on the space-saving list.
+	 */
+	private static final int capacity = 256;
+
+	/**
+	 * An item on the space-saving list.
+	 */
+	public static class Counter implements Comparable<Counter> {
+		public final String item;
+		private long count;
+
+		/**
+		 * By how much the count may be more than the true count.
+		 */
+		private long error;
+
+		Counter(String item,long count,long error) {
+			this.item=item;
+			this.count=count;
+			this.error=error;
+		}
+
+		/**
+		 * @return the estimated number of times the item occurred
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return the number of times that the item surely occurred
+		 */
+		public long getGuaranteed() {
+			return count-error;
+		}
+
+		/**
+		 * Orders the lowest count first.
+		 */
+		@Override
+		public int compareTo(Counter o) {
+			int c=Long.compare(count,o.count);
+			return c!=0 ? c : item.compareTo(o.item);
+		}
+	}
+
+	private final long[][] sketch = new long[depth][width];
+
+	/**
+	 * The space-saving list, by item and ordered by count.
+	 */
+	private final Map<String,Counter> monitored = new HashMap<>();
+	private final TreeSet<Counter> byCount = new TreeSet<>();
+
+	private long total=0;
+
+	/**
+	 * @param item
+	 * @param row
+	 * @return the counter of the item in the row of the sketch
+	 */
+	private static int bucket(String item,int row) {
+		// the murmur3 finalizer, seeded differently for each row
+		int h=item.hashCode()^(0x9e3779b9*(row+1));
+		h^=h>>>16;
+		h*=0x85ebca6b;
+		h^=h>>>13;
+		h*=0xc2b2ae35;
+		h^=h>>>16;
+		return h & (width-1);
+	}
+
+	/**
+	 * Count an occurrence of the item.
+	 * @param item
+	 */
+	public synchronized void add(String item) {
+		count(item);
+	}
+
+	/**
+	 * Count an occurrence of each of the items, such as a batch of hits,
+	 * taking the lock once for them all.
+	 * @param items
+	 */
+	public synchronized void addAll(Collection<String> items) {
+		for(String item : items) count(item);
+	}
+
+	private void count(String item) {
+		total++;
+		for(int row=0;row<depth;row++) {
+			sketch[row][bucket(item,row)]++;
+		}
+		Counter counter=monitored.get(item);
+		if(counter!=null) {
+			byCount.remove(counter);
+			counter.count++;
+		} else if(monitored.size()<capacity) {
+			counter=new Counter(item,1,0);
+			monitored.put(item,counter);
+		} else {
+			Counter least=byCount.pollFirst();
+			monitored.remove(least.item);
+			counter=new Counter(item,least.count+1,least.count);
+			monitored.put(item,counter);
+		}
+		byCount.add(counter);
+	}
+
+	/**
+	 * @param item
+	 * @return an estimate of the number of times the item occurred, never
+	 * less than the true number
+	 */
+	public synchronized long estimate(String item) {
+		long least=Long.MAX_VALUE;
+		for(int row=0;row<depth;row++) {
+			least=Math.min(least,sketch[row][bucket(item,row)]);
+		}
+		Counter counter=monitored.get(item);
+		return counter==null ? least : Math.min(least,counter.count);
+	}
+
+	/**
+	 * @param n
+	 * @return up to n of the most frequent items, most frequent first, each
+	 * with the lower of its count on the list and its estimate from the sketch
+	 */
+	public synchronized List<Counter> top(int n) {
+		List<Counter> top = new ArrayList<>();
+		for(Counter counter : byCount.descendingSet()) {
+			if(top.size()==n) break;
+			long count=Math.min(counter.count,estimate(counter.item));
+			long guaranteed=counter.count-counter.error;
+			top.add(new Counter(counter.item,count,Math.max(0,count-guaranteed)));
+		}
+		// the sketch may have lowered some counts
+		top.sort(Collections.reverseOrder());
+		return top;
+	}
+
+	/**
+	 * @return the number of items counted
+	 */
+	public synchronized long getTotal() {
+		return total;
+	}
+}
@@ -0,0 +1,46 @@
+package pb.index;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A substring index over the filenames of a {@link FileIndex}, that finds the
+ * filenames matching a query.
+ * @see {@link pb.index.TrigramIndex}
+ * @see {@link pb.index.SegmentedIndex}
+ * @author aaron
+ *
+ */
+public interface IFilenameIndex {
+
+	/**
+	 * Add a filename to the index.
+	 * @param filename
+	 */
+	public void add(String filename);
+
+	/**
+	 * Remove a filename from the index.
+	 * @param filename
+	 */
+	public void remove(String filename);
+
+	/**
+	 * Find the filenames that match any of the terms (OR), where a filename
+	 * matches a term if it contains the term as a substring, ignoring case.
+	 * The empty term matches every filename.
+	 * @param terms
+	 * @return the matching filenames
+	 */
+	public Set<String> matchAny(String[] terms);
+
+	/**
+	 * @return metrics of the index, by name
+	 */
+	public Map<String,Long> getStats();
+
+	/**
+	 * Stop any background work of the index.
+	 */
+	public void shutdown();
+}
@@ -0,0 +1,54 @@
+package pb.index;
+
+/**
+ * Told about every change made to a {@link FileIndex}, for instance to keep
+ * the index on disk or to send it to a backup index server. The methods are
+ * called while the index holds the lock of the peer concerned, so the changes
+ * for a peer are seen in the order they were made, and they must not block.
+ * @see {@link pb.index.FileIndex#addChangeHandler(IIndexChangeHandler)}
+ * @author aaron
+ *
+ */
+public interface IIndexChangeHandler {
+
+	/**
+	 * The peer has been added to the holders of the file.
+	 * @param filename
+	 * @param peerport
+	 */
+	public void fileAdded(String filename,String peerport);
+
+	/**
+	 * The peer has been removed from the holders of the file.
+	 * @param filename
+	 * @param peerport
+	 */
+	public void fileRemoved(String filename,String peerport);
+
+	/**
+	 * The peer has been seen.
+	 * @param peerport
+	 * @param seen the time it was seen in ms
+	 */
+	public void peerSeen(String peerport,long seen);
+
+	/**
+	 * The index now holds a new catalog or version of the catalog for the peer.
+	 * @param peerport
+	 * @param catalog
+	 * @param version
+	 */
+	public void catalogChanged(String peerport,String catalog,long version);
+
+	/**
+	 * Everything the index held for the peer has been removed.
+	 * @param peerport
+	 */
+	public void peerRemoved(String peerport);
+
+	/**
+	 * The peer's lease has been renewed.
+	 * @param peerport
+	 */
+	public void leaseRenewed(String peerport);
+}
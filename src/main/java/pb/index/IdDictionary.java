@@ -0,0 +1,195 @@
+package pb.index;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.UnaryOperator;
+
+/**
+ * Interns strings, such as filenames and the "PeerIP:PeerPort" of peers, as
+ * small int ids, so that the structures of a {@link FileIndex} hold 4 byte ids
+ * instead of references to strings and each string is kept once. Each id has a
+ * slot for a value, such as the peers that have a file. Ids are handed out from
+ * 0 upwards and the id of a string that is released is reused for the next new
+ * string, so the ids stay dense. The strings and values are kept in pages of
+ * slots that never move, so the dictionary grows without copying them and the
+ * slots can be read without locking.
+ * <br/>
+ * The value of a string is changed atomically by {@link #compute(String, UnaryOperator)},
+ * which releases the string when the new value is null. Since a released id may
+ * be reused, an id looked up without holding off changes to its string may by
+ * then belong to another string; {@link #get(String)} checks for this.
+ * @author aaron
+ *
+ * @param <V> the type of the values
+ */
+public class IdDictionary<V> {
+
+	/**
+	 * Number of slots in a page, as a power of two.
+	 */
+	private static final int pageBits = 12;
+	private static final int pageSize = 1<<pageBits;
+
+	/**
+	 * String to its id.
+	 */
+	private final ConcurrentHashMap<String,Integer> ids = new ConcurrentHashMap<>();
+
+	/**
+	 * The pages of slots, the string of id i is in slot 2*i of its page and its value
+	 * is in the slot after. Replaced by a longer array when a page is added.
+	 */
+	private volatile AtomicReferenceArray<Object>[] pages;
+
+	/**
+	 * The next id that has never been handed out, guarded by this.
+	 */
+	private int next=0;
+
+	/**
+	 * Ids that have been released, to be reused, guarded by this.
+	 */
+	private int[] free = new int[16];
+	private int numFree=0;
+
+	@SuppressWarnings({"unchecked","rawtypes"})
+	public IdDictionary() {
+		pages=new AtomicReferenceArray[0];
+	}
+
+	private AtomicReferenceArray<Object> page(int id) {
+		return pages[id>>>pageBits];
+	}
+
+	private static int nameSlot(int id) {
+		return (id & (pageSize-1))*2;
+	}
+
+	/**
+	 * Hand out an id for the string, adding a page if needed.
+	 * @param name
+	 * @return the id
+	 */
+	private synchronized int allocate(String name) {
+		int id;
+		if(numFree>0) {
+			id=free[--numFree];
+		} else {
+			id=next++;
+			if((id>>>pageBits)==pages.length) {
+				AtomicReferenceArray<Object>[] grown=Arrays.copyOf(pages,pages.length+1);
+				grown[pages.length]=new AtomicReferenceArray<>(pageSize*2);
+				pages=grown;
+			}
+		}
+		page(id).set(nameSlot(id),name);
+		return id;
+	}
+
+	/**
+	 * Clear the slots of the id and make it available for reuse. The value is
+	 * cleared before the string, so a reader that sees a value of another string
+	 * also sees that the string has changed.
+	 * @param id
+	 */
+	private synchronized void release(int id) {
+		page(id).set(nameSlot(id)+1,null);
+		page(id).set(nameSlot(id),null);
+		if(numFree==free.length) free=Arrays.copyOf(free,free.length*2);
+		free[numFree++]=id;
+	}
+
+	/**
+	 * @param name
+	 * @return the id of the string, handing out a new id if it has none
+	 */
+	public int intern(String name) {
+		return ids.computeIfAbsent(name,this::allocate);
+	}
+
+	/**
+	 * @param name
+	 * @return the id of the string, or -1 if it has none
+	 */
+	public int id(String name) {
+		Integer id=ids.get(name);
+		return id==null ? -1 : id;
+	}
+
+	/**
+	 * @param id
+	 * @return the string of the id, or null if the id is not in use
+	 */
+	public String name(int id) {
+		return (String) page(id).get(nameSlot(id));
+	}
+
+	/**
+	 * @param id
+	 * @return the value of the id, or null if it has none
+	 */
+	@SuppressWarnings("unchecked")
+	public V value(int id) {
+		return (V) page(id).get(nameSlot(id)+1);
+	}
+
+	/**
+	 * Set the value of an id that is in use, without releasing it if the value is null.
+	 * @param id
+	 * @param value
+	 */
+	public void setValue(int id,V value) {
+		page(id).set(nameSlot(id)+1,value);
+	}
+
+	/**
+	 * @param name
+	 * @return the value of the string, or null if it has no id or no value
+	 */
+	public V get(String name) {
+		Integer id=ids.get(name);
+		if(id==null) return null;
+		V value=value(id);
+		// the id may have been released and reused since it was looked up
+		return name.equals(name(id)) ? value : null;
+	}
+
+	/**
+	 * Atomically change the value of a string, interning the string if it has
+	 * no id and the new value is not null, and releasing it if it has an id and
+	 * the new value is null.
+	 * @param name
+	 * @param update given the current value, or null if the string has no id,
+	 * returns the new value
+	 * @return the id of the string, or -1 if it has none after the change
+	 */
+	public int compute(String name,UnaryOperator<V> update) {
+		Integer id=ids.compute(name,(key,current)->{
+			V value=update.apply(current==null ? null : value(current));
+			if(value==null) {
+				if(current!=null) release(current);
+				return null;
+			}
+			int assigned=current==null ? allocate(key) : current;
+			setValue(assigned,value);
+			return assigned;
+		});
+		return id==null ? -1 : id;
+	}
+
+	/**
+	 * @return the strings that have ids, as a view that reflects later changes
+	 */
+	public Set<String> names() {
+		return ids.keySet();
+	}
+
+	/**
+	 * @return the number of strings that have ids
+	 */
+	public int size() {
+		return ids.size();
+	}
+}
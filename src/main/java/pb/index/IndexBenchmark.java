@@ -0,0 +1,196 @@
+package pb.index;
+
+import java.lang.ref.Reference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the memory used by a {@link FileIndex} for each file and each
+ * (file, peer) pair it holds, the time taken by a single query with the
+ * substring index in one partition and in one partition per core, and then the
+ * throughput under a mix of index updates, peer updates and queries, run from
+ * an increasing number of threads, to show how it scales with cores. The
+ * threads go up to the number of cores, or to the number given, which can be
+ * more than the cores to check the index under contention on a small machine,
+ * although it can't then scale. The substring index is split into a partition
+ * per core, as the index server does, or into the number given, so that the
+ * partitioned index is exercised even on a single core. Run with:
+ * <pre>
+ * java -cp target/pb3-0.0.1-SNAPSHOT-jar-with-dependencies.jar pb.index.IndexBenchmark [files] [seconds] [threads] [partitions]
+ * </pre>
+ * @author aaron
+ *
+ */
+public class IndexBenchmark {
+
+	/**
+	 * Number of distinct peers that files are spread over.
+	 */
+	private static final int numPeers = 1000;
+
+	/**
+	 * Percentage of operations that are queries, the rest are updates.
+	 */
+	private static final int queryPercent = 20;
+
+	/**
+	 * Number of peers that have each file, when measuring the memory used.
+	 */
+	private static final int holdersPerFile = 3;
+
+	private static String randomName(Random random) {
+		StringBuilder name = new StringBuilder();
+		for(int i=0;i<12;i++) name.append((char)('a'+random.nextInt(26)));
+		return name.append(".dat").toString();
+	}
+
+	private static String randomPeer(Random random) {
+		return "10.0."+(random.nextInt(numPeers)/256)+"."+(random.nextInt(numPeers)%256)+":3100";
+	}
+
+	/**
+	 * @return the bytes of heap in use, after collecting the garbage
+	 * @throws InterruptedException
+	 */
+	private static long usedMemory() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for(int i=0;i<3;i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory()-runtime.freeMemory();
+	}
+
+	/**
+	 * Print the heap used by an index of the files, each held by a few peers.
+	 * @param numFiles
+	 * @throws InterruptedException
+	 */
+	private static void footprint(int numFiles) throws InterruptedException {
+		long before=usedMemory();
+		FileIndex index = new FileIndex();
+		Random random = new Random(2);
+		for(int i=0;i<numFiles;i++) {
+			String filename=randomName(random);
+			for(int h=0;h<holdersPerFile;h++) {
+				index.indexUpdate(filename,randomPeer(random));
+			}
+		}
+		long used=usedMemory()-before;
+		long pairs=index.getStats().get("holders");
+		System.out.println("indexed "+index.size()+" files and "+pairs+" (file, peer) pairs in "+
+				(used>>20)+" MB, "+(used/index.size())+" bytes per file, "+(used/pairs)+" bytes per pair");
+		// keep the index reachable until it has been measured
+		Reference.reachabilityFence(index);
+	}
+
+	/**
+	 * @param index
+	 * @param queries
+	 * @return the average time taken by the queries in microseconds
+	 */
+	private static long queryTime(FileIndex index,List<String[]> queries) {
+		long start=System.nanoTime();
+		for(String[] query : queries) {
+			index.query(query);
+		}
+		return (System.nanoTime()-start)/1000/queries.size();
+	}
+
+	/**
+	 * Print the time taken by queries on one thread, and by the same queries
+	 * with the substring index split into partitions.
+	 * @param numFiles
+	 * @param partitions
+	 */
+	private static void queryLatency(int numFiles,int partitions) {
+		// no query cache, so that every query is evaluated
+		FileIndex single = new FileIndex(0,FileIndex.defaultLeaseTime);
+		FileIndex partitioned = new FileIndex(0,FileIndex.defaultLeaseTime,partitions,0);
+		Random random = new Random(3);
+		for(int i=0;i<numFiles;i++) {
+			String filename=randomName(random);
+			String peer=randomPeer(random);
+			single.indexUpdate(filename,peer);
+			partitioned.indexUpdate(filename,peer);
+		}
+		List<String[]> queries = new ArrayList<>();
+		for(int i=0;i<200;i++) {
+			// short words are checked against every filename, longer ones use the trigrams
+			String name=randomName(random);
+			queries.add(new String[] {name.substring(0,2),name.substring(4,7)+" "+name.substring(8,9)});
+		}
+		for(String[] query : queries) {
+			if(!single.query(query).equals(partitioned.query(query))) {
+				throw new IllegalStateException("partitions disagree on "+String.join(",",query));
+			}
+		}
+		System.out.println("query on "+numFiles+" files: "+queryTime(single,queries)+" us, with "+
+				partitions+" partitions in parallel: "+queryTime(partitioned,queries)+" us");
+	}
+
+	/**
+	 * Run a mix of queries, peer updates and index updates on the index.
+	 * @param index
+	 * @param threads number of threads to run the mix on
+	 * @param seconds how long to run it for
+	 * @return the operations done per second
+	 * @throws InterruptedException
+	 */
+	private static long throughput(FileIndex index,int threads,int seconds) throws InterruptedException {
+		AtomicLong ops = new AtomicLong();
+		List<Thread> workers = new ArrayList<>();
+		long end = System.currentTimeMillis()+seconds*1000L;
+		for(int t=0;t<threads;t++) {
+			final int seed=t;
+			Thread worker = new Thread(()->{
+				Random r = new Random(seed);
+				long done=0;
+				while(System.currentTimeMillis()<end) {
+					for(int i=0;i<100;i++) {
+						if(r.nextInt(100)<queryPercent) {
+							index.query(new String[] {randomName(r).substring(0,4)});
+						} else if(r.nextInt(10)==0) {
+							index.peerUpdate(randomPeer(r));
+						} else {
+							index.indexUpdate(randomName(r),randomPeer(r));
+						}
+					}
+					done+=100;
+				}
+				ops.addAndGet(done);
+			});
+			workers.add(worker);
+			worker.start();
+		}
+		for(Thread worker : workers) worker.join();
+		return ops.get()/seconds;
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int numFiles = args.length>0 ? Integer.parseInt(args[0]) : 200000;
+		int seconds = args.length>1 ? Integer.parseInt(args[1]) : 3;
+		int cores = Runtime.getRuntime().availableProcessors();
+		int maxThreads = args.length>2 ? Integer.parseInt(args[2]) : cores;
+		int partitions = args.length>3 ? Integer.parseInt(args[3]) : cores;
+
+		footprint(numFiles);
+		queryLatency(numFiles,partitions);
+
+		FileIndex index = new FileIndex(FileIndex.defaultCacheSize,FileIndex.defaultLeaseTime,
+				partitions,FileIndex.defaultParallelThreshold);
+		Random random = new Random(1);
+		for(int i=0;i<numFiles;i++) {
+			index.indexUpdate(randomName(random),randomPeer(random));
+		}
+		System.out.println("indexed "+index.size()+" files, "+cores+" cores, "+partitions+" partitions");
+
+		// let the JIT compile the index code before measuring
+		throughput(index,1,seconds);
+		for(int threads=1;threads<=maxThreads;threads*=2) {
+			System.out.println(threads+" threads: "+throughput(index,threads,seconds)+" ops/s");
+		}
+	}
+}
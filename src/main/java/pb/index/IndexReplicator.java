@@ -0,0 +1,254 @@
+package pb.index;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import pb.protocols.Document;
+
+/**
+ * Sends the changes made to a {@link FileIndex} to a backup index server, so
+ * that the backup holds the same index and can take over from this one. When
+ * started, the replicator first sends everything the index holds for each
+ * peer, between a begin and an end marker, followed by every later change as it
+ * happens. The changes are queued by the threads that make them and sent by the
+ * replicator's own thread, as batches of JSON of the form
+ * {"changes":[["a","host:port","filename"],...]}, each at most
+ * {@link pb.utils.Utils#batchSize} bytes. The changes are:
+ * <ul>
+ * <li>{@code ["B"]} and {@code ["E"]}: begin and end of the peers held by the index</li>
+ * <li>{@code ["a",peer,filename]}: the peer has the file</li>
+ * <li>{@code ["r",peer,filename]}: the peer no longer has the file</li>
+ * <li>{@code ["s",peer,time]}: the peer was seen</li>
+ * <li>{@code ["c",peer,catalog,version]}: the catalog version held for the peer</li>
+ * <li>{@code ["x",peer]}: everything held for the peer has been removed</li>
+ * <li>{@code ["h",peer]}: the peer's lease has been renewed</li>
+ * </ul>
+ * The backup applies the batches using a {@link Receiver}.
+ * @author aaron
+ *
+ */
+public class IndexReplicator extends Thread implements IIndexChangeHandler {
+	private static Logger log = Logger.getLogger(IndexReplicator.class.getName());
+
+	/**
+	 * Allowance in bytes for the JSON around each change.
+	 */
+	private static final int changeOverhead = 16;
+
+	private final FileIndex index;
+
+	/**
+	 * Sends a batch to the backup.
+	 */
+	private final Consumer<String> send;
+
+	/**
+	 * Maximum size of a batch in bytes.
+	 */
+	private final int batchSize;
+
+	/**
+	 * Changes waiting to be sent, guarded by this.
+	 */
+	private List<List<Object>> pending = new ArrayList<>();
+
+	private volatile boolean running=true;
+
+	/**
+	 * @param index the index to replicate
+	 * @param send called with each batch of changes to send to the backup
+	 * @param batchSize maximum size of a batch in bytes
+	 */
+	public IndexReplicator(FileIndex index,Consumer<String> send,int batchSize) {
+		this.index=index;
+		this.send=send;
+		this.batchSize=batchSize;
+		setDaemon(true);
+	}
+
+	private synchronized void enqueue(Object... change) {
+		if(!running) return;
+		pending.add(Arrays.asList(change));
+		notifyAll();
+	}
+
+	@Override
+	public void fileAdded(String filename,String peerport) {
+		enqueue("a",peerport,filename);
+	}
+
+	@Override
+	public void fileRemoved(String filename,String peerport) {
+		enqueue("r",peerport,filename);
+	}
+
+	@Override
+	public void peerSeen(String peerport,long seen) {
+		enqueue("s",peerport,seen);
+	}
+
+	@Override
+	public void catalogChanged(String peerport,String catalog,long version) {
+		enqueue("c",peerport,catalog,version);
+	}
+
+	@Override
+	public void peerRemoved(String peerport) {
+		enqueue("x",peerport);
+	}
+
+	@Override
+	public void leaseRenewed(String peerport) {
+		enqueue("h",peerport);
+	}
+
+	/**
+	 * Stop sending changes.
+	 */
+	public void shutdown() {
+		index.removeChangeHandler(this);
+		running=false;
+		synchronized(this) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Send the changes as batches of at most batchSize bytes.
+	 * @param changes
+	 */
+	private void sendBatches(List<List<Object>> changes) {
+		ArrayList<Object> batch = new ArrayList<>();
+		int size=0;
+		for(List<Object> change : changes) {
+			int changeSize=changeOverhead;
+			for(Object field : change) {
+				changeSize+=field.toString().getBytes(StandardCharsets.UTF_8).length+3;
+			}
+			if(size>0 && size+changeSize>batchSize) {
+				send(batch);
+				batch = new ArrayList<>();
+				size=0;
+			}
+			batch.add(change);
+			size+=changeSize;
+		}
+		if(size>0) send(batch);
+	}
+
+	private void send(ArrayList<Object> batch) {
+		Document doc = new Document();
+		doc.append("changes",batch);
+		send.accept(doc.toJson());
+	}
+
+	@Override
+	public void run() {
+		// everything from here on is seen, either as a change or in a peer's state
+		enqueue("B");
+		index.addChangeHandler(this);
+		Set<String> peers=index.getPeers();
+		for(String peerport : peers) {
+			index.replayPeer(peerport,this);
+		}
+		enqueue("E");
+		log.info("replicating the index of "+peers.size()+" peers");
+		while(running) {
+			List<List<Object>> changes;
+			synchronized(this) {
+				while(running && pending.isEmpty()) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// check whether we are still running
+					}
+				}
+				changes=pending;
+				pending=new ArrayList<>();
+			}
+			if(running) sendBatches(changes);
+		}
+	}
+
+	/**
+	 * Applies the batches sent by an {@link IndexReplicator} to the index of a
+	 * backup index server. Peers that the backup holds but that the primary no
+	 * longer holds are removed when the end marker is received.
+	 */
+	public static class Receiver {
+		private final FileIndex index;
+
+		/**
+		 * Peers held before the begin marker that have not been heard of since,
+		 * or null if not between the begin and end markers.
+		 */
+		private Set<String> stalePeers=null;
+
+		/**
+		 * @param index the backup's index
+		 */
+		public Receiver(FileIndex index) {
+			this.index=index;
+		}
+
+		/**
+		 * Apply a batch of changes.
+		 * @param json the batch
+		 * @throws IllegalArgumentException if the batch is not valid
+		 */
+		public synchronized void apply(String json) {
+			Object changes=Document.parse(json).get("changes");
+			if(!(changes instanceof List)) throw new IllegalArgumentException("not a batch of changes: "+json);
+			try {
+				for(Object change : (List<?>)changes) {
+					apply((List<?>)change);
+				}
+			} catch (ClassCastException | IndexOutOfBoundsException | NullPointerException e) {
+				throw new IllegalArgumentException("batch of changes is not valid: "+json);
+			}
+		}
+
+		private void apply(List<?> change) {
+			String op=(String) change.get(0);
+			if(op.equals("B")) {
+				stalePeers=index.getPeers();
+				return;
+			} else if(op.equals("E")) {
+				if(stalePeers!=null) {
+					for(String peerport : stalePeers) index.removePeer(peerport);
+					stalePeers=null;
+				}
+				return;
+			}
+			String peerport=(String) change.get(1);
+			if(stalePeers!=null) stalePeers.remove(peerport);
+			switch(op) {
+			case "a":
+				index.indexUpdate((String) change.get(2),peerport);
+				break;
+			case "r":
+				index.indexRemove((String) change.get(2),peerport);
+				break;
+			case "s":
+				index.peerUpdate(peerport,(Long) change.get(2));
+				break;
+			case "c":
+				index.putCatalogVersion(peerport,(String) change.get(2),(Long) change.get(3));
+				break;
+			case "x":
+				index.removePeer(peerport);
+				break;
+			case "h":
+				index.renewLease(peerport);
+				break;
+			default:
+				throw new IllegalArgumentException("unknown change: "+op);
+			}
+		}
+	}
+}
@@ -0,0 +1,398 @@
+package pb.index;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * An immutable part of a {@link SegmentedIndex}, kept in a memory mapped file
+ * off the heap. The filenames of a segment are numbered from 0 (documents), and
+ * the segment holds a sorted dictionary of the trigrams of the lower-cased
+ * filenames, each with a posting list of the ascending numbers of the documents
+ * that contain it. A query term is looked up by intersecting the posting lists
+ * of its trigrams, found by binary search, smallest first, and verifying the
+ * candidates. Reading the segment does not change the buffer, so it can be
+ * queried by many threads at once.
+ * <br/>
+ * The file is laid out as a header of {@link #headerSize} bytes, the UTF-8 bytes
+ * of the filenames, the offset of each filename and of the end of the last one,
+ * the posting lists as ints and the dictionary as entries of [trigram (long),
+ * start of the posting list (int), length of the posting list (int)]. A segment
+ * is at most 2GB.
+ * @author aaron
+ *
+ */
+public class IndexSegment {
+
+	private static final int segmentMagic = 0x50425347; // "PBSG"
+	private static final int headerSize = 32;
+	private static final int termSize = 16;
+
+	private final Path file;
+	private final MappedByteBuffer buffer;
+	private final int numDocs;
+	private final int numTerms;
+	private final int namesPos;
+	private final int offsetsPos;
+	private final int postingsPos;
+	private final int termsPos;
+
+	/**
+	 * Memory map a segment.
+	 * @param file
+	 * @throws IOException if the file is not a segment or cannot be read
+	 */
+	public IndexSegment(Path file) throws IOException {
+		this.file=file;
+		try(FileChannel channel=FileChannel.open(file,StandardOpenOption.READ)) {
+			long size=channel.size();
+			if(size<headerSize || size>Integer.MAX_VALUE) throw new IOException("not a segment: "+file);
+			buffer=channel.map(FileChannel.MapMode.READ_ONLY,0,size);
+		}
+		if(buffer.getInt(0)!=segmentMagic) throw new IOException("not a segment: "+file);
+		numDocs=buffer.getInt(4);
+		numTerms=buffer.getInt(8);
+		namesPos=buffer.getInt(12);
+		offsetsPos=buffer.getInt(16);
+		postingsPos=buffer.getInt(20);
+		termsPos=buffer.getInt(24);
+	}
+
+	/**
+	 * @return the number of filenames in the segment, including any that have
+	 * been removed from the index since it was written
+	 */
+	public int size() {
+		return numDocs;
+	}
+
+	/**
+	 * @return the size of the segment's file in bytes
+	 */
+	public long bytes() {
+		return buffer.capacity();
+	}
+
+	/**
+	 * @return the segment's file
+	 */
+	public Path getFile() {
+		return file;
+	}
+
+	/**
+	 * @param doc
+	 * @return the filename of the document
+	 */
+	public String name(int doc) {
+		int start=buffer.getInt(offsetsPos+4*doc);
+		int end=buffer.getInt(offsetsPos+4*(doc+1));
+		byte[] bytes = new byte[end-start];
+		ByteBuffer slice=buffer.duplicate();
+		slice.position(namesPos+start);
+		slice.get(bytes);
+		return new String(bytes,StandardCharsets.UTF_8);
+	}
+
+	private long trigram(int term) {
+		return buffer.getLong(termsPos+termSize*term);
+	}
+
+	private int postingsStart(int term) {
+		return buffer.getInt(termsPos+termSize*term+8);
+	}
+
+	private int postingsLength(int term) {
+		return buffer.getInt(termsPos+termSize*term+12);
+	}
+
+	private int posting(int start,int i) {
+		return buffer.getInt(postingsPos+4*(start+i));
+	}
+
+	/**
+	 * @param trigram
+	 * @return the dictionary entry of the trigram, or -1 if no filename has it
+	 */
+	private int findTerm(long trigram) {
+		int low=0;
+		int high=numTerms-1;
+		while(low<=high) {
+			int mid=(low+high)>>>1;
+			long t=trigram(mid);
+			if(t<trigram) low=mid+1;
+			else if(t>trigram) high=mid-1;
+			else return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param term
+	 * @param doc
+	 * @return true if the document is in the posting list of the term
+	 */
+	private boolean contains(int term,int doc) {
+		int start=postingsStart(term);
+		int low=0;
+		int high=postingsLength(term)-1;
+		while(low<=high) {
+			int mid=(low+high)>>>1;
+			int d=posting(start,mid);
+			if(d<doc) low=mid+1;
+			else if(d>doc) high=mid-1;
+			else return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Add the document's filename to the hits if it contains the term and is
+	 * still in the index.
+	 * @param doc
+	 * @param lower the lower-case term
+	 * @param live
+	 * @param hits
+	 */
+	private void verify(int doc,String lower,Predicate<String> live,Collection<String> hits) {
+		String name=name(doc);
+		if(name.toLowerCase().contains(lower) && live.test(name)) hits.add(name);
+	}
+
+	/**
+	 * Find the filenames that contain the term.
+	 * @param lower a lower-case term, matched as it is, spaces included
+	 * @param live whether a filename is still in the index
+	 * @param hits the collection to add matching filenames to
+	 */
+	public void match(String lower,Predicate<String> live,Collection<String> hits) {
+		if(lower.length()<3) {
+			for(int doc=0;doc<numDocs;doc++) verify(doc,lower,live,hits);
+			return;
+		}
+		List<Integer> terms = new ArrayList<>();
+		for(Long trigram : TrigramIndex.trigrams(lower)) {
+			int term=findTerm(trigram);
+			if(term<0) return; // no filename has this trigram
+			terms.add(term);
+		}
+		terms.sort((a,b)->Integer.compare(postingsLength(a),postingsLength(b)));
+		int smallest=terms.get(0);
+		int start=postingsStart(smallest);
+		int length=postingsLength(smallest);
+		for(int i=0;i<length;i++) {
+			int doc=posting(start,i);
+			boolean all=true;
+			for(int t=1;t<terms.size() && all;t++) {
+				all=contains(terms.get(t),doc);
+			}
+			if(all) verify(doc,lower,live,hits);
+		}
+	}
+
+	/**
+	 * Delete the segment's file. The segment can still be read until it is
+	 * no longer referenced, since the mapping stays valid.
+	 * @throws IOException
+	 */
+	public void delete() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	/**
+	 * Write the filenames of a trigram index as a segment. The index must no
+	 * longer have filenames added; filenames removed while it is written may
+	 * or may not be in the segment.
+	 * @param file
+	 * @param source
+	 * @return the segment
+	 * @throws IOException
+	 */
+	public static IndexSegment write(Path file,TrigramIndex source) throws IOException {
+		List<String> names = new ArrayList<>(source.filenames());
+		Map<String,Integer> docs = new HashMap<>();
+		try(Writer writer = new Writer(file)) {
+			for(String name : names) {
+				docs.put(name,docs.size());
+				writer.addName(name);
+			}
+			writer.endNames();
+			int[] postings = new int[16];
+			for(Map.Entry<Long,Set<String>> entry : new TreeMap<>(source.postings()).entrySet()) {
+				int length=0;
+				for(String name : entry.getValue()) {
+					Integer doc=docs.get(name);
+					if(doc==null) continue; // added after the names were written
+					if(length==postings.length) postings=Arrays.copyOf(postings,length*2);
+					postings[length++]=doc;
+				}
+				Arrays.sort(postings,0,length);
+				writer.addTerm(entry.getKey(),postings,length);
+			}
+			writer.finish();
+		}
+		return new IndexSegment(file);
+	}
+
+	/**
+	 * Merge segments into one, leaving out the filenames that are no longer in
+	 * the index. The documents of each segment follow those of the segment before
+	 * it, so the posting lists stay sorted and the dictionaries are merged in a
+	 * single pass without building the posting lists on the heap.
+	 * @param file
+	 * @param sources
+	 * @param live whether a filename is still in the index
+	 * @return the merged segment
+	 * @throws IOException
+	 */
+	public static IndexSegment merge(Path file,List<IndexSegment> sources,
+			Predicate<String> live) throws IOException {
+		try(Writer writer = new Writer(file)) {
+			int[][] remap = new int[sources.size()][];
+			int next=0;
+			for(int s=0;s<sources.size();s++) {
+				IndexSegment source=sources.get(s);
+				remap[s]=new int[source.numDocs];
+				for(int doc=0;doc<source.numDocs;doc++) {
+					String name=source.name(doc);
+					if(live.test(name)) {
+						remap[s][doc]=next++;
+						writer.addName(name);
+					} else {
+						remap[s][doc]=-1;
+					}
+				}
+			}
+			writer.endNames();
+			int[] cursors = new int[sources.size()];
+			int[] postings = new int[16];
+			while(true) {
+				long trigram=Long.MAX_VALUE;
+				for(int s=0;s<sources.size();s++) {
+					IndexSegment source=sources.get(s);
+					if(cursors[s]<source.numTerms) trigram=Math.min(trigram,source.trigram(cursors[s]));
+				}
+				if(trigram==Long.MAX_VALUE) break;
+				int length=0;
+				for(int s=0;s<sources.size();s++) {
+					IndexSegment source=sources.get(s);
+					if(cursors[s]>=source.numTerms || source.trigram(cursors[s])!=trigram) continue;
+					int start=source.postingsStart(cursors[s]);
+					int count=source.postingsLength(cursors[s]);
+					if(length+count>postings.length) postings=Arrays.copyOf(postings,Math.max(length+count,postings.length*2));
+					for(int i=0;i<count;i++) {
+						int doc=remap[s][source.posting(start,i)];
+						if(doc>=0) postings[length++]=doc;
+					}
+					cursors[s]++;
+				}
+				writer.addTerm(trigram,postings,length);
+			}
+			writer.finish();
+		}
+		return new IndexSegment(file);
+	}
+
+	/**
+	 * Writes the sections of a segment in order: the filenames, then the posting
+	 * lists in ascending order of trigram, then the header once the positions of
+	 * the sections are known.
+	 */
+	private static class Writer implements Closeable {
+		private final FileOutputStream file;
+		private final DataOutputStream out;
+		private int[] offsets = new int[1024];
+		private int numDocs=0;
+		private long[] trigrams = new long[1024];
+		private int[] starts = new int[1024];
+		private int[] lengths = new int[1024];
+		private int numTerms=0;
+		private int numPostings=0;
+		private int offsetsPos;
+		private int postingsPos;
+
+		Writer(Path path) throws IOException {
+			file=new FileOutputStream(path.toFile());
+			out=new DataOutputStream(new BufferedOutputStream(file,64*1024));
+			out.write(new byte[headerSize]);
+		}
+
+		/**
+		 * @throws IOException if the segment has grown past 2GB
+		 */
+		private void checkSize() throws IOException {
+			// DataOutputStream stops counting at Integer.MAX_VALUE
+			if(out.size()>Integer.MAX_VALUE-termSize) throw new IOException("segment is too large");
+		}
+
+		void addName(String name) throws IOException {
+			if(numDocs+1>=offsets.length) offsets=Arrays.copyOf(offsets,offsets.length*2);
+			offsets[numDocs++]=out.size()-headerSize;
+			out.write(name.getBytes(StandardCharsets.UTF_8));
+			checkSize();
+		}
+
+		void endNames() throws IOException {
+			offsets[numDocs]=out.size()-headerSize;
+			offsetsPos=out.size();
+			for(int i=0;i<=numDocs;i++) out.writeInt(offsets[i]);
+			postingsPos=out.size();
+			offsets=null;
+			checkSize();
+		}
+
+		void addTerm(long trigram,int[] postings,int length) throws IOException {
+			if(length==0) return;
+			if(numTerms==trigrams.length) {
+				trigrams=Arrays.copyOf(trigrams,numTerms*2);
+				starts=Arrays.copyOf(starts,numTerms*2);
+				lengths=Arrays.copyOf(lengths,numTerms*2);
+			}
+			trigrams[numTerms]=trigram;
+			starts[numTerms]=numPostings;
+			lengths[numTerms++]=length;
+			for(int i=0;i<length;i++) out.writeInt(postings[i]);
+			numPostings+=length;
+			checkSize();
+		}
+
+		void finish() throws IOException {
+			int termsPos=out.size();
+			for(int i=0;i<numTerms;i++) {
+				out.writeLong(trigrams[i]);
+				out.writeInt(starts[i]);
+				out.writeInt(lengths[i]);
+			}
+			checkSize();
+			out.flush();
+			ByteBuffer header=ByteBuffer.allocate(headerSize);
+			header.putInt(segmentMagic).putInt(numDocs).putInt(numTerms).putInt(headerSize)
+				.putInt(offsetsPos).putInt(postingsPos).putInt(termsPos);
+			header.rewind();
+			file.getChannel().write(header,0);
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,644 @@
+package pb.index;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Keeps a {@link FileIndex} on disk, so that the index server can be restarted
+ * without every peer having to upload its catalog again. The index is kept as a
+ * snapshot plus a write-ahead log (WAL) of the changes made since the snapshot.
+ * <br/>
+ * Every change to the index is appended to an in-memory buffer by the thread
+ * that makes it. This thread writes the buffer to the current WAL file and
+ * forces it to disk; the changes that arrive while a write is being forced form
+ * the next group, so a single force commits many changes (group commit). Callers
+ * that must not acknowledge a change until it is durable call {@link #sync()}.
+ * <br/>
+ * Once the WAL has grown past {@link #compactBytes} bytes, or every
+ * {@link #compactInterval} ms if it has grown at all, a compactor thread starts
+ * a new WAL file and writes a snapshot of the index in the background. Once
+ * the snapshot has been read back and its checksum verified, the snapshots and
+ * WAL files before the previous snapshot are deleted; the previous snapshot and
+ * the WAL files after it are kept, so that the index can still be restored if
+ * the latest snapshot is later found to be corrupt. Changes are logged per
+ * peer under the index's peer locks and replaying a change that is already in
+ * the snapshot has no effect, so the snapshot does not need to stop updates.
+ * On startup the latest snapshot is memory mapped and decoded, and the WAL files
+ * written after it are replayed. A snapshot that is corrupt is renamed to
+ * {@code index-N.snap.corrupt} and the one before it is used instead; if none
+ * can be read, the server refuses to start rather than restore only the
+ * changes of the remaining WAL files.
+ * <br/>
+ * Files in the data directory:
+ * <ul>
+ * <li>{@code index-N.snap}: snapshot of the index when WAL file N was started</li>
+ * <li>{@code index-N.wal}: records of [length, crc32, change]</li>
+ * </ul>
+ * @see {@link pb.index.FileIndex}
+ * @author aaron
+ *
+ */
+public class IndexStore extends Thread implements IIndexChangeHandler {
+	private static Logger log = Logger.getLogger(IndexStore.class.getName());
+
+	/**
+	 * Size of the WAL in bytes after which a snapshot is taken.
+	 */
+	private static final long compactBytes = 64*1024*1024;
+
+	/**
+	 * Time in ms between checks for whether a snapshot should be taken.
+	 */
+	private static final long compactInterval = 10*60*1000;
+
+	private static final int snapshotMagic = 0x50424958; // "PBIX"
+	private static final byte snapshotFormat = 1;
+
+	/**
+	 * WAL record types.
+	 */
+	private static final byte opUpdate = 1;
+	private static final byte opRemove = 2;
+	private static final byte opSeen = 3;
+	private static final byte opCatalog = 4;
+	private static final byte opRemovePeer = 5;
+
+	/**
+	 * Everything about a peer that the index holds.
+	 */
+	static class PeerState {
+		long seen=0;
+		String catalog=null;
+		long version=0;
+		final Set<String> files=new LinkedHashSet<>();
+	}
+
+	/**
+	 * Directory that the snapshots and WAL files are kept in.
+	 */
+	private final Path dir;
+
+	/**
+	 * Changes that have been logged but not yet written, guarded by this.
+	 */
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+	/**
+	 * Number of records logged, and the number that are durable, guarded by this.
+	 */
+	private long appended=0;
+	private long durable=0;
+
+	/**
+	 * Held while writing to the WAL, so that the WAL can be switched safely.
+	 * Taken before this when both are needed.
+	 */
+	private final Object writeLock = new Object();
+
+	/**
+	 * Held while compacting, so that only one snapshot is written at a time.
+	 */
+	private final Object compactLock = new Object();
+
+	/**
+	 * The current WAL file, its sequence number and the WAL bytes written
+	 * since the last snapshot, guarded by writeLock.
+	 */
+	private FileChannel wal;
+	private long walSeq=0;
+	private long walBytes=0;
+
+	/**
+	 * The index being stored, set by {@link #load(FileIndex)}.
+	 */
+	private FileIndex index;
+
+	private volatile boolean running=true;
+
+	private final Thread compactor;
+
+	/**
+	 * @param dir the data directory, created if it does not exist
+	 * @throws IOException
+	 */
+	public IndexStore(Path dir) throws IOException {
+		this.dir=dir;
+		Files.createDirectories(dir);
+		compactor=new Thread(()->{
+			while(running) {
+				synchronized(writeLock) {
+					try {
+						writeLock.wait(compactInterval);
+					} catch (InterruptedException e) {
+						// check whether we are still running
+					}
+					if(!running || walBytes==0) continue;
+				}
+				compact();
+			}
+		});
+		compactor.setDaemon(true);
+	}
+
+	private Path snapshotPath(long seq) {
+		return dir.resolve("index-"+seq+".snap");
+	}
+
+	private Path walPath(long seq) {
+		return dir.resolve("index-"+seq+".wal");
+	}
+
+	/**
+	 * @param suffix
+	 * @return sequence number to file, for the files with the suffix, in order
+	 * @throws IOException
+	 */
+	private TreeMap<Long,Path> listFiles(String suffix) throws IOException {
+		TreeMap<Long,Path> files = new TreeMap<>();
+		try(DirectoryStream<Path> stream=Files.newDirectoryStream(dir,"index-*"+suffix)) {
+			for(Path file : stream) {
+				String name=file.getFileName().toString();
+				try {
+					files.put(Long.parseLong(name.substring(6,name.length()-suffix.length())),file);
+				} catch (NumberFormatException e) {
+					log.warning("ignoring unknown file: "+file);
+				}
+			}
+		}
+		return files;
+	}
+
+	/*
+	 * Encoding of numbers and strings, shared by snapshots and the WAL.
+	 */
+
+	private static void writeVarLong(DataOutputStream out,long value) throws IOException {
+		while((value & ~0x7fL)!=0) {
+			out.writeByte((int)((value & 0x7f) | 0x80));
+			value>>>=7;
+		}
+		out.writeByte((int)value);
+	}
+
+	private static long readVarLong(ByteBuffer in) {
+		long value=0;
+		for(int shift=0;shift<64;shift+=7) {
+			byte b=in.get();
+			value|=(long)(b & 0x7f)<<shift;
+			if((b & 0x80)==0) return value;
+		}
+		throw new IllegalArgumentException("malformed number");
+	}
+
+	private static void writeString(DataOutputStream out,String s) throws IOException {
+		byte[] bytes=s.getBytes(StandardCharsets.UTF_8);
+		writeVarLong(out,bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer in) {
+		long length=readVarLong(in);
+		if(length<0 || length>in.remaining()) throw new IllegalArgumentException("malformed string");
+		byte[] bytes=new byte[(int)length];
+		in.get(bytes);
+		return new String(bytes,StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Logging of changes, called by the index under its peer locks.
+	 */
+
+	private synchronized void append(byte[] record) {
+		if(!running) return;
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		DataOutputStream out = new DataOutputStream(pending);
+		try {
+			out.writeInt(record.length);
+			out.writeInt((int)crc.getValue());
+			out.write(record);
+		} catch (IOException e) {
+			// not thrown by a ByteArrayOutputStream
+		}
+		appended++;
+		notifyAll();
+	}
+
+	private void log(byte op,String peerport,String s,long n,boolean hasString,boolean hasNumber) {
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(record);
+		try {
+			out.writeByte(op);
+			writeString(out,peerport);
+			if(hasString) writeString(out,s);
+			if(hasNumber) writeVarLong(out,n);
+		} catch (IOException e) {
+			// not thrown by a ByteArrayOutputStream
+		}
+		append(record.toByteArray());
+	}
+
+	@Override
+	public void fileAdded(String filename,String peerport) {
+		log(opUpdate,peerport,filename,0,true,false);
+	}
+
+	@Override
+	public void fileRemoved(String filename,String peerport) {
+		log(opRemove,peerport,filename,0,true,false);
+	}
+
+	@Override
+	public void peerSeen(String peerport,long seen) {
+		log(opSeen,peerport,null,seen,false,true);
+	}
+
+	@Override
+	public void catalogChanged(String peerport,String catalog,long version) {
+		log(opCatalog,peerport,catalog,version,true,true);
+	}
+
+	@Override
+	public void peerRemoved(String peerport) {
+		log(opRemovePeer,peerport,null,0,false,false);
+	}
+
+	@Override
+	public void leaseRenewed(String peerport) {
+		// leases are not kept, peers are given a new lease on restart
+	}
+
+	/**
+	 * Apply a WAL record to the peer states.
+	 * @param record
+	 * @param peers
+	 */
+	private static void replay(ByteBuffer record,Map<String,PeerState> peers) {
+		byte op=record.get();
+		String peerport=readString(record);
+		if(op==opRemovePeer) {
+			peers.remove(peerport);
+			return;
+		}
+		PeerState peer=peers.computeIfAbsent(peerport,(k)->new PeerState());
+		switch(op) {
+		case opUpdate:
+			peer.files.add(readString(record));
+			break;
+		case opRemove:
+			peer.files.remove(readString(record));
+			break;
+		case opSeen:
+			peer.seen=readVarLong(record);
+			break;
+		case opCatalog:
+			peer.catalog=readString(record);
+			peer.version=readVarLong(record);
+			break;
+		default:
+			throw new IllegalArgumentException("unknown WAL record type: "+op);
+		}
+	}
+
+	/**
+	 * Replay the WAL file, stopping at the first incomplete or corrupt record,
+	 * which can only be at the end of the file after a crash.
+	 * @param file
+	 * @param peers
+	 * @return the number of records replayed
+	 * @throws IOException
+	 */
+	private static long replayWal(Path file,Map<String,PeerState> peers) throws IOException {
+		ByteBuffer in=ByteBuffer.wrap(Files.readAllBytes(file));
+		long records=0;
+		while(in.remaining()>=8) {
+			int length=in.getInt();
+			int crc=in.getInt();
+			if(length<0 || length>in.remaining()) break;
+			byte[] record=new byte[length];
+			in.get(record);
+			CRC32 check = new CRC32();
+			check.update(record);
+			if((int)check.getValue()!=crc) break;
+			try {
+				replay(ByteBuffer.wrap(record),peers);
+			} catch (BufferUnderflowException | IllegalArgumentException e) {
+				break;
+			}
+			records++;
+		}
+		if(in.hasRemaining()) log.warning("ignoring incomplete end of "+file);
+		return records;
+	}
+
+	/**
+	 * Write a snapshot of the peer states, filenames being sorted and front
+	 * coded (the length of the prefix shared with the previous filename and
+	 * the rest of the filename) to keep the snapshot small.
+	 * @param seq
+	 * @param index
+	 * @return the number of peers written
+	 * @throws IOException
+	 */
+	private long writeSnapshot(long seq,FileIndex index) throws IOException {
+		Path tmp=dir.resolve("index-"+seq+".snap.tmp");
+		Set<String> peerports=index.getPeers();
+		CRC32 crc = new CRC32();
+		try(FileOutputStream file = new FileOutputStream(tmp.toFile());
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new CheckedOutputStream(file,crc),64*1024))) {
+			out.writeInt(snapshotMagic);
+			out.writeByte(snapshotFormat);
+			writeVarLong(out,seq);
+			writeVarLong(out,peerports.size());
+			for(String peerport : peerports) {
+				PeerState peer=index.getPeerState(peerport);
+				writeString(out,peerport);
+				writeVarLong(out,peer.seen);
+				writeString(out,peer.catalog==null ? "" : peer.catalog);
+				writeVarLong(out,peer.version);
+				List<String> files = new ArrayList<>(peer.files);
+				Collections.sort(files);
+				writeVarLong(out,files.size());
+				String previous="";
+				for(String filename : files) {
+					int shared=0;
+					int max=Math.min(previous.length(),filename.length());
+					while(shared<max && previous.charAt(shared)==filename.charAt(shared)) shared++;
+					// don't split a surrogate pair
+					if(shared>0 && Character.isHighSurrogate(filename.charAt(shared-1))) shared--;
+					writeVarLong(out,shared);
+					writeString(out,filename.substring(shared));
+					previous=filename;
+				}
+			}
+			out.flush();
+			out.writeInt((int)crc.getValue());
+			out.flush();
+			file.getFD().sync();
+		}
+		Files.move(tmp,snapshotPath(seq),StandardCopyOption.ATOMIC_MOVE,StandardCopyOption.REPLACE_EXISTING);
+		return peerports.size();
+	}
+
+	/**
+	 * Memory map a snapshot and check its checksum.
+	 * @param channel
+	 * @param file
+	 * @return the snapshot without its checksum
+	 * @throws IOException if the snapshot is corrupt or cannot be read
+	 */
+	private static MappedByteBuffer mapSnapshot(FileChannel channel,Path file) throws IOException {
+		long size=channel.size();
+		if(size<4) throw new IOException("snapshot is truncated: "+file);
+		MappedByteBuffer in=channel.map(FileChannel.MapMode.READ_ONLY,0,size);
+		ByteBuffer body=in.duplicate();
+		body.limit((int)size-4);
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		if((int)crc.getValue()!=in.getInt((int)size-4)) throw new IOException("snapshot is corrupt: "+file);
+		in.limit((int)size-4);
+		return in;
+	}
+
+	/**
+	 * Read a snapshot back from the disk and check its checksum.
+	 * @param file
+	 * @throws IOException if the snapshot is corrupt or cannot be read
+	 */
+	private static void verifySnapshot(Path file) throws IOException {
+		try(FileChannel channel=FileChannel.open(file,StandardOpenOption.READ)) {
+			mapSnapshot(channel,file);
+		}
+	}
+
+	/**
+	 * Memory map and decode a snapshot.
+	 * @param file
+	 * @param peers
+	 * @throws IOException if the snapshot is corrupt or cannot be read
+	 */
+	private static void readSnapshot(Path file,Map<String,PeerState> peers) throws IOException {
+		try(FileChannel channel=FileChannel.open(file,StandardOpenOption.READ)) {
+			MappedByteBuffer in=mapSnapshot(channel,file);
+			try {
+				if(in.getInt()!=snapshotMagic || in.get()!=snapshotFormat) {
+					throw new IOException("not a snapshot: "+file);
+				}
+				readVarLong(in); // sequence number, also in the file name
+				long numPeers=readVarLong(in);
+				for(long p=0;p<numPeers;p++) {
+					PeerState peer = new PeerState();
+					peers.put(readString(in),peer);
+					peer.seen=readVarLong(in);
+					String catalog=readString(in);
+					peer.catalog=catalog.isEmpty() ? null : catalog;
+					peer.version=readVarLong(in);
+					long numFiles=readVarLong(in);
+					String previous="";
+					for(long f=0;f<numFiles;f++) {
+						int shared=(int)readVarLong(in);
+						previous=previous.substring(0,shared)+readString(in);
+						peer.files.add(previous);
+					}
+				}
+			} catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+				throw new IOException("snapshot is corrupt: "+file);
+			}
+		}
+	}
+
+	/**
+	 * Restore the index from the latest snapshot that can be read and the WAL
+	 * files after it, then log all further changes to the index. Must be called
+	 * once, before the index is used and before this thread is started.
+	 * @param index an empty index
+	 * @throws IOException if there are snapshots but none can be read, since
+	 * the changes before them are gone
+	 */
+	public void load(FileIndex index) throws IOException {
+		long start=System.currentTimeMillis();
+		Map<String,PeerState> peers = new HashMap<>();
+		TreeMap<Long,Path> snapshots=listFiles(".snap");
+		long from=0;
+		for(Long seq : snapshots.descendingKeySet()) {
+			try {
+				readSnapshot(snapshots.get(seq),peers);
+				from=seq;
+				break;
+			} catch (IOException e) {
+				log.warning(e.getMessage());
+				peers.clear();
+				Path file=snapshots.get(seq);
+				// so that it is not kept as the previous snapshot
+				Files.move(file,file.resolveSibling(file.getFileName()+".corrupt"),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		if(from==0 && !snapshots.isEmpty()) {
+			throw new IOException("none of the snapshots in "+dir+" can be read, and the changes "+
+					"logged before them have been deleted");
+		}
+		TreeMap<Long,Path> wals=listFiles(".wal");
+		long records=0;
+		for(Map.Entry<Long,Path> file : wals.tailMap(from,true).entrySet()) {
+			records+=replayWal(file.getValue(),peers);
+			walBytes+=Files.size(file.getValue());
+		}
+		for(Map.Entry<String,PeerState> peer : peers.entrySet()) {
+			index.restorePeer(peer.getKey(),peer.getValue());
+		}
+		walSeq=Math.max(from,wals.isEmpty() ? 0 : wals.lastKey())+1;
+		wal=FileChannel.open(walPath(walSeq),StandardOpenOption.CREATE,StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		this.index=index;
+		index.addChangeHandler(this);
+		log.info("restored "+index.size()+" files of "+peers.size()+" peers"+
+				(from>0 ? " from snapshot "+from : "")+" and "+records+" logged changes in "+
+				(System.currentTimeMillis()-start)+" ms");
+	}
+
+	/**
+	 * Wait until every change logged so far is on disk.
+	 * @throws InterruptedException
+	 */
+	public synchronized void sync() throws InterruptedException {
+		long target=appended;
+		while(durable<target && running) wait();
+	}
+
+	/**
+	 * Write the pending changes to the WAL and force them to disk. Must be
+	 * called holding the writeLock.
+	 * @throws IOException
+	 */
+	private void commit() throws IOException {
+		byte[] group;
+		long upto;
+		synchronized(this) {
+			group=pending.toByteArray();
+			pending=new ByteArrayOutputStream();
+			upto=appended;
+		}
+		if(group.length>0) {
+			ByteBuffer buffer=ByteBuffer.wrap(group);
+			while(buffer.hasRemaining()) wal.write(buffer);
+			wal.force(false);
+			walBytes+=group.length;
+		}
+		synchronized(this) {
+			durable=upto;
+			notifyAll();
+		}
+		if(walBytes>compactBytes) writeLock.notifyAll();
+	}
+
+	/**
+	 * Start a new WAL file and write a snapshot of the index as it is now,
+	 * then delete the snapshots and WAL files that it replaces.
+	 */
+	public void compact() {
+		synchronized(compactLock) {
+			writeCompaction();
+		}
+	}
+
+	private void writeCompaction() {
+		long seq;
+		try {
+			synchronized(writeLock) {
+				commit();
+				wal.close();
+				seq=walSeq+1;
+				wal=FileChannel.open(walPath(seq),StandardOpenOption.CREATE,StandardOpenOption.WRITE,
+						StandardOpenOption.APPEND);
+				walSeq=seq;
+				walBytes=0;
+			}
+			long start=System.currentTimeMillis();
+			long numPeers=writeSnapshot(seq,index);
+			verifySnapshot(snapshotPath(seq));
+			// keep the previous snapshot and the WAL files after it
+			TreeMap<Long,Path> snapshots=listFiles(".snap");
+			Long previous=snapshots.lowerKey(seq);
+			long keep=previous==null ? seq : previous;
+			for(Path file : snapshots.headMap(keep).values()) Files.delete(file);
+			for(Path file : listFiles(".wal").headMap(keep).values()) Files.delete(file);
+			log.info("wrote snapshot "+seq+" of "+numPeers+" peers in "+
+					(System.currentTimeMillis()-start)+" ms");
+		} catch (IOException e) {
+			log.severe("could not write snapshot: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Commit the remaining changes, write a final snapshot so that the next
+	 * start is fast, and stop.
+	 */
+	public void shutdown() {
+		compact();
+		running=false;
+		synchronized(this) {
+			notifyAll();
+		}
+		synchronized(writeLock) {
+			writeLock.notifyAll();
+		}
+		try {
+			join();
+		} catch (InterruptedException e) {
+			// we are exiting anyway
+		}
+	}
+
+	@Override
+	public void run() {
+		compactor.start();
+		try {
+			while(running) {
+				synchronized(this) {
+					while(running && appended==durable) wait();
+				}
+				synchronized(writeLock) {
+					commit();
+				}
+			}
+			synchronized(writeLock) {
+				commit();
+				wal.close();
+			}
+		} catch (IOException e) {
+			log.severe("could not write to the WAL, changes will not be kept: "+e.getMessage());
+			running=false;
+			synchronized(this) {
+				notifyAll();
+			}
+		} catch (InterruptedException e) {
+			log.warning("WAL writer interrupted");
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package pb.index;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A set of non-negative ints, such as the ids of the files that a peer has,
+ * kept in a single open addressing hash table with linear probing. Each member
+ * costs 4 to 8 bytes, rather than the tens of bytes of a boxed Integer in a
+ * node of a {@link java.util.HashSet}. Removal shifts the following entries
+ * back, so there are no tombstones and lookups stay short. The set is not
+ * thread safe, the caller must guard it.
+ * @author aaron
+ *
+ */
+public class IntSet {
+
+	/**
+	 * Marks an empty slot of the table.
+	 */
+	private static final int empty = -1;
+
+	/**
+	 * The table, its length is a power of two.
+	 */
+	private int[] table;
+
+	/**
+	 * Number of members.
+	 */
+	private int size=0;
+
+	public IntSet() {
+		table=new int[4];
+		Arrays.fill(table,empty);
+	}
+
+	/**
+	 * @param x
+	 * @return the slot that the member should be in, if there were no collisions
+	 */
+	private int home(int x) {
+		int h=x*0x9e3779b9;
+		return (h ^ (h>>>16)) & (table.length-1);
+	}
+
+	/**
+	 * @param x
+	 * @return the slot of the member, or of the empty slot where it would go
+	 */
+	private int slot(int x) {
+		int mask=table.length-1;
+		int i=home(x);
+		while(table[i]!=empty && table[i]!=x) i=(i+1) & mask;
+		return i;
+	}
+
+	/**
+	 * Add a member.
+	 * @param x a non-negative int
+	 * @return true if it was not already a member
+	 */
+	public boolean add(int x) {
+		if(x<0) throw new IllegalArgumentException("not a non-negative int: "+x);
+		int i=slot(x);
+		if(table[i]==x) return false;
+		table[i]=x;
+		// keep the table at most three quarters full
+		if(++size*4>table.length*3) resize(table.length*2);
+		return true;
+	}
+
+	/**
+	 * Remove a member.
+	 * @param x
+	 * @return true if it was a member
+	 */
+	public boolean remove(int x) {
+		if(x<0) return false;
+		int i=slot(x);
+		if(table[i]!=x) return false;
+		int mask=table.length-1;
+		// shift back the entries that would no longer be found past the gap
+		for(int j=(i+1) & mask;table[j]!=empty;j=(j+1) & mask) {
+			int home=home(table[j]);
+			boolean stays = j>i ? (home>i && home<=j) : (home>i || home<=j);
+			if(!stays) {
+				table[i]=table[j];
+				i=j;
+			}
+		}
+		table[i]=empty;
+		size--;
+		return true;
+	}
+
+	/**
+	 * @param x
+	 * @return true if x is a member
+	 */
+	public boolean contains(int x) {
+		return x>=0 && table[slot(x)]==x;
+	}
+
+	/**
+	 * @return the number of members
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Perform the action for each member, in no particular order. The set
+	 * must not be changed by the action.
+	 * @param action
+	 */
+	public void forEach(IntConsumer action) {
+		for(int x : table) {
+			if(x!=empty) action.accept(x);
+		}
+	}
+
+	private void resize(int length) {
+		int[] old=table;
+		table=new int[length];
+		Arrays.fill(table,empty);
+		for(int x : old) {
+			if(x!=empty) table[slot(x)]=x;
+		}
+	}
+}
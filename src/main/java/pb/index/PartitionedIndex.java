@@ -0,0 +1,150 @@
+package pb.index;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * A substring index that is split into partitions, each an index of its own
+ * over a share of the filenames, so that a query can be evaluated on all of the
+ * partitions at once instead of on the one endpoint thread that received it. A
+ * filename always goes to the same partition, chosen by its hash, so a filename
+ * matches in exactly one partition and the partial results are simply merged.
+ * <br/>
+ * The partitions are queried as {@link RecursiveTask}s on the common
+ * {@link ForkJoinPool}, splitting the partitions in halves until each task has
+ * one, but only once the index holds at least a threshold number of filenames.
+ * Below that a query is cheap and is run on the calling thread, one partition
+ * after the other, without the cost of handing it to other threads.
+ * @author aaron
+ *
+ */
+public class PartitionedIndex implements IFilenameIndex {
+
+	/**
+	 * The partitions, each holding the filenames that hash to it.
+	 */
+	private final List<IFilenameIndex> partitions;
+
+	/**
+	 * The number of filenames in the index.
+	 */
+	private final IntSupplier size;
+
+	/**
+	 * Number of filenames at which queries are run in parallel.
+	 */
+	private final int parallelThreshold;
+
+	/**
+	 * Number of queries that were run in parallel.
+	 */
+	private final AtomicLong parallelQueries = new AtomicLong();
+
+	/**
+	 * Match the terms on a range of the partitions.
+	 */
+	@SuppressWarnings("serial")
+	private class MatchTask extends RecursiveTask<Set<String>> {
+		private final String[] terms;
+		private final int from;
+		private final int to;
+
+		MatchTask(String[] terms,int from,int to) {
+			this.terms=terms;
+			this.from=from;
+			this.to=to;
+		}
+
+		@Override
+		protected Set<String> compute() {
+			if(to-from==1) return partitions.get(from).matchAny(terms);
+			int mid=(from+to)>>>1;
+			MatchTask left=new MatchTask(terms,from,mid);
+			left.fork();
+			Set<String> hits=new MatchTask(terms,mid,to).compute();
+			return merge(left.join(),hits);
+		}
+	}
+
+	/**
+	 * @param partitions the partitions, at least one
+	 * @param size the number of filenames in the index
+	 * @param parallelThreshold number of filenames at which queries are run in parallel
+	 */
+	public PartitionedIndex(List<IFilenameIndex> partitions,IntSupplier size,int parallelThreshold) {
+		this.partitions=partitions;
+		this.size=size;
+		this.parallelThreshold=parallelThreshold;
+	}
+
+	private IFilenameIndex partition(String filename) {
+		return partitions.get((filename.hashCode() & 0x7fffffff) % partitions.size());
+	}
+
+	/**
+	 * @param a
+	 * @param b
+	 * @return the union of the sets, made by adding the smaller into the larger
+	 */
+	private static Set<String> merge(Set<String> a,Set<String> b) {
+		if(a.size()<b.size()) {
+			Set<String> swap=a;
+			a=b;
+			b=swap;
+		}
+		a.addAll(b);
+		return a;
+	}
+
+	@Override
+	public void add(String filename) {
+		partition(filename).add(filename);
+	}
+
+	@Override
+	public void remove(String filename) {
+		partition(filename).remove(filename);
+	}
+
+	@Override
+	public Set<String> matchAny(String[] terms) {
+		if(partitions.size()>1 && size.getAsInt()>=parallelThreshold) {
+			parallelQueries.incrementAndGet();
+			return ForkJoinPool.commonPool().invoke(new MatchTask(terms,0,partitions.size()));
+		}
+		Set<String> hits=partitions.get(0).matchAny(terms);
+		for(IFilenameIndex partition : partitions.subList(1,partitions.size())) {
+			hits=merge(hits,partition.matchAny(terms));
+		}
+		return hits;
+	}
+
+	/**
+	 * The metrics of the partitions are added up.
+	 */
+	@Override
+	public Map<String,Long> getStats() {
+		Map<String,Long> stats = new LinkedHashMap<>();
+		stats.put("partitions",(long)partitions.size());
+		stats.put("parallelQueries",parallelQueries.get());
+		for(IFilenameIndex partition : partitions) {
+			for(Map.Entry<String,Long> stat : partition.getStats().entrySet()) {
+				stats.merge(stat.getKey(),stat.getValue(),Long::sum);
+			}
+		}
+		return stats;
+	}
+
+	@Override
+	public void shutdown() {
+		for(IFilenameIndex partition : partitions) {
+			partition.shutdown();
+		}
+	}
+}
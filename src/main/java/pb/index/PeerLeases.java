@@ -0,0 +1,157 @@
+package pb.index;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The leases of the peers in a {@link FileIndex}. A peer's lease lasts for
+ * {@link #getLeaseTime()} ms from when it was last renewed. Expiry times are
+ * rounded up to a tick and kept in a timer wheel, a ring of slots with one
+ * slot per tick, so that finding the leases that expire at a tick only looks
+ * at the peers in that tick's slot, however many peers there are. Leases
+ * longer than the wheel stay in their slot until the wheel comes round to
+ * their tick. A peer is only ever in the slot of its current expiry time,
+ * so renewing a lease just moves the peer to another slot.
+ * @author aaron
+ *
+ */
+public class PeerLeases {
+
+	/**
+	 * Length of a lease in ms.
+	 */
+	private final long leaseTime;
+
+	/**
+	 * Length of a tick in ms.
+	 */
+	private final long tick;
+
+	/**
+	 * The timer wheel, the peers whose leases expire at tick t are in slot t % slots.length.
+	 */
+	private final Set<String>[] slots;
+
+	/**
+	 * "PeerIP:PeerPort" to the tick at which its lease expires. Read without
+	 * locking to check whether a lease is live.
+	 */
+	private final Map<String,Long> expiry;
+
+	/**
+	 * The last tick that expired leases were looked for.
+	 */
+	private long lastTick;
+
+	/**
+	 * @param leaseTime length of a lease in ms
+	 * @param tick length of a tick in ms
+	 * @param numSlots number of slots in the wheel
+	 * @param now the current time in ms
+	 */
+	@SuppressWarnings({"unchecked","rawtypes"})
+	public PeerLeases(long leaseTime,long tick,int numSlots,long now) {
+		this.leaseTime=leaseTime;
+		this.tick=tick;
+		slots=new Set[numSlots];
+		for(int i=0;i<numSlots;i++) slots[i]=new HashSet<>();
+		expiry=new ConcurrentHashMap<>();
+		lastTick=now/tick;
+	}
+
+	/**
+	 * @return the length of a lease in ms
+	 */
+	public long getLeaseTime() {
+		return leaseTime;
+	}
+
+	/**
+	 * @return the number of peers holding a lease, including leases that have
+	 * expired but have not yet been swept
+	 */
+	public int size() {
+		return expiry.size();
+	}
+
+	private Set<String> slot(long t) {
+		return slots[(int)(t % slots.length)];
+	}
+
+	/**
+	 * Renew the peer's lease, or grant it a new one.
+	 * @param peerport
+	 * @param now the current time in ms
+	 */
+	public synchronized void renew(String peerport,long now) {
+		long t=(now+leaseTime+tick-1)/tick;
+		Long old=expiry.put(peerport,t);
+		if(old!=null) {
+			if(old==t) return;
+			slot(old).remove(peerport);
+		}
+		slot(t).add(peerport);
+	}
+
+	/**
+	 * Grant the peer a lease if it does not have one.
+	 * @param peerport
+	 * @param now the current time in ms
+	 */
+	public void ensure(String peerport,long now) {
+		if(!expiry.containsKey(peerport)) {
+			synchronized(this) {
+				if(!expiry.containsKey(peerport)) renew(peerport,now);
+			}
+		}
+	}
+
+	/**
+	 * @param peerport
+	 * @param now the current time in ms
+	 * @return true if the peer's lease has not expired
+	 */
+	public boolean isLive(String peerport,long now) {
+		Long t=expiry.get(peerport);
+		return t!=null && t*tick>now;
+	}
+
+	/**
+	 * Forget the peer's lease.
+	 * @param peerport
+	 */
+	public synchronized void remove(String peerport) {
+		Long t=expiry.remove(peerport);
+		if(t!=null) slot(t).remove(peerport);
+	}
+
+	/**
+	 * Advance the wheel to the current time, taking out the leases that have
+	 * expired. The peers stay in the lease table, expired, until they are
+	 * {@link #remove(String)}d, so that they can still renew in the meantime.
+	 * @param now the current time in ms
+	 * @return the peers whose leases have expired since the last call
+	 */
+	public synchronized List<String> advance(long now) {
+		List<String> expired = new ArrayList<>();
+		long nowTick=now/tick;
+		// after a long pause every slot is looked at once
+		long from=Math.max(lastTick+1,nowTick-slots.length+1);
+		for(long t=from;t<=nowTick;t++) {
+			Set<String> slot=slot(t);
+			for(String peerport : new ArrayList<>(slot)) {
+				Long expires=expiry.get(peerport);
+				if(expires!=null && expires<=nowTick) {
+					slot.remove(peerport);
+					expired.add(peerport);
+				}
+			}
+		}
+		lastTick=Math.max(lastTick,nowTick);
+		return expired;
+	}
+}
@@ -0,0 +1,344 @@
+package pb.index;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded, least recently used cache of query results, that is kept exactly
+ * up to date as filenames enter and leave the index rather than being flushed.
+ * When a filename is added or removed only the cached queries that it matches
+ * are changed. To find those quickly, each cached query is indexed by the
+ * first trigram of each of its lower-cased terms, since a filename can only
+ * match a term if it contains that trigram; queries with a term shorter than
+ * three characters, such as the empty term that matches everything, are
+ * checked against every change.
+ * <br/>
+ * A query that is being computed is registered first, and the changes that
+ * happen while it is computed are applied to its result when it completes,
+ * so that the cached result does not miss them.
+ * <br/>
+ * Changes to the index are only queued, without taking the cache's lock, since
+ * they are made while the index holds its own locks. The queue is applied
+ * before each use of the cache, or by a change that finds it long and the
+ * lock free. The cache is bounded both by the number of queries and by the
+ * total number of hits that they hold, so that a query that matches most of
+ * the index can't pin it all.
+ * @author aaron
+ *
+ */
+public class QueryCache {
+
+	/**
+	 * A cached query and its result.
+	 */
+	private static class Entry {
+		final String[] terms;
+		/**
+		 * Trigrams that the entry is indexed by.
+		 */
+		final List<Long> trigrams=new ArrayList<>();
+		Set<String> hits=null;
+		/**
+		 * Changes seen while the result was being computed, filename to
+		 * whether it was added (true) or removed (false).
+		 */
+		Map<String,Boolean> pending=new LinkedHashMap<>();
+
+		Entry(String[] terms) {
+			this.terms=terms;
+		}
+	}
+
+	/**
+	 * Hits that the cache holds at most, for each query it can hold.
+	 */
+	public static final int hitsPerEntry = 1000;
+
+	/**
+	 * Changes queued at which a change applies the queue, if the lock is free.
+	 */
+	private static final int maxQueued = 4096;
+
+	/**
+	 * Maximum number of cached queries, and of hits in all of them.
+	 */
+	private final int capacity;
+	private final long maxHits;
+	private long totalHits=0;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Changes not applied yet, filename to whether it was added (true) or
+	 * removed (false), in order.
+	 */
+	private final ConcurrentLinkedQueue<Map.Entry<String,Boolean>> queued = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger queuedCount = new AtomicInteger();
+
+	/**
+	 * Query key to entry, in least recently used order.
+	 */
+	private final LinkedHashMap<String,Entry> entries;
+
+	/**
+	 * Trigram to the entries that are indexed by it.
+	 */
+	private final Map<Long,Set<Entry>> byTrigram;
+
+	/**
+	 * Entries that have a term with a word shorter than three characters.
+	 */
+	private final Set<Entry> unindexed;
+
+	private long hits=0;
+	private long misses=0;
+	private long evictions=0;
+	private long updates=0;
+
+	/**
+	 * @param capacity maximum number of queries to cache, 0 to disable the
+	 * cache, which then also holds at most {@link #hitsPerEntry} hits for each
+	 */
+	public QueryCache(int capacity) {
+		this.capacity=capacity;
+		maxHits=(long) capacity*hitsPerEntry;
+		entries=new LinkedHashMap<>(16,0.75f,true);
+		byTrigram=new HashMap<>();
+		unindexed=new HashSet<>();
+	}
+
+	/**
+	 * @param terms
+	 * @return the key that the query is cached under
+	 */
+	public static String key(String[] terms) {
+		List<String> normal = new ArrayList<>();
+		for(String term : terms) {
+			normal.add(term.toLowerCase());
+		}
+		return String.join(",",normal);
+	}
+
+	/**
+	 * Look up a query.
+	 * @param key
+	 * @return a copy of the cached result, or null if it is not cached
+	 */
+	public Set<String> get(String key) {
+		if(capacity==0) return null;
+		lock.lock();
+		try {
+			drain();
+			Entry entry=entries.get(key);
+			if(entry==null || entry.hits==null) {
+				misses++;
+				return null;
+			}
+			hits++;
+			return new HashSet<>(entry.hits);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Register a query that is about to be computed, so that changes are
+	 * recorded until {@link #complete(String, Set)} is called.
+	 * @param key
+	 * @param terms
+	 */
+	public void begin(String key,String[] terms) {
+		if(capacity==0) return;
+		lock.lock();
+		try {
+			drain();
+			if(!entries.containsKey(key)) register(key,terms);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void register(String key,String[] terms) {
+		Entry entry=new Entry(terms);
+		entries.put(key,entry);
+		for(String term : terms) {
+			String lower=term.toLowerCase();
+			if(lower.length()<3) {
+				unindexed.add(entry);
+			} else {
+				long trigram=TrigramIndex.trigram(lower,0);
+				entry.trigrams.add(trigram);
+				byTrigram.computeIfAbsent(trigram,(k)->new HashSet<>()).add(entry);
+			}
+		}
+		evict();
+	}
+
+	/**
+	 * Evict the least recently used queries while there are too many, or they
+	 * hold too many hits.
+	 */
+	private void evict() {
+		Iterator<Entry> eldest=entries.values().iterator();
+		while(eldest.hasNext() && (entries.size()>capacity || totalHits>maxHits)) {
+			Entry evicted=eldest.next();
+			eldest.remove();
+			unlink(evicted);
+			evictions++;
+		}
+	}
+
+	/**
+	 * Store the computed result of a query registered with
+	 * {@link #begin(String, String[])}, applying the changes that happened
+	 * while it was computed.
+	 * @param key
+	 * @param result the computed result
+	 * @return the result with the changes applied
+	 */
+	public Set<String> complete(String key,Set<String> result) {
+		if(capacity==0) return result;
+		lock.lock();
+		try {
+			drain();
+			Entry entry=entries.get(key);
+			if(entry==null) return result; // evicted, or not cached
+			if(entry.pending!=null) {
+				for(Map.Entry<String,Boolean> change : entry.pending.entrySet()) {
+					if(change.getValue()) result.add(change.getKey()); else result.remove(change.getKey());
+				}
+				entry.pending=null;
+				if(result.size()>maxHits) {
+					// too large to cache at all
+					entries.remove(key);
+					unlink(entry);
+					evictions++;
+					return result;
+				}
+				entry.hits=result;
+				totalHits+=result.size();
+				entries.get(key); // now the most recently used
+				evict();
+				return new HashSet<>(result);
+			}
+			return new HashSet<>(entry.hits);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void unlink(Entry entry) {
+		if(entry.hits!=null) totalHits-=entry.hits.size();
+		unindexed.remove(entry);
+		for(Long trigram : entry.trigrams) {
+			Set<Entry> indexed=byTrigram.get(trigram);
+			if(indexed!=null && indexed.remove(entry) && indexed.isEmpty()) byTrigram.remove(trigram);
+		}
+	}
+
+	/**
+	 * Apply a change to every cached query that the filename matches.
+	 * @param filename
+	 * @param added
+	 */
+	private void change(String filename,boolean added) {
+		if(entries.isEmpty()) return;
+		String lower=filename.toLowerCase();
+		Set<Entry> candidates = new HashSet<>(unindexed);
+		for(Long trigram : TrigramIndex.trigrams(lower)) {
+			Set<Entry> indexed=byTrigram.get(trigram);
+			if(indexed!=null) candidates.addAll(indexed);
+		}
+		for(Entry entry : candidates) {
+			if(!TrigramIndex.matches(lower,entry.terms)) continue;
+			updates++;
+			if(entry.pending!=null) {
+				entry.pending.put(filename,added);
+			} else if(added) {
+				if(entry.hits.add(filename)) totalHits++;
+			} else {
+				if(entry.hits.remove(filename)) totalHits--;
+			}
+		}
+	}
+
+	/**
+	 * Apply the queued changes, holding the lock.
+	 */
+	private void drain() {
+		Map.Entry<String,Boolean> change;
+		while((change=queued.poll())!=null) {
+			queuedCount.decrementAndGet();
+			change(change.getKey(),change.getValue());
+		}
+		if(totalHits>maxHits) evict();
+	}
+
+	/**
+	 * Queue a change, and apply the queue if it is long and no one else is.
+	 * @param filename
+	 * @param added
+	 */
+	private void queue(String filename,boolean added) {
+		if(capacity==0) return;
+		queued.add(new AbstractMap.SimpleImmutableEntry<>(filename,added));
+		if(queuedCount.incrementAndGet()>maxQueued && lock.tryLock()) {
+			try {
+				drain();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * A filename has been added to the index.
+	 * @param filename
+	 */
+	public void added(String filename) {
+		queue(filename,true);
+	}
+
+	/**
+	 * A filename has been removed from the index.
+	 * @param filename
+	 */
+	public void removed(String filename) {
+		queue(filename,false);
+	}
+
+	/**
+	 * @return the cache metrics: entries, capacity, hits held and the most
+	 * held, hits, misses, hit rate (percent), evictions and updates (changes
+	 * applied to cached results)
+	 */
+	public Map<String,Long> getStats() {
+		lock.lock();
+		try {
+			drain();
+			Map<String,Long> stats = new LinkedHashMap<>();
+			stats.put("cacheEntries",(long)entries.size());
+			stats.put("cacheCapacity",(long)capacity);
+			stats.put("cacheHitsHeld",totalHits);
+			stats.put("cacheMaxHitsHeld",maxHits);
+			stats.put("cacheHits",hits);
+			stats.put("cacheMisses",misses);
+			stats.put("cacheHitRatePercent",hits+misses==0 ? 0 : 100*hits/(hits+misses));
+			stats.put("cacheEvictions",evictions);
+			stats.put("cacheUpdates",updates);
+			return stats;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package pb.index;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.ToIntFunction;
+
+/**
+ * Scores the filenames that match a query by relevance and picks the best k,
+ * for answering queries with the most relevant files first instead of every
+ * match. The score of a filename adds up:
+ * <ul>
+ * <li>term coverage: the fraction of the words of all the query's terms that
+ * the filename contains, since a filename only has to match one term</li>
+ * <li>an exact match bonus, when the filename without its extension is one of
+ * the terms, and a smaller one for each word that is a whole word of the
+ * filename rather than part of one</li>
+ * </ul>
+ * Hits are ordered by descending score and then by filename, and the best k are
+ * kept in a bounded heap, so a broad query does not sort all of its matches.
+ * A page of hits is continued by passing its last hit as the cursor for the
+ * next page, so the server keeps no state between pages.
+ * <br/>
+ * Files that no peer with a live lease has are left out, but the number of
+ * such peers is not part of the score. If it were, a lease coming or going
+ * between pages would move a hit across the cursor, and the hit would be
+ * skipped or returned twice. The score only depends on the filename and the
+ * query, so the order is the same for every page.
+ * @author aaron
+ *
+ */
+public class QueryRanker {
+
+	/**
+	 * Weights of the parts of the score.
+	 */
+	private static final long coverageWeight = 1000;
+	private static final long exactWeight = 500;
+	private static final long wholeWordWeight = 200;
+
+	/**
+	 * A filename that matches a query, with its score.
+	 */
+	public static class ScoredHit implements Comparable<ScoredHit> {
+		public final String filename;
+		public final long score;
+
+		public ScoredHit(String filename,long score) {
+			this.filename=filename;
+			this.score=score;
+		}
+
+		/**
+		 * Orders the best hit first.
+		 */
+		@Override
+		public int compareTo(ScoredHit o) {
+			int c=Long.compare(o.score,score);
+			return c!=0 ? c : filename.compareTo(o.filename);
+		}
+
+		/**
+		 * @return the hit as a cursor, "score:filename"
+		 */
+		public String toCursor() {
+			return score+":"+filename;
+		}
+
+		/**
+		 * @param cursor as returned by {@link #toCursor()}
+		 * @return the hit of the cursor
+		 * @throws IllegalArgumentException if the cursor is not valid
+		 */
+		public static ScoredHit parseCursor(String cursor) {
+			int colon=cursor.indexOf(':');
+			try {
+				return new ScoredHit(cursor.substring(colon+1),Long.parseLong(cursor.substring(0,colon)));
+			} catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+				throw new IllegalArgumentException("not a cursor: "+cursor);
+			}
+		}
+	}
+
+	/**
+	 * @param lower
+	 * @param at start of the word in lower
+	 * @param length length of the word
+	 * @return true if the word is not part of a longer word of lower
+	 */
+	private static boolean wholeWord(String lower,int at,int length) {
+		int end=at+length;
+		return (at==0 || !Character.isLetterOrDigit(lower.charAt(at-1))) &&
+				(end==lower.length() || !Character.isLetterOrDigit(lower.charAt(end)));
+	}
+
+	/**
+	 * @param filename
+	 * @param terms the words of each term of the query
+	 * @return the relevance score of the filename
+	 */
+	public static long score(String filename,List<List<String>> terms) {
+		String lower=filename.toLowerCase();
+		int dot=lower.lastIndexOf('.');
+		String base=dot>0 ? lower.substring(0,dot) : lower;
+		int words=0;
+		int contained=0;
+		int whole=0;
+		boolean exact=false;
+		for(List<String> term : terms) {
+			if(String.join(" ",term).equals(base)) exact=true;
+			for(String word : term) {
+				words++;
+				int at=lower.indexOf(word);
+				if(at<0) continue;
+				contained++;
+				while(at>=0 && !wholeWord(lower,at,word.length())) at=lower.indexOf(word,at+1);
+				if(at>=0) whole++;
+			}
+		}
+		if(words==0) return 0;
+		long score=coverageWeight*contained/words+wholeWordWeight*whole/words;
+		if(exact) score+=exactWeight;
+		return score;
+	}
+
+	/**
+	 * @param terms
+	 * @return the lower-case, whitespace separated words of each term that has
+	 * any, for scoring the filenames that match the terms
+	 */
+	public static List<List<String>> words(String[] terms) {
+		List<List<String>> words = new ArrayList<>();
+		for(String term : terms) {
+			List<String> termWords = new ArrayList<>();
+			for(String word : term.toLowerCase().split("\\s+")) {
+				if(!word.isEmpty()) termWords.add(word);
+			}
+			if(!termWords.isEmpty()) words.add(termWords);
+		}
+		return words;
+	}
+
+	/**
+	 * Pick the best hits that come after the cursor.
+	 * @param matches the filenames that match the query
+	 * @param terms the query terms
+	 * @param k the maximum number of hits
+	 * @param after the last hit of the previous page, or null for the first page
+	 * @param liveHolders the number of peers with a live lease that have a file
+	 * @return up to k hits, best first
+	 */
+	public static List<ScoredHit> topK(Collection<String> matches,String[] terms,int k,
+			ScoredHit after,ToIntFunction<String> liveHolders) {
+		if(k<=0) return new ArrayList<>();
+		List<List<String>> words=words(terms);
+		// the worst of the best hits so far is at the head
+		PriorityQueue<ScoredHit> best = new PriorityQueue<>(Collections.reverseOrder());
+		for(String filename : matches) {
+			ScoredHit hit = new ScoredHit(filename,score(filename,words));
+			if(after!=null && hit.compareTo(after)<=0) continue; // already returned
+			if(liveHolders.applyAsInt(filename)==0) continue; // no peer to download it from
+			if(best.size()<k) {
+				best.add(hit);
+			} else if(hit.compareTo(best.peek())<0) {
+				best.poll();
+				best.add(hit);
+			}
+		}
+		List<ScoredHit> hits = new ArrayList<>(best);
+		Collections.sort(hits);
+		return hits;
+	}
+}
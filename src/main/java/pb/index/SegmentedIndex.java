@@ -0,0 +1,271 @@
+package pb.index;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+/**
+ * A substring index that keeps most of its filenames off the heap, in
+ * immutable {@link IndexSegment}s that are memory mapped from files, so that
+ * the trigram postings do not grow the heap with the number of files in the
+ * index. The heap still grows with it, more slowly, since the
+ * {@link FileIndex} keeps each filename string in its {@link IdDictionary}.
+ * New filenames
+ * are added to a small {@link TrigramIndex} on the heap (the mutable segment).
+ * Once it holds {@link #flushSize} filenames, this thread swaps in an empty one
+ * and writes the full one out as a new segment. Once there are more than
+ * {@link #maxSegments} segments, the two smallest are merged, so each filename
+ * is rewritten a logarithmic number of times as the index grows.
+ * <br/>
+ * Segments are never changed, so a filename that is removed stays in its
+ * segment until the segment is merged; a filename found in a segment is only
+ * a hit if it is still in the {@link FileIndex}. The segments are derived from
+ * the index, so the segment files are deleted when the index is started and
+ * rebuilt as filenames are added.
+ * <br/>
+ * If a segment can not be written, such as when the disk is full, the
+ * filenames stay on the heap, where they can still be found, and the write is
+ * tried again, waiting twice as long after each failure, up to
+ * {@link #maxRetryInterval}.
+ * @author aaron
+ *
+ */
+public class SegmentedIndex extends Thread implements IFilenameIndex {
+	private static Logger log = Logger.getLogger(SegmentedIndex.class.getName());
+
+	/**
+	 * Number of filenames in the mutable segment at which it is written out.
+	 */
+	private static final int flushSize = 64*1024;
+
+	/**
+	 * Number of segments above which segments are merged.
+	 */
+	private static final int maxSegments = 8;
+
+	/**
+	 * Time in ms between checks for whether to write or merge segments.
+	 */
+	private static final long checkInterval = 1000;
+
+	/**
+	 * Longest time in ms to wait before trying again to write or merge
+	 * segments after a failure.
+	 */
+	private static final long maxRetryInterval = 60*1000;
+
+	/**
+	 * Directory that the segment files are kept in.
+	 */
+	private final Path dir;
+
+	/**
+	 * Whether a filename is still in the index.
+	 */
+	private final Predicate<String> live;
+
+	/**
+	 * The filenames added since the last swap.
+	 */
+	private volatile TrigramIndex mutable = new TrigramIndex();
+
+	/**
+	 * The mutable segment that is being written out, or null.
+	 */
+	private volatile TrigramIndex frozen = null;
+
+	/**
+	 * The segments, replaced by a new list when it changes.
+	 */
+	private volatile List<IndexSegment> segments = Collections.emptyList();
+
+	/**
+	 * Held for reading while adding a filename and for writing while swapping
+	 * the mutable segment, so that no filename is added to a segment that is
+	 * being written out.
+	 */
+	private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+
+	/**
+	 * Number of the next segment file.
+	 */
+	private long nextSegment=0;
+
+	private volatile boolean running=true;
+
+	/**
+	 * @param dir directory to keep the segment files in, any segment files
+	 * already there are deleted
+	 * @param live whether a filename is still in the index
+	 * @throws IOException
+	 */
+	public SegmentedIndex(Path dir,Predicate<String> live) throws IOException {
+		this.dir=dir;
+		this.live=live;
+		Files.createDirectories(dir);
+		try(DirectoryStream<Path> files=Files.newDirectoryStream(dir,"segment-*.seg")) {
+			for(Path file : files) Files.delete(file);
+		}
+		setDaemon(true);
+	}
+
+	@Override
+	public void add(String filename) {
+		swapLock.readLock().lock();
+		try {
+			mutable.add(filename);
+		} finally {
+			swapLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void remove(String filename) {
+		mutable.remove(filename);
+		TrigramIndex writing=frozen;
+		if(writing!=null) writing.remove(filename);
+	}
+
+	@Override
+	public Set<String> matchAny(String[] terms) {
+		// read in this order so that a filename being moved to a segment is seen
+		TrigramIndex current=mutable;
+		TrigramIndex writing=frozen;
+		List<IndexSegment> written=segments;
+		Set<String> hits = new HashSet<>();
+		for(String term : terms) {
+			String lower=term.toLowerCase();
+			current.matchTerm(term,hits);
+			if(writing!=null) writing.matchTerm(term,hits);
+			for(IndexSegment segment : written) {
+				segment.match(lower,live,hits);
+			}
+		}
+		return hits;
+	}
+
+	@Override
+	public Map<String,Long> getStats() {
+		List<IndexSegment> written=segments;
+		long docs=0;
+		long bytes=0;
+		for(IndexSegment segment : written) {
+			docs+=segment.size();
+			bytes+=segment.bytes();
+		}
+		TrigramIndex writing=frozen;
+		Map<String,Long> stats = new LinkedHashMap<>();
+		stats.put("segments",(long)written.size());
+		stats.put("segmentFiles",docs);
+		stats.put("segmentBytes",bytes);
+		stats.put("mutableFiles",(long)mutable.size()+(writing==null ? 0 : writing.size()));
+		return stats;
+	}
+
+	private Path nextFile() {
+		return dir.resolve("segment-"+(nextSegment++)+".seg");
+	}
+
+	/**
+	 * Swap in an empty mutable segment and write the full one out as a new
+	 * segment. If writing the last one failed, it is written first.
+	 * @throws IOException
+	 */
+	void flush() throws IOException {
+		if(frozen==null) {
+			swapLock.writeLock().lock();
+			try {
+				frozen=mutable;
+				mutable=new TrigramIndex();
+			} finally {
+				swapLock.writeLock().unlock();
+			}
+		}
+		long start=System.currentTimeMillis();
+		Path file=nextFile();
+		IndexSegment segment;
+		try {
+			segment=IndexSegment.write(file,frozen);
+		} catch (IOException e) {
+			Files.deleteIfExists(file);
+			throw e;
+		}
+		List<IndexSegment> updated = new ArrayList<>(segments);
+		updated.add(segment);
+		// publish the segment before dropping the frozen filenames
+		segments=Collections.unmodifiableList(updated);
+		frozen=null;
+		log.info("wrote segment of "+segment.size()+" filenames in "+(System.currentTimeMillis()-start)+" ms");
+	}
+
+	/**
+	 * Merge the two smallest segments.
+	 * @throws IOException
+	 */
+	private void mergeSmallest() throws IOException {
+		List<IndexSegment> sorted = new ArrayList<>(segments);
+		sorted.sort(Comparator.comparingLong(IndexSegment::bytes));
+		List<IndexSegment> sources=sorted.subList(0,2);
+		long start=System.currentTimeMillis();
+		Path file=nextFile();
+		IndexSegment merged;
+		try {
+			merged=IndexSegment.merge(file,sources,live);
+		} catch (IOException e) {
+			Files.deleteIfExists(file);
+			throw e;
+		}
+		List<IndexSegment> updated = new ArrayList<>(segments);
+		updated.removeAll(sources);
+		updated.add(merged);
+		segments=Collections.unmodifiableList(updated);
+		for(IndexSegment source : sources) source.delete();
+		log.info("merged segments of "+sources.get(0).size()+" and "+sources.get(1).size()+
+				" filenames into "+merged.size()+" in "+(System.currentTimeMillis()-start)+" ms");
+	}
+
+	@Override
+	public void shutdown() {
+		running=false;
+		synchronized(this) {
+			notifyAll();
+		}
+	}
+
+	@Override
+	public void run() {
+		long interval=checkInterval;
+		while(running) {
+			synchronized(this) {
+				try {
+					wait(interval);
+				} catch (InterruptedException e) {
+					// check whether we are still running
+				}
+			}
+			try {
+				if(frozen!=null || mutable.size()>=flushSize) flush();
+				if(segments.size()>maxSegments) mergeSmallest();
+				interval=checkInterval;
+			} catch (IOException e) {
+				// the filenames stay on the heap, where they can still be found
+				interval=Math.min(maxRetryInterval,interval*2);
+				log.severe("could not write a segment, keeping the filenames on the heap and trying again in "+
+						interval/1000+" s: "+e.getMessage());
+			}
+		}
+	}
+}
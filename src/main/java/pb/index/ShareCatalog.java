@@ -0,0 +1,175 @@
+package pb.index;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The versioned catalog of files that a peer is sharing. Every change to the
+ * catalog increments its version and the version of each addition and removal is
+ * remembered, so that the changes since any earlier version can be sent to the
+ * index server as a {@link CatalogDelta}, rather than the whole catalog. The
+ * catalog id is unique to this instance of the catalog, so that the index server
+ * can tell when a peer has restarted with a new catalog. Multiple threads can use
+ * the catalog at the same time.
+ * @see {@link pb.index.CatalogDelta}
+ * @author aaron
+ *
+ */
+public class ShareCatalog {
+
+	/**
+	 * Maximum number of removals to remember, after which the oldest are
+	 * forgotten and older versions can only be brought up to date with a reset.
+	 */
+	private static final int maxTombstones = 100000;
+
+	/**
+	 * Unique id of this catalog.
+	 */
+	private final String catalogId;
+
+	/**
+	 * Current version of the catalog.
+	 */
+	private long version=0;
+
+	/**
+	 * Oldest version that deltas can be computed from.
+	 */
+	private long horizon=0;
+
+	/**
+	 * Shared filename to the version at which it was added.
+	 */
+	private final Map<String,Long> files;
+
+	/**
+	 * Removed filename to the version at which it was removed.
+	 */
+	private final Map<String,Long> tombstones;
+
+	public ShareCatalog() {
+		catalogId=UUID.randomUUID().toString();
+		files=new HashMap<>();
+		tombstones=new HashMap<>();
+	}
+
+	/**
+	 * Add a file to the catalog.
+	 * @param filename
+	 * @return true if the file was not already in the catalog
+	 */
+	public synchronized boolean add(String filename) {
+		if(files.containsKey(filename)) return false;
+		version++;
+		files.put(filename,version);
+		tombstones.remove(filename);
+		return true;
+	}
+
+	/**
+	 * Add a number of files to the catalog.
+	 * @param filenames
+	 */
+	public synchronized void addAll(Collection<String> filenames) {
+		for(String filename : filenames) {
+			add(filename);
+		}
+	}
+	
+	/**
+	 * Remove a file from the catalog.
+	 * @param filename
+	 * @return true if the file was in the catalog
+	 */
+	public synchronized boolean remove(String filename) {
+		if(files.remove(filename)==null) return false;
+		version++;
+		tombstones.put(filename,version);
+		if(tombstones.size()>maxTombstones) {
+			// forget all removals, deltas from before now need a reset
+			tombstones.clear();
+			horizon=version;
+		}
+		return true;
+	}
+
+	/**
+	 * @param filename
+	 * @return true if the file is in the catalog
+	 */
+	public synchronized boolean contains(String filename) {
+		return files.containsKey(filename);
+	}
+
+	/**
+	 * @return the catalog id
+	 */
+	public String getCatalogId() {
+		return catalogId;
+	}
+
+	/**
+	 * @return the current version
+	 */
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return the number of files in the catalog
+	 */
+	public synchronized int size() {
+		return files.size();
+	}
+
+	/**
+	 * @return a copy of the filenames in the catalog
+	 */
+	public synchronized List<String> getFiles() {
+		return new ArrayList<String>(files.keySet());
+	}
+
+	/**
+	 * @param dir a directory, as a name with "/" separators
+	 * @return the filenames in the catalog that are under the directory
+	 */
+	public synchronized List<String> getFilesUnder(String dir) {
+		String prefix=dir.endsWith("/") ? dir : dir+"/";
+		List<String> filenames = new ArrayList<>();
+		for(String filename : files.keySet()) {
+			if(filename.startsWith(prefix)) filenames.add(filename);
+		}
+		return filenames;
+	}
+
+	/**
+	 * Compute the changes that take the index server from the catalog and version
+	 * that it knows about to the current version. If the index server knows about
+	 * a different catalog, or a version that is too old, then the delta is a reset
+	 * containing every file.
+	 * @param peer the "host:port" of this peer
+	 * @param knownCatalog the catalog id that the index server knows about
+	 * @param knownVersion the version that the index server knows about
+	 * @return the delta, which is empty if the index server is up to date
+	 */
+	public synchronized CatalogDelta deltaSince(String peer,String knownCatalog,long knownVersion) {
+		List<String> adds = new ArrayList<>();
+		List<String> removes = new ArrayList<>();
+		if(!catalogId.equals(knownCatalog) || knownVersion<horizon || knownVersion>version) {
+			adds.addAll(files.keySet());
+			return new CatalogDelta(peer,catalogId,0,version,true,adds,removes);
+		}
+		for(Map.Entry<String,Long> entry : files.entrySet()) {
+			if(entry.getValue()>knownVersion) adds.add(entry.getKey());
+		}
+		for(Map.Entry<String,Long> entry : tombstones.entrySet()) {
+			if(entry.getValue()>knownVersion) removes.add(entry.getKey());
+		}
+		return new CatalogDelta(peer,catalogId,knownVersion,version,false,adds,removes);
+	}
+}
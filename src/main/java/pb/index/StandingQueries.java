@@ -0,0 +1,351 @@
+package pb.index;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+
+/**
+ * Queries that stay registered with the index, so that a subscriber is told
+ * about each file that matches its query as the file is added, instead of
+ * having to query again and again. A query matches a filename in the same way
+ * as {@link TrigramIndex#matchAny(String[])}: the filename contains any of its
+ * terms, ignoring case.
+ * <br/>
+ * The lower-cased terms of all the standing queries are compiled into an
+ * Aho-Corasick automaton, so a new filename is checked against every standing
+ * query by a single pass over its characters, which finds every term it
+ * contains, and the queries that use one of those terms match. The empty term
+ * ends at the root, so it is found in every filename. The automaton is rebuilt
+ * and swapped in whenever a query is
+ * registered or cancelled, which is much rarer than files being added, so
+ * matching needs no locks.
+ * <br/>
+ * Matches are found while the index holds the lock of the peer that added the
+ * file, so they are queued and sent to the subscribers by this thread. Matches
+ * beyond {@link #maxPending} waiting to be sent are dropped.
+ * @author aaron
+ *
+ * @param <S> the type of the subscribers, each of which has at most one standing query
+ */
+public class StandingQueries<S> extends Thread implements IIndexChangeHandler {
+	private static Logger log = Logger.getLogger(StandingQueries.class.getName());
+
+	/**
+	 * Largest number of matches waiting to be sent.
+	 */
+	private static final int maxPending = 64*1024;
+
+	/**
+	 * A compiled set of standing queries.
+	 */
+	private static class Automaton<S> {
+		/**
+		 * The goto function, the transitions out of each state by character.
+		 */
+		private final List<Map<Character,Integer>> next = new ArrayList<>();
+
+		/**
+		 * The state to fall back to when there is no transition, the longest
+		 * proper suffix of the state that is also a state.
+		 */
+		private int[] fail;
+
+		/**
+		 * The terms that end at each state, including through its failure links.
+		 */
+		private int[][] output;
+
+		/**
+		 * The subscribers.
+		 */
+		private final List<S> subscribers = new ArrayList<>();
+
+		/**
+		 * Term id to the subscribers, by index, whose queries use the term.
+		 */
+		private final List<List<Integer>> users = new ArrayList<>();
+
+		Automaton(Map<S,List<String>> standing) {
+			next.add(new HashMap<>());
+			Map<String,Integer> termIds = new HashMap<>();
+			List<List<Integer>> ends = new ArrayList<>();
+			ends.add(new ArrayList<>());
+			for(Map.Entry<S,List<String>> query : standing.entrySet()) {
+				int subscriber=subscribers.size();
+				subscribers.add(query.getKey());
+				for(String term : query.getValue()) {
+					Integer id=termIds.get(term);
+					if(id==null) {
+						id=termIds.size();
+						termIds.put(term,id);
+						users.add(new ArrayList<>());
+						ends.get(insert(term,ends)).add(id);
+					}
+					List<Integer> termUsers=users.get(id);
+					if(termUsers.isEmpty() || termUsers.get(termUsers.size()-1)!=subscriber) {
+						termUsers.add(subscriber);
+					}
+				}
+			}
+			link(ends);
+		}
+
+		/**
+		 * Add the term to the trie.
+		 * @param term
+		 * @param ends the terms that end at each state
+		 * @return the state at the end of the term
+		 */
+		private int insert(String term,List<List<Integer>> ends) {
+			int state=0;
+			for(int i=0;i<term.length();i++) {
+				Integer to=next.get(state).get(term.charAt(i));
+				if(to==null) {
+					to=next.size();
+					next.add(new HashMap<>());
+					ends.add(new ArrayList<>());
+					next.get(state).put(term.charAt(i),to);
+				}
+				state=to;
+			}
+			return state;
+		}
+
+		/**
+		 * Set the failure links breadth first, so the link of a state's parent
+		 * is known before the state's, and merge the outputs along them.
+		 * @param ends the terms that end at each state
+		 */
+		private void link(List<List<Integer>> ends) {
+			fail = new int[next.size()];
+			output = new int[next.size()][];
+			output[0]=toArray(ends.get(0));
+			ArrayDeque<Integer> queue = new ArrayDeque<>();
+			for(int child : next.get(0).values()) {
+				fail[child]=0;
+				queue.add(child);
+			}
+			while(!queue.isEmpty()) {
+				int state=queue.poll();
+				List<Integer> out = new ArrayList<>(ends.get(state));
+				for(int term : output[fail[state]]) out.add(term);
+				output[state]=toArray(out);
+				for(Map.Entry<Character,Integer> edge : next.get(state).entrySet()) {
+					int child=edge.getValue();
+					fail[child]=step(fail[state],edge.getKey());
+					queue.add(child);
+				}
+			}
+		}
+
+		private static int[] toArray(List<Integer> list) {
+			int[] array = new int[list.size()];
+			for(int i=0;i<array.length;i++) array[i]=list.get(i);
+			return array;
+		}
+
+		/**
+		 * @param state
+		 * @param c
+		 * @return the state after reading the character
+		 */
+		private int step(int state,char c) {
+			while(true) {
+				Integer to=next.get(state).get(c);
+				if(to!=null) return to;
+				if(state==0) return 0;
+				state=fail[state];
+			}
+		}
+
+		/**
+		 * @param lower a lower-case filename
+		 * @return the ids of the terms that the filename contains
+		 */
+		BitSet find(String lower) {
+			BitSet found = new BitSet(users.size());
+			// the empty term, if any query has it
+			for(int term : output[0]) found.set(term);
+			int state=0;
+			for(int i=0;i<lower.length();i++) {
+				state=step(state,lower.charAt(i));
+				for(int term : output[state]) found.set(term);
+			}
+			return found;
+		}
+
+		/**
+		 * @param lower a lower-case filename
+		 * @return the subscribers whose queries match the filename
+		 */
+		List<S> match(String lower) {
+			List<S> matched = new ArrayList<>();
+			BitSet found=find(lower);
+			BitSet checked = new BitSet(subscribers.size());
+			for(int term=found.nextSetBit(0);term>=0;term=found.nextSetBit(term+1)) {
+				for(int subscriber : users.get(term)) {
+					if(checked.get(subscriber)) continue;
+					checked.set(subscriber);
+					matched.add(subscribers.get(subscriber));
+				}
+			}
+			return matched;
+		}
+	}
+
+	/**
+	 * The lower-cased terms of the standing query of each subscriber, guarded by this.
+	 */
+	private final Map<S,List<String>> standing = new LinkedHashMap<>();
+
+	/**
+	 * The automaton compiled from {@link #standing}.
+	 */
+	private volatile Automaton<S> automaton = new Automaton<>(standing);
+
+	/**
+	 * Sends a match, "PeerIP:PeerPort:filename", to a subscriber.
+	 */
+	private final BiConsumer<S,String> send;
+
+	/**
+	 * Matches waiting to be sent, as pairs of subscriber and match, guarded by pending.
+	 */
+	private final ArrayDeque<Object[]> pending = new ArrayDeque<>();
+
+	private final AtomicLong matched = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	private volatile boolean running=true;
+
+	/**
+	 * @param send called with a subscriber and each "PeerIP:PeerPort:filename"
+	 * that matches its standing query
+	 */
+	public StandingQueries(BiConsumer<S,String> send) {
+		this.send=send;
+		setDaemon(true);
+	}
+
+	/**
+	 * Register a standing query, replacing any that the subscriber already has.
+	 * @param subscriber
+	 * @param terms the query terms, as for {@link FileIndex#query(String[])}
+	 */
+	public synchronized void subscribe(S subscriber,String[] terms) {
+		List<String> lower = new ArrayList<>();
+		for(String term : terms) {
+			lower.add(term.toLowerCase());
+		}
+		standing.put(subscriber,lower);
+		automaton=new Automaton<>(standing);
+	}
+
+	/**
+	 * Cancel the standing query of the subscriber, if it has one.
+	 * @param subscriber
+	 */
+	public synchronized void unsubscribe(S subscriber) {
+		if(standing.remove(subscriber)!=null) automaton=new Automaton<>(standing);
+	}
+
+	/**
+	 * @param subscriber
+	 * @return true if the subscriber has a standing query
+	 */
+	public synchronized boolean isSubscribed(S subscriber) {
+		return standing.containsKey(subscriber);
+	}
+
+	/**
+	 * @return the number of standing queries
+	 */
+	public synchronized int size() {
+		return standing.size();
+	}
+
+	@Override
+	public void fileAdded(String filename,String peerport) {
+		Automaton<S> current=automaton;
+		if(current.subscribers.isEmpty()) return;
+		for(S subscriber : current.match(filename.toLowerCase())) {
+			matched.incrementAndGet();
+			synchronized(pending) {
+				if(pending.size()>=maxPending) {
+					dropped.incrementAndGet();
+					continue;
+				}
+				pending.add(new Object[] {subscriber,peerport+":"+filename});
+				pending.notify();
+			}
+		}
+	}
+
+	@Override
+	public void fileRemoved(String filename,String peerport) {
+	}
+
+	@Override
+	public void peerSeen(String peerport,long seen) {
+	}
+
+	@Override
+	public void catalogChanged(String peerport,String catalog,long version) {
+	}
+
+	@Override
+	public void peerRemoved(String peerport) {
+	}
+
+	@Override
+	public void leaseRenewed(String peerport) {
+	}
+
+	/**
+	 * @return the standing query metrics, by name
+	 */
+	public Map<String,Long> getStats() {
+		Map<String,Long> stats = new LinkedHashMap<>();
+		stats.put("standingQueries",(long)size());
+		stats.put("standingMatches",matched.get());
+		stats.put("standingDropped",dropped.get());
+		return stats;
+	}
+
+	public void shutdown() {
+		running=false;
+		interrupt();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void run() {
+		while(running) {
+			Object[] match;
+			synchronized(pending) {
+				while(pending.isEmpty()) {
+					try {
+						pending.wait();
+					} catch (InterruptedException e) {
+						if(!running) return;
+					}
+				}
+				match=pending.poll();
+			}
+			// the subscriber may have gone since the match
+			if(!isSubscribed((S) match[0])) continue;
+			try {
+				send.accept((S) match[0],(String) match[1]);
+			} catch (RuntimeException e) {
+				log.warning("could not send a standing query match: "+e.getMessage());
+			}
+		}
+	}
+}
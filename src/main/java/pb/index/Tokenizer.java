@@ -0,0 +1,51 @@
+package pb.index;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits filenames into tokens, the words that misspelt query words are
+ * matched against. Filenames are split on separators (anything that is not a
+ * letter or digit), on lower to upper case boundaries and on letter to digit
+ * boundaries, so "AnnualReport_2020-final.pdf" has the tokens "annual",
+ * "report", "2020", "final" and "pdf".
+ * @author aaron
+ *
+ */
+public class Tokenizer {
+
+	private Tokenizer() {
+	}
+
+	/**
+	 * Split a string into lower-case tokens.
+	 * @param s
+	 * @return the tokens in the order they appear, possibly with repeats
+	 */
+	public static List<String> tokenize(String s) {
+		List<String> tokens = new ArrayList<>();
+		int start=-1;
+		for(int i=0;i<=s.length();i++) {
+			char c = i<s.length() ? s.charAt(i) : ' ';
+			if(!Character.isLetterOrDigit(c)) {
+				if(start>=0) tokens.add(s.substring(start,i).toLowerCase());
+				start=-1;
+			} else if(start<0) {
+				start=i;
+			} else {
+				char p = s.charAt(i-1);
+				boolean boundary =
+					(Character.isLowerCase(p) && Character.isUpperCase(c)) ||
+					(Character.isDigit(p) != Character.isDigit(c)) ||
+					// the last capital of an acronym starts a new word, e.g. "HTTPServer"
+					(Character.isUpperCase(p) && Character.isUpperCase(c) &&
+						i+1<s.length() && Character.isLowerCase(s.charAt(i+1)));
+				if(boundary) {
+					tokens.add(s.substring(start,i).toLowerCase());
+					start=i;
+				}
+			}
+		}
+		return tokens;
+	}
+}
@@ -0,0 +1,196 @@
+package pb.index;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A substring index over filenames. Each filename is lower-cased once, when it
+ * is added, and every three character sequence (trigram) of the lower-cased
+ * filename has a posting set of the filenames that contain it. A query term of
+ * three or more characters can only be a substring of filenames that contain all
+ * of its trigrams, so the posting sets of its trigrams are intersected, smallest
+ * first, to give a few candidates that are then verified with
+ * {@link String#contains(CharSequence)}. Shorter terms are checked against every
+ * filename.
+ * <br/>
+ * The index is built on concurrent maps and sets, so that it can be updated
+ * and queried by many threads at once. Adding and removing the same filename
+ * concurrently must be avoided by the caller.
+ * @author aaron
+ *
+ */
+public class TrigramIndex implements IFilenameIndex {
+
+	/**
+	 * Trigram, packed into a long, to the filenames that contain it.
+	 */
+	private final Map<Long,Set<String>> postings;
+
+	/**
+	 * Filename to its lower-case form, for verifying candidates.
+	 */
+	private final Map<String,String> lowerNames;
+
+	public TrigramIndex() {
+		postings=new ConcurrentHashMap<>();
+		lowerNames=new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Pack the three characters starting at i into a long.
+	 * @param s
+	 * @param i
+	 * @return the trigram
+	 */
+	static long trigram(String s,int i) {
+		return ((long)s.charAt(i)<<32) | ((long)s.charAt(i+1)<<16) | s.charAt(i+2);
+	}
+
+	/**
+	 * @param lower a lower-case string
+	 * @return the distinct trigrams of the string
+	 */
+	static Set<Long> trigrams(String lower) {
+		Set<Long> trigrams = new HashSet<>();
+		for(int i=0;i+3<=lower.length();i++) {
+			trigrams.add(trigram(lower,i));
+		}
+		return trigrams;
+	}
+
+	@Override
+	public void add(String filename) {
+		String lower=filename.toLowerCase();
+		if(lowerNames.putIfAbsent(filename,lower)!=null) return;
+		for(Long trigram : trigrams(lower)) {
+			postings.compute(trigram,(key,filenames)->{
+				if(filenames==null) filenames=ConcurrentHashMap.newKeySet();
+				filenames.add(filename);
+				return filenames;
+			});
+		}
+	}
+
+	@Override
+	public void remove(String filename) {
+		String lower=lowerNames.remove(filename);
+		if(lower==null) return;
+		for(Long trigram : trigrams(lower)) {
+			postings.computeIfPresent(trigram,(key,filenames)->{
+				filenames.remove(filename);
+				return filenames.isEmpty() ? null : filenames;
+			});
+		}
+	}
+
+	/**
+	 * @return the number of filenames in the index
+	 */
+	public int size() {
+		return lowerNames.size();
+	}
+
+	/**
+	 * @return the filenames in the index, as a view that reflects later changes
+	 */
+	Set<String> filenames() {
+		return lowerNames.keySet();
+	}
+
+	/**
+	 * @return trigram to the filenames that contain it, as a view that reflects later changes
+	 */
+	Map<Long,Set<String>> postings() {
+		return postings;
+	}
+
+	@Override
+	public Map<String,Long> getStats() {
+		Map<String,Long> stats = new LinkedHashMap<>();
+		stats.put("trigrams",(long)postings.size());
+		return stats;
+	}
+
+	@Override
+	public void shutdown() {
+		// nothing runs in the background
+	}
+
+	/**
+	 * Find the filenames that contain the term, ignoring case.
+	 * @param lower a lower-case term
+	 * @return the matching filenames
+	 */
+	private Set<String> matchLower(String lower) {
+		Set<String> hits = new HashSet<>();
+		if(lower.length()<3) {
+			for(Map.Entry<String,String> entry : lowerNames.entrySet()) {
+				if(entry.getValue().contains(lower)) hits.add(entry.getKey());
+			}
+			return hits;
+		}
+		List<Set<String>> lists = new ArrayList<>();
+		for(Long trigram : trigrams(lower)) {
+			Set<String> filenames=postings.get(trigram);
+			if(filenames==null) return hits; // no filename has this trigram
+			lists.add(filenames);
+		}
+		lists.sort(Comparator.comparingInt(Set::size));
+		for(String candidate : lists.get(0)) {
+			boolean all=true;
+			for(int i=1;i<lists.size() && all;i++) {
+				all=lists.get(i).contains(candidate);
+			}
+			// having all the trigrams does not mean they are in the right order
+			String name=lowerNames.get(candidate);
+			if(all && name!=null && name.contains(lower)) hits.add(candidate);
+		}
+		return hits;
+	}
+
+	/**
+	 * @param lower a lower-case filename
+	 * @param terms
+	 * @return true if the filename matches any of the terms, in the same way as
+	 * {@link #matchAny(String[])}
+	 */
+	public static boolean matches(String lower,String[] terms) {
+		for(String term : terms) {
+			if(lower.contains(term.toLowerCase())) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Find the filenames that contain the term as it is, spaces included,
+	 * ignoring case. A term shorter than a trigram, including the empty term
+	 * which every filename contains, is checked against every filename.
+	 * @param term
+	 * @param hits the collection to add matching filenames to
+	 */
+	public void matchTerm(String term,Collection<String> hits) {
+		hits.addAll(matchLower(term.toLowerCase()));
+	}
+
+	/**
+	 * Find the filenames that match any of the terms (OR), each term being
+	 * matched with {@link #matchTerm(String, Collection)}.
+	 * @param terms
+	 * @return the matching filenames
+	 */
+	@Override
+	public Set<String> matchAny(String[] terms) {
+		Set<String> hits = new HashSet<>();
+		for(String term : terms) {
+			matchTerm(term,hits);
+		}
+		return hits;
+	}
+}
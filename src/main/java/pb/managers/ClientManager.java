@@ -88,6 +88,11 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	 */
 	private boolean shouldWeRetry=false;
 	
+	/**
+	 * How many times to try to connect before giving up.
+	 */
+	private int maxRetries=10;
+	
 	/**
 	 * Initialise the client manage with a host and port to connect to.
 	 * @param host
@@ -102,12 +107,23 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	
 	@Override
 	public void shutdown() {
-		sessionProtocol.stopSession();
+		// there is no session to stop if we never connected
+		if(sessionProtocol!=null) sessionProtocol.stopSession();
+	}
+	
+	/**
+	 * Set how many times to try to connect, and to reconnect after the connection
+	 * ends in error, before giving up. Fewer retries give up sooner, for instance
+	 * to fail over to another server. Must be called before the manager is started.
+	 * @param maxRetries
+	 */
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries=maxRetries;
 	}
 	
 	@Override
 	public void run() {
-		int retries=10;
+		int retries=maxRetries;
 		while(retries-- > 0) {
 			if(attemptToConnect(host,port)) {
 				// the connection ended in error, so let's just
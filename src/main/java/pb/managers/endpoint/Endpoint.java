@@ -212,6 +212,9 @@ public class Endpoint extends Eventable {
 	@Override
 	public void run() {
 		try {
+			// messages are written whole, so don't hold the end of one back
+			// waiting for the other end to acknowledge the last
+			socket.setTcpNoDelay(true);
 			in = new DataInputStream(socket.getInputStream());
 			out = new DataOutputStream(socket.getOutputStream());
 		} catch (IOException e){
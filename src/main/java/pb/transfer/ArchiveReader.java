@@ -0,0 +1,218 @@
+package pb.transfer;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * Reads a stream written by {@link ArchiveStream} back into files, as the
+ * stream arrives in pieces of any size. Each file is written to where its
+ * filename resolves to,
+ * and once its hash has been read it is checked against the contents; a file
+ * whose hash does not match is deleted. Only the files that were asked for are
+ * written, any other file in the stream is skipped.
+ * @author aaron
+ *
+ */
+public class ArchiveReader {
+
+	/**
+	 * Longest filename or error message that is accepted.
+	 */
+	private static final int maxNameLength = 64*1024;
+
+	/**
+	 * What is being read, in the order of a frame.
+	 */
+	private enum State {KIND,NAME_LENGTH,NAME,LENGTH,CONTENTS,HASH,ERROR_LENGTH,ERROR}
+
+	private State state=State.KIND;
+
+	/**
+	 * The fixed length field being read, and how much of it has been read.
+	 */
+	private byte[] field = new byte[1];
+	private int fieldPos=0;
+
+	private byte kind;
+	private String filename;
+	private Path path;
+	private long remaining;
+	private OutputStream out=null;
+	private MessageDigest digest=null;
+
+	private final Set<String> expected;
+	private final BiConsumer<String,String> done;
+	private final ArchiveStream.Resolver resolver;
+
+	/**
+	 * @param expected the filenames asked for, each is removed once it has been read
+	 * @param done called with each filename read and null if it was received
+	 * intact, or else an error message
+	 */
+	public ArchiveReader(Set<String> expected,BiConsumer<String,String> done) {
+		this(expected,done,Paths::get);
+	}
+
+	/**
+	 * @param expected the filenames asked for, each is removed once it has been read
+	 * @param done called with each filename read and null if it was received
+	 * intact, or else an error message
+	 * @param resolver to find where to write each file, which throws if the
+	 * file must not be written
+	 */
+	public ArchiveReader(Set<String> expected,BiConsumer<String,String> done,ArchiveStream.Resolver resolver) {
+		this.expected=expected;
+		this.done=done;
+		this.resolver=resolver;
+	}
+
+	/**
+	 * @param length
+	 * @param next the state once the field has been read
+	 */
+	private void expect(int length,State next) {
+		field=new byte[length];
+		fieldPos=0;
+		state=next;
+	}
+
+	/**
+	 * Read the next piece of the stream.
+	 * @param bytes
+	 * @throws IOException if the stream is not a valid archive, or a file can
+	 * not be written, after which no more can be read
+	 */
+	public void read(byte[] bytes) throws IOException {
+		int pos=0;
+		while(pos<bytes.length) {
+			if(state==State.CONTENTS) {
+				int write=(int) Math.min(bytes.length-pos,remaining);
+				if(out!=null) out.write(bytes,pos,write);
+				digest.update(bytes,pos,write);
+				remaining-=write;
+				pos+=write;
+				if(remaining==0) expect(ArchiveStream.hashLength,State.HASH);
+				continue;
+			}
+			int copy=Math.min(bytes.length-pos,field.length-fieldPos);
+			System.arraycopy(bytes,pos,field,fieldPos,copy);
+			fieldPos+=copy;
+			pos+=copy;
+			if(fieldPos==field.length) fieldRead();
+		}
+	}
+
+	/**
+	 * Act on the field that has just been read.
+	 * @throws IOException
+	 */
+	private void fieldRead() throws IOException {
+		ByteBuffer value=ByteBuffer.wrap(field);
+		switch(state) {
+		case KIND:
+			kind=field[0];
+			if(kind!=ArchiveStream.fileFrame && kind!=ArchiveStream.errorFrame) {
+				throw new IOException("not a valid archive, unknown frame: "+kind);
+			}
+			expect(4,State.NAME_LENGTH);
+			break;
+		case NAME_LENGTH:
+		case ERROR_LENGTH:
+			int length=value.getInt();
+			if(length<0 || length>maxNameLength) throw new IOException("not a valid archive, bad length: "+length);
+			expect(length,state==State.NAME_LENGTH ? State.NAME : State.ERROR);
+			if(length==0) fieldRead();
+			break;
+		case NAME:
+			filename=new String(field,StandardCharsets.UTF_8);
+			if(kind==ArchiveStream.fileFrame) {
+				expect(8,State.LENGTH);
+			} else {
+				expect(4,State.ERROR_LENGTH);
+			}
+			break;
+		case ERROR:
+			expected.remove(filename);
+			done.accept(filename,new String(field,StandardCharsets.UTF_8));
+			expect(1,State.KIND);
+			break;
+		case LENGTH:
+			remaining=value.getLong();
+			if(remaining<0) throw new IOException("not a valid archive, bad length: "+remaining);
+			digest=ArchiveStream.sha256();
+			// never write a file that was not asked for
+			path=expected.contains(filename) ? resolver.resolve(filename) : null;
+			out=path!=null ? new FileOutputStream(path.toFile()) : null;
+			if(remaining==0) {
+				expect(ArchiveStream.hashLength,State.HASH);
+			} else {
+				state=State.CONTENTS;
+			}
+			break;
+		case HASH:
+			fileRead();
+			expect(1,State.KIND);
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Close the file that has just been read and check its hash.
+	 * @throws IOException
+	 */
+	private void fileRead() throws IOException {
+		if(out==null) {
+			done.accept(filename,"was not asked for");
+			return;
+		}
+		out.close();
+		out=null;
+		expected.remove(filename);
+		if(MessageDigest.isEqual(digest.digest(),field)) {
+			done.accept(filename,null);
+		} else {
+			Files.deleteIfExists(path);
+			done.accept(filename,"hash does not match, the file was corrupted");
+		}
+	}
+
+	/**
+	 * Stop reading. A file that is part way through being written, whose hash
+	 * has not been checked, is deleted and reported as cut short.
+	 */
+	public void close() {
+		if(out==null) return;
+		try {
+			out.close();
+		} catch (IOException e) {
+			// already failed
+		}
+		out=null;
+		if(state!=State.CONTENTS && state!=State.HASH) return;
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			// reported below
+		}
+		expected.remove(filename);
+		done.accept(filename,"the stream was cut short");
+	}
+
+	/**
+	 * @return true if the stream ended between frames, rather than in one
+	 */
+	public boolean isComplete() {
+		return state==State.KIND && fieldPos==0;
+	}
+}
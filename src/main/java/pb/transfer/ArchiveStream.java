@@ -0,0 +1,205 @@
+package pb.transfer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Many files read back-to-back as one stream, so that they can be sent over a
+ * single connection and in as few messages as their bytes need, rather than a
+ * connection per file. Each file is framed as:
+ * <ul>
+ * <li>{@link #fileFrame}, the length of the filename as an int, the UTF-8
+ * filename and the length of the contents as a long</li>
+ * <li>the contents</li>
+ * <li>the {@link #hashLength} byte SHA-256 hash of the contents</li>
+ * </ul>
+ * A file that can not be opened is framed as {@link #errorFrame}, the filename
+ * as above and the length and UTF-8 bytes of the error message. The files are
+ * opened one at a time, as the stream reaches them, and {@link ArchiveReader}
+ * reads the stream back into files.
+ * <br/>
+ * Reads fill the buffer given, across as many files as it takes, and only
+ * return fewer bytes at the end of the stream. If a file shrinks while it is
+ * being read, it is padded with zeros to the length in its frame, so that the
+ * frames that follow stay in place, and its hash will not match.
+ * @author aaron
+ *
+ */
+public class ArchiveStream extends InputStream {
+
+	/**
+	 * Kinds of frame.
+	 */
+	public static final byte fileFrame = 1;
+	public static final byte errorFrame = 2;
+
+	/**
+	 * Length of the hash that follows the contents of a file.
+	 */
+	public static final int hashLength = 32;
+
+	/**
+	 * Opens the contents of a file to send, such as from a copy of the file
+	 * that is already in memory.
+	 */
+	public interface Opener {
+		InputStream open(String filename) throws IOException;
+	}
+
+	/**
+	 * Finds the file that a filename in the stream is for, where the name that
+	 * the file is known by is not where it is.
+	 */
+	public interface Resolver {
+		Path resolve(String filename) throws IOException;
+	}
+
+	private final Iterator<String> filenames;
+	private final Resolver resolver;
+	private final Opener opener;
+
+	/**
+	 * The header or trailer being read, if any.
+	 */
+	private byte[] frame=null;
+	private int framePos=0;
+
+	/**
+	 * The file whose contents are being read, if any.
+	 */
+	private InputStream file=null;
+	private MessageDigest digest=null;
+	private long remaining=0;
+
+	/**
+	 * @param filenames the files, in the order that they are to be sent
+	 */
+	public ArchiveStream(List<String> filenames) {
+		this(filenames,Paths::get,FileInputStream::new);
+	}
+
+	/**
+	 * @param filenames the files, in the order that they are to be sent
+	 * @param resolver to find each file, for its length
+	 * @param opener to open the contents of each file, which must be as long
+	 * as the file
+	 */
+	public ArchiveStream(List<String> filenames,Resolver resolver,Opener opener) {
+		this.filenames=filenames.iterator();
+		this.resolver=resolver;
+		this.opener=opener;
+	}
+
+	/**
+	 * @return a new SHA-256 digest
+	 */
+	static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available",e);
+		}
+	}
+
+	/**
+	 * @param kind
+	 * @param filename
+	 * @param length the length of the contents of a file
+	 * @param error the error message of a file that can not be sent
+	 * @return the header of a frame
+	 */
+	private static byte[] header(byte kind,String filename,long length,String error) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeByte(kind);
+			byte[] name=filename.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(name.length);
+			out.write(name);
+			if(kind==fileFrame) {
+				out.writeLong(length);
+			} else {
+				byte[] message=error.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(message.length);
+				out.write(message);
+			}
+		} catch (IOException e) {
+			// not thrown by a byte array
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Start the next file, or its error frame if it can not be opened.
+	 * @return false if there are no more files
+	 */
+	private boolean nextFile() {
+		if(!filenames.hasNext()) return false;
+		String filename=filenames.next();
+		try {
+			long length=Files.size(resolver.resolve(filename));
+			digest=sha256();
+			file=new DigestInputStream(opener.open(filename),digest);
+			remaining=length;
+			frame=header(fileFrame,filename,length,null);
+		} catch (IOException | RuntimeException e) {
+			frame=header(errorFrame,filename,0,e.toString());
+		}
+		framePos=0;
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] one = new byte[1];
+		return read(one,0,1)==-1 ? -1 : one[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b,int off,int len) throws IOException {
+		int n=0;
+		while(n<len) {
+			if(frame!=null && framePos<frame.length) {
+				int copy=Math.min(len-n,frame.length-framePos);
+				System.arraycopy(frame,framePos,b,off+n,copy);
+				framePos+=copy;
+				n+=copy;
+			} else if(file!=null && remaining>0) {
+				int want=(int) Math.min(len-n,remaining);
+				int read=file.read(b,off+n,want);
+				if(read==-1) {
+					// the file has shrunk, pad it out without hashing the padding
+					for(int i=0;i<want;i++) b[off+n+i]=0;
+					read=want;
+				}
+				remaining-=read;
+				n+=read;
+			} else if(file!=null) {
+				file.close();
+				file=null;
+				frame=digest.digest();
+				framePos=0;
+			} else if(!nextFile()) {
+				break;
+			}
+		}
+		return n==0 && len>0 ? -1 : n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(file!=null) file.close();
+		file=null;
+	}
+}
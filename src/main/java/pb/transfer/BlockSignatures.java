@@ -0,0 +1,195 @@
+package pb.transfer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The signatures of the blocks of a file, for finding which parts of a newer
+ * version of the file are already in it, as rsync does. The file is cut into
+ * blocks of {@link #blockSize} bytes, leaving out a shorter last block, and
+ * each block is signed with:
+ * <ul>
+ * <li>a weak checksum, the rsync rolling checksum, which can be moved along
+ * the newer file a byte at a time at the cost of a few additions</li>
+ * <li>a strong checksum, the first {@link #strongLength} bytes of the MD5 of
+ * the block, only computed where the weak checksum matches</li>
+ * </ul>
+ * The signatures are sent as {@link #signatureLength} bytes for each block.
+ * @author aaron
+ *
+ */
+public class BlockSignatures {
+
+	/**
+	 * Smallest and largest block size, the block size of a file is about the
+	 * square root of its length in between.
+	 */
+	public static final int minBlockSize = 512;
+	public static final int maxBlockSize = 64*1024;
+
+	/**
+	 * Bytes of the strong checksum, and of the signature of a block.
+	 */
+	public static final int strongLength = 8;
+	public static final int signatureLength = 4+strongLength;
+
+	public final int blockSize;
+	private final int[] weak;
+	private final long[] strong;
+
+	/**
+	 * Weak checksum to the blocks that have it.
+	 */
+	private final Map<Integer,List<Integer>> byWeak = new HashMap<>();
+
+	private BlockSignatures(int blockSize,int[] weak,long[] strong) {
+		this.blockSize=blockSize;
+		this.weak=weak;
+		this.strong=strong;
+		for(int block=0;block<weak.length;block++) {
+			// many blocks share a checksum in a file of repeated blocks
+			byWeak.computeIfAbsent(weak[block],(key)->new ArrayList<>(1)).add(block);
+		}
+	}
+
+	/**
+	 * @param length the length of a file
+	 * @return the block size to sign the file with
+	 */
+	public static int blockSize(long length) {
+		return (int) Math.max(minBlockSize,Math.min(maxBlockSize,(long) Math.sqrt(length)));
+	}
+
+	/**
+	 * @param sum the first sum of the rolling checksum, of the bytes
+	 * @param weighted the second sum, of the bytes weighted by their distance from the end
+	 * @return the weak checksum
+	 */
+	static int weak(int sum,int weighted) {
+		return (sum & 0xffff) | (weighted << 16);
+	}
+
+	/**
+	 * @param block
+	 * @return the strong checksum of the bytes from the position to the limit of the block
+	 */
+	static long strong(ByteBuffer block) {
+		try {
+			MessageDigest md5=MessageDigest.getInstance("MD5");
+			md5.update(block);
+			return ByteBuffer.wrap(md5.digest()).getLong();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 is not available",e);
+		}
+	}
+
+	/**
+	 * Sign the blocks of a file.
+	 * @param file
+	 * @return the signatures, with the block size for the length of the file
+	 * @throws IOException
+	 */
+	public static BlockSignatures of(Path file) throws IOException {
+		int blockSize=blockSize(Files.size(file));
+		int blocks=(int) Math.min(Integer.MAX_VALUE,Files.size(file)/blockSize);
+		int[] weak = new int[blocks];
+		long[] strong = new long[blocks];
+		byte[] bytes = new byte[blockSize];
+		try(InputStream in = new FileInputStream(file.toFile())) {
+			for(int block=0;block<blocks;block++) {
+				int read=0;
+				while(read<blockSize) {
+					int n=in.read(bytes,read,blockSize-read);
+					if(n==-1) throw new IOException("file changed while signing: "+file);
+					read+=n;
+				}
+				int sum=0;
+				int weighted=0;
+				for(int i=0;i<blockSize;i++) {
+					sum+=bytes[i] & 0xff;
+					weighted+=(blockSize-i)*(bytes[i] & 0xff);
+				}
+				weak[block]=weak(sum,weighted);
+				strong[block]=strong(ByteBuffer.wrap(bytes));
+			}
+		}
+		return new BlockSignatures(blockSize,weak,strong);
+	}
+
+	/**
+	 * @return the signatures as {@link #signatureLength} bytes for each block
+	 */
+	public byte[] encode() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(weak.length*signatureLength);
+		try(DataOutputStream out = new DataOutputStream(bytes)) {
+			for(int block=0;block<weak.length;block++) {
+				out.writeInt(weak[block]);
+				out.writeLong(strong[block]);
+			}
+		} catch (IOException e) {
+			// not thrown by a byte array
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @param blockSize
+	 * @param bytes as returned by {@link #encode()}
+	 * @return the signatures
+	 * @throws IllegalArgumentException if the bytes are not signatures
+	 */
+	public static BlockSignatures decode(int blockSize,byte[] bytes) {
+		if(blockSize<minBlockSize || blockSize>maxBlockSize || bytes.length%signatureLength!=0) {
+			throw new IllegalArgumentException("not block signatures");
+		}
+		ByteBuffer in=ByteBuffer.wrap(bytes);
+		int[] weak = new int[bytes.length/signatureLength];
+		long[] strong = new long[weak.length];
+		for(int block=0;block<weak.length;block++) {
+			weak[block]=in.getInt();
+			strong[block]=in.getLong();
+		}
+		return new BlockSignatures(blockSize,weak,strong);
+	}
+
+	/**
+	 * @return the number of blocks
+	 */
+	public int size() {
+		return weak.length;
+	}
+
+	/**
+	 * Find a block with the same contents as some bytes.
+	 * @param weakChecksum the weak checksum of the bytes
+	 * @param bytes {@link #blockSize} bytes, from the position of the buffer
+	 * @param preferred a block to pick if it matches, such as the one after
+	 * the previous match, or -1
+	 * @return the block, or -1 if none matches
+	 */
+	public int find(int weakChecksum,ByteBuffer bytes,int preferred) {
+		List<Integer> blocks=byWeak.get(weakChecksum);
+		if(blocks==null) return -1;
+		long strongChecksum=strong(bytes);
+		if(preferred>=0 && preferred<weak.length && weak[preferred]==weakChecksum &&
+				strong[preferred]==strongChecksum) {
+			return preferred;
+		}
+		for(int block : blocks) {
+			if(strong[block]==strongChecksum) return block;
+		}
+		return -1;
+	}
+}
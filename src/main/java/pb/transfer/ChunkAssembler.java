@@ -0,0 +1,193 @@
+package pb.transfer;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Assembles a file from its chunks, taking those that the {@link ChunkStore}
+ * already holds from the store and the rest from a {@link ChunkStream} of the
+ * {@link #missing()} chunks, as the stream arrives in pieces of any size. The
+ * chunks are written in the order of the file, each as soon as it is there,
+ * and a chunk that appears more than once is copied from where it was first
+ * written. Each chunk received is checked against its hash.
+ * <br/>
+ * Which chunks are taken from the store is decided once, when the assembler
+ * is made, since other downloads may add to the store while this one runs,
+ * and the stream has to line up with the {@link #missing()} chunks. A chunk
+ * that the store no longer holds by the time it is needed fails the
+ * assembly, and the file has to be got whole.
+ * <br/>
+ * The file is assembled next to the target, and replaces it once complete,
+ * when it is also added to the store.
+ * @author aaron
+ *
+ */
+public class ChunkAssembler {
+
+	private final ChunkStore store;
+	private final Path target;
+	private final Path assembled;
+	private final List<ChunkStore.Chunk> recipe;
+	private final RandomAccessFile out;
+
+	/**
+	 * The next chunk of the recipe to write.
+	 */
+	private int next=0;
+
+	/**
+	 * Offsets in the assembled file of the chunks written.
+	 */
+	private final Map<String,Long> written = new HashMap<>();
+	private long length=0;
+
+	/**
+	 * The chunk being received, and how much of it has arrived.
+	 */
+	private byte[] receiving=null;
+	private int receivingPos=0;
+
+	/**
+	 * The chunks to take from the store, and the number taken.
+	 */
+	private final Set<String> held = new HashSet<>();
+	private int fromStore=0;
+
+	/**
+	 * @param store
+	 * @param target the file to assemble
+	 * @param recipe the chunks of the file, in order
+	 * @throws IOException if the file can not be assembled next to the target
+	 */
+	public ChunkAssembler(ChunkStore store,Path target,List<ChunkStore.Chunk> recipe) throws IOException {
+		this.store=store;
+		this.target=target;
+		this.recipe=recipe;
+		for(ChunkStore.Chunk chunk : recipe) {
+			if(store.contains(chunk.hash)) held.add(chunk.hash);
+		}
+		assembled=Paths.get(target.toString()+".chunks");
+		out=new RandomAccessFile(assembled.toFile(),"rw");
+		out.setLength(0);
+	}
+
+	/**
+	 * @return the distinct chunks of the file that the store does not hold, in
+	 * the order that the stream must send them
+	 */
+	public List<String> missing() {
+		Set<String> missing = new LinkedHashSet<>();
+		for(ChunkStore.Chunk chunk : recipe) {
+			if(!held.contains(chunk.hash)) missing.add(chunk.hash);
+		}
+		return new ArrayList<>(missing);
+	}
+
+	private void write(ChunkStore.Chunk chunk,byte[] bytes) throws IOException {
+		out.seek(length);
+		out.write(bytes);
+		written.putIfAbsent(chunk.hash,length);
+		length+=bytes.length;
+		next++;
+	}
+
+	/**
+	 * Write the chunks that are already here, up to the next one that has to
+	 * come from the stream.
+	 * @throws IOException if a chunk to take from the store is no longer held
+	 */
+	private void advance() throws IOException {
+		while(next<recipe.size()) {
+			ChunkStore.Chunk chunk=recipe.get(next);
+			Long offset=written.get(chunk.hash);
+			byte[] bytes;
+			if(offset!=null) {
+				bytes = new byte[chunk.length];
+				out.seek(offset);
+				out.readFully(bytes);
+			} else if(held.contains(chunk.hash)) {
+				bytes=store.read(chunk.hash);
+				if(bytes==null) throw new IOException("chunk is no longer held: "+chunk.hash);
+				fromStore++;
+			} else {
+				return;
+			}
+			write(chunk,bytes);
+		}
+	}
+
+	/**
+	 * Read the next piece of the stream of missing chunks.
+	 * @param bytes
+	 * @throws IOException if a chunk does not match its hash, a chunk is no
+	 * longer held by the store, or the file can not be written
+	 */
+	public void read(byte[] bytes) throws IOException {
+		int pos=0;
+		while(pos<bytes.length) {
+			if(receiving==null) {
+				advance();
+				if(next==recipe.size()) throw new IOException("more chunks than the file has");
+				receiving=new byte[recipe.get(next).length];
+				receivingPos=0;
+			}
+			int copy=Math.min(bytes.length-pos,receiving.length-receivingPos);
+			System.arraycopy(bytes,pos,receiving,receivingPos,copy);
+			receivingPos+=copy;
+			pos+=copy;
+			if(receivingPos==receiving.length) {
+				ChunkStore.Chunk chunk=recipe.get(next);
+				if(!ChunkStore.hash(receiving,0,receiving.length).equals(chunk.hash)) {
+					throw new IOException("chunk does not match its hash: "+chunk.hash);
+				}
+				write(chunk,receiving);
+				receiving=null;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of chunks that were taken from the store
+	 */
+	public int getHeld() {
+		return fromStore;
+	}
+
+	/**
+	 * Stop assembling and, if every chunk of the file is there, replace the
+	 * target with the file and add it to the store. Otherwise the target is
+	 * left as it was.
+	 * @return true if the file was assembled
+	 */
+	public boolean finish() {
+		try {
+			if(receiving==null) advance();
+			out.close();
+			if(next==recipe.size() && receiving==null) {
+				Files.move(assembled,target,StandardCopyOption.REPLACE_EXISTING);
+				store.add(target,recipe);
+				return true;
+			}
+		} catch (IOException e) {
+			// the target is kept
+		}
+		try {
+			out.close();
+			Files.deleteIfExists(assembled);
+		} catch (IOException e) {
+			// nothing more to do
+		}
+		return false;
+	}
+}
@@ -0,0 +1,144 @@
+package pb.transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Encodes the chunks of a transmission as strings for events, compressing
+ * those that compress well. A chunk is either the Base64 of its bytes, or
+ * {@link #deflated} followed by the Base64 of its length as an int and its
+ * bytes compressed with {@link Deflater}, so that each chunk can be decoded on
+ * its own. '~' is not a Base64 character, so peers that receive chunks tell
+ * them apart, and a peer only sends compressed chunks to peers that have said
+ * that they can decode them.
+ * <br/>
+ * Compressing a chunk that does not compress, such as part of an image or an
+ * archive, costs time for nothing, so the codec samples: a chunk that does
+ * not shrink by at least {@link #minSaving} is sent as it is, and the next
+ * chunks are not tried, twice as many each time up to {@link #maxSkip}, since
+ * the rest of the file is likely the same. A chunk that compresses well
+ * starts trying every chunk again.
+ * <br/>
+ * The deflaters and inflaters are kept for each thread and reused, rather than
+ * made for each chunk.
+ * @author aaron
+ *
+ */
+public class ChunkCodec {
+
+	/**
+	 * The start of a compressed chunk.
+	 */
+	public static final String deflated = "~";
+
+	/**
+	 * The codec name that peers use to say they can decode compressed chunks.
+	 */
+	public static final String deflate = "deflate";
+
+	/**
+	 * Least fraction of a chunk that compressing must save for it to be sent
+	 * compressed.
+	 */
+	public static final double minSaving = 0.1;
+
+	/**
+	 * Most chunks to skip trying to compress after a chunk did not compress.
+	 */
+	public static final int maxSkip = 64;
+
+	/**
+	 * Largest chunk that a compressed chunk may decode to.
+	 */
+	private static final int maxDecoded = 1024*1024;
+
+	private static final ThreadLocal<Deflater> deflaters =
+			ThreadLocal.withInitial(()->new Deflater(Deflater.BEST_SPEED));
+	private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+	private final boolean compress;
+	private int skip=0;
+	private int nextSkip=1;
+	private byte[] output = new byte[0];
+
+	/**
+	 * @param compress true to compress the chunks that compress well, false
+	 * to only Base64 them, for a peer that can't decode compressed chunks
+	 */
+	public ChunkCodec(boolean compress) {
+		this.compress=compress;
+	}
+
+	/**
+	 * @param bytes
+	 * @param len the length of the chunk at the start of bytes
+	 * @return the chunk, ready to emit
+	 */
+	public String encode(byte[] bytes,int len) {
+		if(compress && len>0) {
+			if(skip>0) {
+				skip--;
+			} else {
+				String chunk=deflate(bytes,len);
+				if(chunk!=null) {
+					nextSkip=1;
+					return chunk;
+				}
+				skip=nextSkip;
+				nextSkip=Math.min(maxSkip,nextSkip*2);
+			}
+		}
+		return new String(Base64.encodeBase64(Arrays.copyOf(bytes,len)),StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @param bytes
+	 * @param len
+	 * @return the chunk compressed, or null if it does not save enough
+	 */
+	private String deflate(byte[] bytes,int len) {
+		int limit=(int) (len*(1-minSaving));
+		if(output.length<limit+4) output=new byte[limit+4];
+		Deflater deflater=deflaters.get();
+		deflater.reset();
+		deflater.setInput(bytes,0,len);
+		deflater.finish();
+		// only room for a compressed chunk that saves enough
+		int n=deflater.deflate(output,4,limit);
+		if(!deflater.finished()) return null;
+		ByteBuffer.wrap(output).putInt(len);
+		return deflated+new String(Base64.encodeBase64(Arrays.copyOf(output,n+4)),StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @param chunk as emitted
+	 * @return the bytes of the chunk
+	 * @throws IOException if the chunk is compressed and can not be decompressed
+	 */
+	public static byte[] decode(String chunk) throws IOException {
+		if(!chunk.startsWith(deflated)) return Base64.decodeBase64(chunk);
+		byte[] bytes=Base64.decodeBase64(chunk.substring(deflated.length()));
+		if(bytes.length<4) throw new IOException("compressed chunk is too short");
+		int len=ByteBuffer.wrap(bytes).getInt();
+		if(len<0 || len>maxDecoded) throw new IOException("bad compressed chunk length: "+len);
+		byte[] decoded = new byte[len];
+		Inflater inflater=inflaters.get();
+		inflater.reset();
+		inflater.setInput(bytes,4,bytes.length-4);
+		try {
+			if(inflater.inflate(decoded)!=len || !inflater.finished()) {
+				throw new IOException("compressed chunk is not the length it says");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("bad compressed chunk: "+e.getMessage());
+		}
+		return decoded;
+	}
+}
@@ -0,0 +1,337 @@
+package pb.transfer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * A content addressed store of the chunks of files, so that the chunks that
+ * files have in common, such as versions of a build or copies in different
+ * directories, are only held and transferred once. Files are cut into chunks
+ * where their contents say, not at fixed offsets, so an insertion into a file
+ * only changes the chunks around it: a gear hash is rolled over the bytes and a
+ * chunk ends where its low bits are all zero, giving chunks of about
+ * {@link #averageChunk} bytes, and never fewer than {@link #minChunk} or more
+ * than {@link #maxChunk}. A chunk is known by the SHA-256 hash of its contents.
+ * <br/>
+ * The store does not copy the chunks, it keeps where each one is found in the
+ * files that have been added to it, so it costs no more disk than the files.
+ * A chunk is checked against its hash each time it is read, and forgotten if
+ * its file has changed since.
+ * @author aaron
+ *
+ */
+public class ChunkStore {
+	private static Logger log = Logger.getLogger(ChunkStore.class.getName());
+
+	/**
+	 * Smallest, average and largest chunk size.
+	 */
+	public static final int minChunk = 2*1024;
+	public static final int averageChunk = 8*1024;
+	public static final int maxChunk = 64*1024;
+
+	/**
+	 * Length of the hash of a chunk, and of a chunk in a recipe.
+	 */
+	public static final int hashLength = 32;
+	public static final int recipeEntryLength = hashLength+4;
+
+	private static final long boundaryMask = averageChunk-1;
+
+	/**
+	 * The gear table, a random number for each byte value, the same for all
+	 * peers so that they cut the same files the same way.
+	 */
+	private static final long[] gear = new long[256];
+	static {
+		Random random = new Random(0x5eed);
+		for(int i=0;i<gear.length;i++) gear[i]=random.nextLong();
+	}
+
+	/**
+	 * A chunk of a file, by its hash.
+	 */
+	public static class Chunk {
+		public final String hash;
+		public final int length;
+
+		public Chunk(String hash,int length) {
+			this.hash=hash;
+			this.length=length;
+		}
+	}
+
+	/**
+	 * Where a chunk is found.
+	 */
+	private static class Location {
+		final Path file;
+		final long offset;
+		final int length;
+
+		Location(Path file,long offset,int length) {
+			this.file=file;
+			this.offset=offset;
+			this.length=length;
+		}
+	}
+
+	/**
+	 * The chunks of a file, as they were when it was last modified.
+	 */
+	private static class Recipe {
+		final long size;
+		final long modified;
+		final List<Chunk> chunks;
+
+		Recipe(long size,long modified,List<Chunk> chunks) {
+			this.size=size;
+			this.modified=modified;
+			this.chunks=chunks;
+		}
+	}
+
+	private final Map<String,Location> chunks = new ConcurrentHashMap<>();
+	private final Map<Path,Recipe> recipes = new ConcurrentHashMap<>();
+
+	/**
+	 * Bytes of the files added, and chunks found to be stale.
+	 */
+	private final AtomicLong fileBytes = new AtomicLong();
+	private final AtomicLong stale = new AtomicLong();
+
+	/**
+	 * @param bytes
+	 * @param off
+	 * @param len
+	 * @return the hash of the bytes, in hex
+	 */
+	public static String hash(byte[] bytes,int off,int len) {
+		MessageDigest sha256=ArchiveStream.sha256();
+		sha256.update(bytes,off,len);
+		return toHex(sha256.digest());
+	}
+
+	static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length*2);
+		for(byte b : bytes) {
+			hex.append(Character.forDigit((b>>4) & 0xf,16)).append(Character.forDigit(b & 0xf,16));
+		}
+		return hex.toString();
+	}
+
+	static byte[] fromHex(String hex) {
+		byte[] bytes = new byte[hex.length()/2];
+		for(int i=0;i<bytes.length;i++) {
+			bytes[i]=(byte) Integer.parseInt(hex.substring(2*i,2*i+2),16);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Cut a stream into chunks by their contents.
+	 * @param in
+	 * @return the chunks, in order
+	 * @throws IOException
+	 */
+	public static List<Chunk> chunk(InputStream in) throws IOException {
+		List<Chunk> chunks = new ArrayList<>();
+		byte[] chunk = new byte[maxChunk];
+		byte[] buffer = new byte[64*1024];
+		int length=0;
+		long h=0;
+		int read;
+		while((read=in.read(buffer))!=-1) {
+			for(int i=0;i<read;i++) {
+				chunk[length++]=buffer[i];
+				h=(h<<1)+gear[buffer[i] & 0xff];
+				if((length>=minChunk && (h & boundaryMask)==0) || length==maxChunk) {
+					chunks.add(new Chunk(hash(chunk,0,length),length));
+					length=0;
+					h=0;
+				}
+			}
+		}
+		if(length>0) chunks.add(new Chunk(hash(chunk,0,length),length));
+		return chunks;
+	}
+
+	/**
+	 * Add a file to the store, unless it has not changed since it was last added.
+	 * @param file
+	 * @return the chunks of the file
+	 * @throws IOException if the file can not be read
+	 */
+	public List<Chunk> add(Path file) throws IOException {
+		long size=Files.size(file);
+		long modified=Files.getLastModifiedTime(file).toMillis();
+		Recipe recipe=recipes.get(file);
+		if(recipe!=null && recipe.size==size && recipe.modified==modified) return recipe.chunks;
+		List<Chunk> fileChunks;
+		try(InputStream in = new FileInputStream(file.toFile())) {
+			fileChunks=chunk(in);
+		}
+		add(file,fileChunks);
+		return fileChunks;
+	}
+
+	/**
+	 * Add a file whose chunks are already known, such as one just assembled from them.
+	 * @param file
+	 * @param fileChunks the chunks of the file, in order
+	 * @throws IOException if the file can not be read
+	 */
+	public void add(Path file,List<Chunk> fileChunks) throws IOException {
+		long offset=0;
+		for(Chunk chunk : fileChunks) {
+			chunks.putIfAbsent(chunk.hash,new Location(file,offset,chunk.length));
+			offset+=chunk.length;
+		}
+		Recipe previous=recipes.put(file,new Recipe(Files.size(file),
+				Files.getLastModifiedTime(file).toMillis(),fileChunks));
+		if(previous!=null) fileBytes.addAndGet(-previous.size);
+		fileBytes.addAndGet(offset);
+	}
+
+	/**
+	 * Add all of the files in a directory and below, skipping any that can't be read.
+	 * @param dir
+	 * @throws IOException if the directory can not be read
+	 */
+	public void addAll(Path dir) throws IOException {
+		try(Stream<Path> files=Files.walk(dir)) {
+			files.filter(Files::isRegularFile).forEach((file)->{
+				try {
+					add(file);
+				} catch (IOException e) {
+					log.warning("could not add to the chunk store: "+file);
+				}
+			});
+		}
+	}
+
+	/**
+	 * @param hash
+	 * @return true if the store knows where to find the chunk
+	 */
+	public boolean contains(String hash) {
+		return chunks.containsKey(hash);
+	}
+
+	/**
+	 * @param hash
+	 * @return the contents of the chunk, or null if it is not held, or its
+	 * file has changed and it is no longer there
+	 */
+	public byte[] read(String hash) {
+		Location location=chunks.get(hash);
+		if(location==null) return null;
+		byte[] bytes = new byte[location.length];
+		try(RandomAccessFile file = new RandomAccessFile(location.file.toFile(),"r")) {
+			file.seek(location.offset);
+			file.readFully(bytes);
+			if(hash(bytes,0,bytes.length).equals(hash)) return bytes;
+		} catch (IOException e) {
+			// the file has gone or shrunk
+		}
+		chunks.remove(hash,location);
+		stale.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * @param hashes
+	 * @return the hashes as {@link #hashLength} bytes each
+	 */
+	public static byte[] encodeHashes(List<String> hashes) {
+		ByteBuffer bytes=ByteBuffer.allocate(hashes.size()*hashLength);
+		for(String hash : hashes) bytes.put(fromHex(hash));
+		return bytes.array();
+	}
+
+	/**
+	 * @param bytes as returned by {@link #encodeHashes(List)}
+	 * @return the hashes
+	 * @throws IllegalArgumentException if the bytes are not a list of hashes
+	 */
+	public static List<String> decodeHashes(byte[] bytes) {
+		if(bytes.length%hashLength!=0) throw new IllegalArgumentException("not a list of hashes");
+		List<String> hashes = new ArrayList<>();
+		for(int i=0;i<bytes.length;i+=hashLength) {
+			hashes.add(toHex(Arrays.copyOfRange(bytes,i,i+hashLength)));
+		}
+		return hashes;
+	}
+
+	/**
+	 * @param fileChunks
+	 * @return the chunks as {@link #recipeEntryLength} bytes each, the hash and
+	 * the length
+	 */
+	public static byte[] encode(List<Chunk> fileChunks) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(fileChunks.size()*recipeEntryLength);
+		try(DataOutputStream out = new DataOutputStream(bytes)) {
+			for(Chunk chunk : fileChunks) {
+				out.write(fromHex(chunk.hash));
+				out.writeInt(chunk.length);
+			}
+		} catch (IOException e) {
+			// not thrown by a byte array
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @param bytes as returned by {@link #encode(List)}
+	 * @return the chunks
+	 * @throws IllegalArgumentException if the bytes are not a list of chunks
+	 */
+	public static List<Chunk> decode(byte[] bytes) {
+		if(bytes.length%recipeEntryLength!=0) throw new IllegalArgumentException("not a list of chunks");
+		ByteBuffer in=ByteBuffer.wrap(bytes);
+		List<Chunk> fileChunks = new ArrayList<>();
+		byte[] hash = new byte[hashLength];
+		while(in.hasRemaining()) {
+			in.get(hash);
+			int length=in.getInt();
+			if(length<=0 || length>maxChunk) throw new IllegalArgumentException("bad chunk length: "+length);
+			fileChunks.add(new Chunk(toHex(hash),length));
+		}
+		return fileChunks;
+	}
+
+	/**
+	 * @return the store metrics, by name: the files and their bytes, and the
+	 * distinct chunks and their bytes, which are less than the files' bytes by
+	 * as much as the files have in common
+	 */
+	public Map<String,Long> getStats() {
+		Map<String,Long> stats = new LinkedHashMap<>();
+		long chunkBytes=0;
+		for(Location location : chunks.values()) chunkBytes+=location.length;
+		stats.put("chunkFiles",(long)recipes.size());
+		stats.put("chunkFileBytes",fileBytes.get());
+		stats.put("chunks",(long)chunks.size());
+		stats.put("chunkBytes",chunkBytes);
+		stats.put("chunksStale",stale.get());
+		return stats;
+	}
+}
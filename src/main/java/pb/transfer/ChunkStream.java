@@ -0,0 +1,61 @@
+package pb.transfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The contents of some chunks of a {@link ChunkStore}, back-to-back, read
+ * from the store one chunk at a time as the stream reaches them. The chunks
+ * are not framed, the reader knows their lengths from the recipe of the file.
+ * Reads fill the buffer given and only return fewer bytes at the end of the
+ * stream.
+ * @author aaron
+ *
+ */
+public class ChunkStream extends InputStream {
+
+	private final ChunkStore store;
+	private final Iterator<String> hashes;
+	private byte[] chunk = new byte[0];
+	private int chunkPos=0;
+
+	/**
+	 * @param store
+	 * @param hashes the chunks, in order
+	 */
+	public ChunkStream(ChunkStore store,List<String> hashes) {
+		this.store=store;
+		this.hashes=hashes.iterator();
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] one = new byte[1];
+		return read(one,0,1)==-1 ? -1 : one[0] & 0xff;
+	}
+
+	/**
+	 * @throws IOException if a chunk is no longer held by the store
+	 */
+	@Override
+	public int read(byte[] b,int off,int len) throws IOException {
+		int n=0;
+		while(n<len) {
+			if(chunkPos==chunk.length) {
+				if(!hashes.hasNext()) break;
+				String hash=hashes.next();
+				chunk=store.read(hash);
+				chunkPos=0;
+				if(chunk==null) throw new IOException("chunk is no longer held: "+hash);
+				continue;
+			}
+			int count=Math.min(len-n,chunk.length-chunkPos);
+			System.arraycopy(chunk,chunkPos,b,off+n,count);
+			chunkPos+=count;
+			n+=count;
+		}
+		return n==0 && len>0 ? -1 : n;
+	}
+}
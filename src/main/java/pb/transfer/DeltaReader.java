@@ -0,0 +1,180 @@
+package pb.transfer;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+
+/**
+ * Rebuilds a file from its older version and a {@link DeltaStream}, as the
+ * stream arrives in pieces of any size. The file is rebuilt next to the older
+ * version, which is only replaced once the hash at the end of the stream
+ * matches the result.
+ * @author aaron
+ *
+ */
+public class DeltaReader {
+
+	/**
+	 * What is being read.
+	 */
+	private enum State {KIND,COPY,LITERAL_LENGTH,LITERAL,HASH,DONE}
+
+	private State state=State.KIND;
+
+	/**
+	 * The fixed length field being read, and how much of it has been read.
+	 */
+	private byte[] field = new byte[1];
+	private int fieldPos=0;
+
+	private int remaining;
+
+	private final Path target;
+	private final Path rebuilt;
+	private final int blockSize;
+	private final long blocks;
+	private final RandomAccessFile older;
+	private final OutputStream out;
+	private final MessageDigest digest=ArchiveStream.sha256();
+	private boolean intact=false;
+
+	/**
+	 * @param target the older version of the file, to be replaced
+	 * @param blockSize the block size of the signatures that the delta is for
+	 * @throws IOException if the older version can not be read, or the file
+	 * can not be rebuilt next to it
+	 */
+	public DeltaReader(Path target,int blockSize) throws IOException {
+		this.target=target;
+		this.blockSize=blockSize;
+		rebuilt=Paths.get(target.toString()+".delta");
+		older=new RandomAccessFile(target.toFile(),"r");
+		blocks=older.length()/blockSize;
+		try {
+			out=new FileOutputStream(rebuilt.toFile());
+		} catch (IOException e) {
+			older.close();
+			throw e;
+		}
+	}
+
+	private void expect(int length,State next) {
+		field=new byte[length];
+		fieldPos=0;
+		state=next;
+	}
+
+	private void write(byte[] bytes,int off,int len) throws IOException {
+		out.write(bytes,off,len);
+		digest.update(bytes,off,len);
+	}
+
+	/**
+	 * Read the next piece of the delta.
+	 * @param bytes
+	 * @throws IOException if the delta is not valid, or the file can not be written
+	 */
+	public void read(byte[] bytes) throws IOException {
+		int pos=0;
+		while(pos<bytes.length) {
+			if(state==State.DONE) throw new IOException("not a valid delta, bytes after the end");
+			if(state==State.LITERAL) {
+				int write=Math.min(bytes.length-pos,remaining);
+				write(bytes,pos,write);
+				remaining-=write;
+				pos+=write;
+				if(remaining==0) expect(1,State.KIND);
+				continue;
+			}
+			int copy=Math.min(bytes.length-pos,field.length-fieldPos);
+			System.arraycopy(bytes,pos,field,fieldPos,copy);
+			fieldPos+=copy;
+			pos+=copy;
+			if(fieldPos==field.length) fieldRead();
+		}
+	}
+
+	private void fieldRead() throws IOException {
+		ByteBuffer value=ByteBuffer.wrap(field);
+		switch(state) {
+		case KIND:
+			if(field[0]==DeltaStream.copy) {
+				expect(8,State.COPY);
+			} else if(field[0]==DeltaStream.literal) {
+				expect(4,State.LITERAL_LENGTH);
+			} else if(field[0]==DeltaStream.end) {
+				expect(ArchiveStream.hashLength,State.HASH);
+			} else {
+				throw new IOException("not a valid delta, unknown instruction: "+field[0]);
+			}
+			break;
+		case COPY:
+			copyBlocks(value.getInt(),value.getInt());
+			expect(1,State.KIND);
+			break;
+		case LITERAL_LENGTH:
+			remaining=value.getInt();
+			if(remaining<=0 || remaining>DeltaStream.maxLiteral) {
+				throw new IOException("not a valid delta, bad literal length: "+remaining);
+			}
+			state=State.LITERAL;
+			break;
+		case HASH:
+			intact=MessageDigest.isEqual(digest.digest(),field);
+			state=State.DONE;
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Copy a run of blocks of the older version.
+	 * @param first
+	 * @param count
+	 * @throws IOException
+	 */
+	private void copyBlocks(int first,int count) throws IOException {
+		if(first<0 || count<=0 || (long) first+count>blocks) {
+			throw new IOException("not a valid delta, no blocks "+first+" to "+((long) first+count));
+		}
+		byte[] block = new byte[blockSize];
+		older.seek((long) first*blockSize);
+		for(int i=0;i<count;i++) {
+			older.readFully(block);
+			write(block,0,blockSize);
+		}
+	}
+
+	/**
+	 * Stop reading and, if the whole delta has been read and the rebuilt file
+	 * matches its hash, replace the older version with it. Otherwise the
+	 * older version is left as it was.
+	 * @return true if the file was replaced
+	 */
+	public boolean finish() {
+		try {
+			older.close();
+			out.close();
+			if(state==State.DONE && intact) {
+				Files.move(rebuilt,target,StandardCopyOption.REPLACE_EXISTING);
+				return true;
+			}
+		} catch (IOException e) {
+			// the older version is kept
+		}
+		try {
+			Files.deleteIfExists(rebuilt);
+		} catch (IOException e) {
+			// nothing more to do
+		}
+		return false;
+	}
+}
@@ -0,0 +1,210 @@
+package pb.transfer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+/**
+ * The difference between a file and an older version of it, given by the
+ * {@link BlockSignatures} of the older version, as a stream of instructions
+ * for rebuilding the file from the older version:
+ * <ul>
+ * <li>{@link #copy}, the first block as an int and the number of blocks as
+ * an int, to copy a run of blocks of the older version</li>
+ * <li>{@link #literal}, the length as an int and the bytes, for bytes that are
+ * not in the older version, at most {@link #maxLiteral} at a time</li>
+ * <li>{@link #end} and the SHA-256 hash of the file, to check the result</li>
+ * </ul>
+ * The file is scanned as the stream is read, moving a window of one block
+ * along it. Where the window matches a block of the older version, the block
+ * is copied and the window jumps past it, otherwise the window moves on by a
+ * byte with the rolling checksum and the byte is sent. The file is memory
+ * mapped for the scan, so it can be at most 2GB.
+ * @author aaron
+ *
+ */
+public class DeltaStream extends InputStream {
+
+	/**
+	 * Kinds of instruction.
+	 */
+	public static final byte copy = 1;
+	public static final byte literal = 2;
+	public static final byte end = 3;
+
+	/**
+	 * Longest run of bytes sent in one instruction.
+	 */
+	public static final int maxLiteral = 64*1024;
+
+	private final BlockSignatures signatures;
+	private final MappedByteBuffer file;
+	private final int length;
+
+	/**
+	 * Start of the window, start of the bytes not matched yet, and the sums
+	 * of the rolling checksum of the window, if it is valid.
+	 */
+	private int pos=0;
+	private int literalStart=0;
+	private int sum;
+	private int weighted;
+	private boolean windowValid=false;
+
+	/**
+	 * The run of blocks being copied, not sent yet.
+	 */
+	private int runStart=-1;
+	private int runCount=0;
+
+	/**
+	 * Instructions waiting to be read.
+	 */
+	private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private final DataOutputStream out = new DataOutputStream(pending);
+	private byte[] ready = new byte[0];
+	private int readyPos=0;
+	private boolean ended=false;
+
+	/**
+	 * @param path the file
+	 * @param signatures the signatures of the older version
+	 * @throws IOException if the file can not be mapped
+	 */
+	public DeltaStream(Path path,BlockSignatures signatures) throws IOException {
+		this.signatures=signatures;
+		try(FileChannel channel=FileChannel.open(path,StandardOpenOption.READ)) {
+			if(channel.size()>Integer.MAX_VALUE) throw new IOException("file is too large for a delta: "+path);
+			length=(int) channel.size();
+			file=channel.map(FileChannel.MapMode.READ_ONLY,0,length);
+		}
+	}
+
+	private int at(int i) {
+		return file.get(i) & 0xff;
+	}
+
+	private void flushRun() throws IOException {
+		if(runCount==0) return;
+		out.writeByte(copy);
+		out.writeInt(runStart);
+		out.writeInt(runCount);
+		runCount=0;
+	}
+
+	private void addCopy(int block) throws IOException {
+		if(runCount>0 && block==runStart+runCount) {
+			runCount++;
+			return;
+		}
+		flushRun();
+		runStart=block;
+		runCount=1;
+	}
+
+	/**
+	 * Send the bytes from literalStart up to the position.
+	 * @param to
+	 * @throws IOException
+	 */
+	private void emitLiteral(int to) throws IOException {
+		if(to==literalStart) return;
+		flushRun();
+		out.writeByte(literal);
+		out.writeInt(to-literalStart);
+		for(int i=literalStart;i<to;i++) out.writeByte(file.get(i));
+		literalStart=to;
+	}
+
+	private void emitEnd() throws IOException {
+		flushRun();
+		out.writeByte(end);
+		MessageDigest sha256=ArchiveStream.sha256();
+		ByteBuffer all=file.duplicate();
+		all.position(0);
+		sha256.update(all);
+		out.write(sha256.digest());
+		ended=true;
+	}
+
+	/**
+	 * Scan the file until there are instructions to read, or it has ended.
+	 * @throws IOException
+	 */
+	private void scan() throws IOException {
+		int blockSize=signatures.blockSize;
+		while(pending.size()==0 && !ended) {
+			if(pos+blockSize>length || signatures.size()==0) {
+				emitLiteral(Math.min(length,literalStart+maxLiteral));
+				if(literalStart==length) emitEnd();
+				continue;
+			}
+			if(pos-literalStart>=maxLiteral) emitLiteral(pos);
+			if(!windowValid) {
+				sum=0;
+				weighted=0;
+				for(int i=0;i<blockSize;i++) {
+					sum+=at(pos+i);
+					weighted+=(blockSize-i)*at(pos+i);
+				}
+				windowValid=true;
+			}
+			ByteBuffer window=file.duplicate();
+			window.position(pos);
+			window.limit(pos+blockSize);
+			int block=signatures.find(BlockSignatures.weak(sum,weighted),window,
+					runCount>0 ? runStart+runCount : -1);
+			if(block>=0) {
+				emitLiteral(pos);
+				addCopy(block);
+				pos+=blockSize;
+				literalStart=pos;
+				windowValid=false;
+				continue;
+			}
+			if(pos+blockSize<length) {
+				// roll the window on by a byte
+				int leaving=at(pos);
+				sum+=at(pos+blockSize)-leaving;
+				weighted+=sum-blockSize*leaving;
+			} else {
+				windowValid=false;
+			}
+			pos++;
+		}
+		out.flush();
+		ready=pending.toByteArray();
+		readyPos=0;
+		pending.reset();
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] one = new byte[1];
+		return read(one,0,1)==-1 ? -1 : one[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b,int off,int len) throws IOException {
+		int n=0;
+		while(n<len) {
+			if(readyPos==ready.length) {
+				if(ended) break;
+				scan();
+				continue;
+			}
+			int count=Math.min(len-n,ready.length-readyPos);
+			System.arraycopy(ready,readyPos,b,off+n,count);
+			readyPos+=count;
+			n+=count;
+		}
+		return n==0 && len>0 ? -1 : n;
+	}
+}
@@ -0,0 +1,216 @@
+package pb.transfer;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Queues downloads and runs a bounded number of them at a time, so that a
+ * query with many results does not open a connection and a file for each of
+ * them at once. A download is some files from one peer, fetched over one
+ * connection. The downloads are run by a fixed number of worker threads, in
+ * order of priority and then of submission, but never more than a limit from
+ * the same peer at a time: a download whose peer is at its limit waits, and the
+ * next download from another peer is run instead.
+ * <br/>
+ * The downloader that a worker calls must block until its download has ended,
+ * reporting each file that it received or failed to receive, and the bytes
+ * received. Files that it did not report are counted as failed once it
+ * returns. The progress of all the downloads is kept for reporting.
+ * @author aaron
+ *
+ */
+public class DownloadManager {
+	private static Logger log = Logger.getLogger(DownloadManager.class.getName());
+
+	/**
+	 * Some files to download from a peer.
+	 */
+	public class Download implements Comparable<Download> {
+		public final String peer;
+		public final List<String> filenames;
+		public final long priority;
+		private final long seq;
+
+		/**
+		 * The files that have not been reported yet.
+		 */
+		private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+		private Download(String peer,List<String> filenames,long priority,long seq) {
+			this.peer=peer;
+			this.filenames=filenames;
+			this.priority=priority;
+			this.seq=seq;
+			pending.addAll(filenames);
+		}
+
+		/**
+		 * Orders the highest priority first, and then the first submitted.
+		 */
+		@Override
+		public int compareTo(Download o) {
+			int c=Long.compare(o.priority,priority);
+			return c!=0 ? c : Long.compare(seq,o.seq);
+		}
+
+		/**
+		 * Report that a file of the download has been received, or that it failed.
+		 * @param filename
+		 * @param ok true if the file was received intact
+		 */
+		public void fileDone(String filename,boolean ok) {
+			if(!pending.remove(filename)) return;
+			(ok ? filesReceived : filesFailed).incrementAndGet();
+		}
+
+		/**
+		 * Report bytes of the download that have been received.
+		 * @param bytes
+		 */
+		public void received(long bytes) {
+			bytesReceived.addAndGet(bytes);
+		}
+	}
+
+	/**
+	 * The downloads waiting to run, best first, and the number running for
+	 * each peer, guarded by this.
+	 */
+	private final TreeSet<Download> queue = new TreeSet<>();
+	private final Map<String,Integer> running = new HashMap<>();
+	private int active=0;
+	private long submitted=0;
+
+	private final int maxPerPeer;
+	private final Consumer<Download> downloader;
+	private volatile boolean shutdown=false;
+
+	private final AtomicLong filesQueued = new AtomicLong();
+	private final AtomicLong filesReceived = new AtomicLong();
+	private final AtomicLong filesFailed = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+	private final long started=System.currentTimeMillis();
+
+	/**
+	 * @param maxDownloads the most downloads to run at a time
+	 * @param maxPerPeer the most downloads to run from one peer at a time
+	 * @param downloader runs a download, returning once it has ended
+	 */
+	public DownloadManager(int maxDownloads,int maxPerPeer,Consumer<Download> downloader) {
+		this.maxPerPeer=maxPerPeer;
+		this.downloader=downloader;
+		for(int i=0;i<maxDownloads;i++) {
+			Thread worker = new Thread(this::work,"download-"+i);
+			worker.setDaemon(true);
+			worker.start();
+		}
+	}
+
+	/**
+	 * Queue some files to download from a peer.
+	 * @param peer "PeerIP:PeerPort"
+	 * @param filenames
+	 * @param priority downloads with a higher priority run first
+	 */
+	public synchronized void submit(String peer,List<String> filenames,long priority) {
+		if(filenames.isEmpty()) return;
+		queue.add(new Download(peer,filenames,priority,submitted++));
+		filesQueued.addAndGet(filenames.size());
+		notifyAll();
+	}
+
+	/**
+	 * @return the best download whose peer is below its limit, waiting until there is one
+	 * @throws InterruptedException
+	 */
+	private synchronized Download take() throws InterruptedException {
+		while(!shutdown) {
+			Iterator<Download> downloads=queue.iterator();
+			while(downloads.hasNext()) {
+				Download download=downloads.next();
+				if(running.getOrDefault(download.peer,0)>=maxPerPeer) continue;
+				downloads.remove();
+				running.merge(download.peer,1,Integer::sum);
+				active++;
+				return download;
+			}
+			wait();
+		}
+		return null;
+	}
+
+	private synchronized void finished(Download download) {
+		running.computeIfPresent(download.peer,(peer,count)->count>1 ? count-1 : null);
+		active--;
+		notifyAll();
+	}
+
+	private void work() {
+		while(!shutdown) {
+			Download download;
+			try {
+				download=take();
+			} catch (InterruptedException e) {
+				continue;
+			}
+			if(download==null) return;
+			try {
+				downloader.accept(download);
+			} catch (RuntimeException e) {
+				log.warning("download from "+download.peer+" failed: "+e.getMessage());
+			}
+			// whatever was not reported did not arrive
+			for(String filename : download.filenames) download.fileDone(filename,false);
+			finished(download);
+		}
+	}
+
+	/**
+	 * @return true if no download is running or waiting to run
+	 */
+	public synchronized boolean isIdle() {
+		return active==0 && queue.isEmpty();
+	}
+
+	/**
+	 * Wait until no download is running or waiting to run.
+	 * @throws InterruptedException
+	 */
+	public synchronized void awaitIdle() throws InterruptedException {
+		while(!isIdle() && !shutdown) wait();
+	}
+
+	/**
+	 * @return the progress of the downloads, as files received and failed out
+	 * of those queued, bytes received and throughput since the manager started
+	 */
+	public String getProgress() {
+		int running;
+		int waiting;
+		synchronized(this) {
+			running=active;
+			waiting=queue.size();
+		}
+		long bytes=bytesReceived.get();
+		long elapsed=Math.max(1,System.currentTimeMillis()-started);
+		return "received "+filesReceived.get()+" of "+filesQueued.get()+" files ("+filesFailed.get()+
+				" failed), "+bytes/1024+" kB at "+bytes*1000/1024/elapsed+" kB/s, "+running+
+				" downloads running and "+waiting+" waiting";
+	}
+
+	/**
+	 * Stop the workers, abandoning the downloads that are waiting to run.
+	 */
+	public synchronized void shutdown() {
+		shutdown=true;
+		notifyAll();
+	}
+}
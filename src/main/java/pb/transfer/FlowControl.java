@@ -0,0 +1,262 @@
+package pb.transfer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Paces the chunks sent to one peer, whatever the transfers they belong to,
+ * by the acknowledgements that the peer sends back for each chunk. The round
+ * trip time and the goodput, the bytes acknowledged per second, are measured
+ * from the acknowledgements, and used to choose:
+ * <ul>
+ * <li>the chunk size, a power of two so that it does not change for small
+ * changes in the goodput, so that a chunk takes about {@link #frameTime} ms to
+ * send, large on a fast link to keep the number of frames down, and small on
+ * a slow one so that other messages, such as keep-alives, are not held up
+ * behind a frame for long</li>
+ * <li>the number of chunks in flight, as TCP Vegas does: the chunks queued on
+ * the link are estimated from how much the round trip time is above the
+ * least seen for the chunk size, and chunks are added while fewer than
+ * {@link #minQueued} are queued, and taken away while more than
+ * {@link #maxQueued} are</li>
+ * </ul>
+ * both within the bounds given. A chunk that is not acknowledged within the
+ * retransmission timeout, as TCP computes it, is taken as a sign of a lossy
+ * or congested link, and halves both.
+ * @author aaron
+ *
+ */
+public class FlowControl {
+
+	/**
+	 * Time in ms that a chunk should take to send, at the measured goodput.
+	 */
+	public static final int frameTime = 20;
+
+	/**
+	 * Least time in ms to wait for an acknowledgement.
+	 */
+	public static final int minTimeout = 1000;
+
+	/**
+	 * Bounds of the estimated number of chunks queued on the link.
+	 */
+	public static final int minQueued = 1;
+	public static final int maxQueued = 3;
+
+	private final int minChunkSize;
+	private final int maxChunkSize;
+	private final int maxInFlight;
+
+	private int chunkSize;
+	private int window=2;
+
+	/**
+	 * The send times in ns and the sizes of the chunks in flight, oldest
+	 * first, and the acknowledgements still to come for chunks that timed out.
+	 */
+	private final Deque<long[]> inFlight = new ArrayDeque<>();
+	private int lateAcks=0;
+
+	/**
+	 * Transmissions waiting for room in the window.
+	 */
+	private final List<Runnable> waiting = new ArrayList<>();
+
+	/**
+	 * Round trip time estimates in ms, -1 until the first is measured, the
+	 * least of them since the chunk size last changed.
+	 */
+	private double srtt=-1;
+	private double rttvar=0;
+	private double minRtt=-1;
+
+	/**
+	 * Goodput in bytes per second, -1 until the first interval has ended, and
+	 * the interval being measured.
+	 */
+	private double goodput=-1;
+	private long intervalStart=System.nanoTime();
+	private long intervalBytes=0;
+	private boolean intervalFull=false;
+
+	private long chunksSent=0;
+	private long bytesSent=0;
+	private long charsSent=0;
+	private long timeouts=0;
+
+	/**
+	 * @param minChunkSize least chunk size in bytes
+	 * @param maxChunkSize largest chunk size in bytes
+	 * @param maxInFlight most chunks in flight
+	 * @param initialChunkSize chunk size to start with, until there is a measure of the link
+	 */
+	public FlowControl(int minChunkSize,int maxChunkSize,int maxInFlight,int initialChunkSize) {
+		this.minChunkSize=minChunkSize;
+		this.maxChunkSize=maxChunkSize;
+		this.maxInFlight=maxInFlight;
+		chunkSize=Math.max(minChunkSize,Math.min(maxChunkSize,initialChunkSize));
+		window=Math.min(window,maxInFlight);
+	}
+
+	/**
+	 * @return the size in bytes of the next chunk to send
+	 */
+	public synchronized int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * @return the retransmission timeout in ms
+	 */
+	private double timeout() {
+		return srtt<0 ? minTimeout : Math.max(minTimeout,srtt+4*rttvar);
+	}
+
+	/**
+	 * Give up on the chunks that have waited longer than the timeout for their
+	 * acknowledgements.
+	 */
+	private void expire() {
+		long now=System.nanoTime();
+		boolean expired=false;
+		while(!inFlight.isEmpty() && (now-inFlight.peekFirst()[0])/1e6>timeout()) {
+			inFlight.removeFirst();
+			lateAcks++;
+			expired=true;
+		}
+		if(expired) {
+			timeouts++;
+			window=Math.max(1,window/2);
+			chunkSize=Math.max(minChunkSize,chunkSize/2);
+		}
+	}
+
+	/**
+	 * Send now if there is room in the window, otherwise call back when
+	 * there is, or when the chunks in flight have timed out.
+	 * @param whenReady to call, on some other thread, once there is room
+	 * @return true if there is room to send a chunk now
+	 */
+	public synchronized boolean canSend(Runnable whenReady) {
+		expire();
+		if(inFlight.size()<window) return true;
+		intervalFull=true;
+		waiting.add(whenReady);
+		return false;
+	}
+
+	/**
+	 * @param bytes the size of the chunk just sent
+	 * @param sent the characters that it took to send, once encoded
+	 */
+	public synchronized void sent(int bytes,int sent) {
+		inFlight.addLast(new long[] {System.nanoTime(),bytes});
+		chunksSent++;
+		bytesSent+=bytes;
+		charsSent+=sent;
+	}
+
+	/**
+	 * The peer has acknowledged the oldest chunk in flight.
+	 * @return the transmissions that were waiting and can now go on
+	 */
+	public synchronized List<Runnable> acked() {
+		if(lateAcks>0) {
+			lateAcks--;
+		} else if(!inFlight.isEmpty()) {
+			long[] chunk=inFlight.removeFirst();
+			long now=System.nanoTime();
+			measure((now-chunk[0])/1e6);
+			intervalBytes+=chunk[1];
+			if((now-intervalStart)/1e6>=Math.max(srtt,frameTime)) adapt(now);
+		}
+		return ready();
+	}
+
+	/**
+	 * @return the transmissions that were waiting, if there is room or they
+	 * have timed out, since they will then find room
+	 */
+	public synchronized List<Runnable> expired() {
+		expire();
+		return ready();
+	}
+
+	private List<Runnable> ready() {
+		if(inFlight.size()>=window || waiting.isEmpty()) return new ArrayList<>();
+		List<Runnable> ready = new ArrayList<>(waiting);
+		waiting.clear();
+		return ready;
+	}
+
+	/**
+	 * @return ms to wait before checking for chunks that have timed out
+	 */
+	public synchronized long getTimeout() {
+		return (long) Math.ceil(timeout());
+	}
+
+	private void measure(double rtt) {
+		if(srtt<0) {
+			srtt=rtt;
+			rttvar=rtt/2;
+			minRtt=rtt;
+			return;
+		}
+		rttvar=0.75*rttvar+0.25*Math.abs(srtt-rtt);
+		srtt=0.875*srtt+0.125*rtt;
+		minRtt=Math.min(minRtt,rtt);
+	}
+
+	/**
+	 * At the end of an interval, update the goodput and choose the chunk size
+	 * and window from it.
+	 * @param now
+	 */
+	private void adapt(long now) {
+		double rate=intervalBytes*1e9/(now-intervalStart);
+		goodput=goodput<0 ? rate : 0.75*goodput+0.25*rate;
+		double queued=window*(1-minRtt/srtt);
+		if(queued>maxQueued) {
+			window=Math.max(1,window-1);
+		} else if(queued<minQueued && intervalFull) {
+			// only grow if the window was the limit
+			window=Math.min(maxInFlight,window+1);
+		}
+		int size=Integer.highestOneBit((int) Math.min(Integer.MAX_VALUE,goodput*frameTime/1000));
+		size=Math.max(minChunkSize,Math.min(maxChunkSize,size));
+		if(size!=chunkSize) {
+			// larger chunks take longer to go round
+			chunkSize=size;
+			minRtt=srtt;
+		}
+		intervalStart=now;
+		intervalBytes=0;
+		intervalFull=false;
+	}
+
+	/**
+	 * @return the transfer metrics, by name: the chunks and bytes sent, the
+	 * characters they took once encoded, fewer than the bytes if they were
+	 * compressed, the chunks that timed out, the chunk size and window chosen,
+	 * the round trip time in micro seconds, and the goodput in bytes per second
+	 */
+	public synchronized Map<String,Long> getStats() {
+		Map<String,Long> stats = new LinkedHashMap<>();
+		stats.put("chunksSent",chunksSent);
+		stats.put("bytesSent",bytesSent);
+		stats.put("charsSent",charsSent);
+		stats.put("chunkTimeouts",timeouts);
+		stats.put("chunkSize",(long) chunkSize);
+		stats.put("inFlight",(long) window);
+		stats.put("rttMicros",srtt<0 ? -1 : Math.round(srtt*1000));
+		stats.put("minRttMicros",minRtt<0 ? -1 : Math.round(minRtt*1000));
+		stats.put("goodput",Math.round(goodput));
+		return stats;
+	}
+}
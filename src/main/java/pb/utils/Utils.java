@@ -34,7 +34,43 @@ public class Utils {
 	 * Chunk size in bytes to use when transferring a file
 	 */
 	public static final int chunkSize = 16*1024;
-	
+
+	/**
+	 * Maximum size in bytes of the entries in a single batched event. Events
+	 * are sent with writeUTF, which limits a message to 64kB after JSON escaping.
+	 */
+	public static final int batchSize = 24*1024;
+
+	/**
+	 * The bytes that a string takes in a message: escaped for JSON as
+	 * json-simple does, "\n" and "\/" taking 2 bytes and control characters 6,
+	 * and then written with writeUTF, which takes 1 to 3 bytes for each char.
+	 * @param s
+	 * @return the length of s in bytes once sent as (part of) an event argument
+	 */
+	public static int encodedLength(String s) {
+		int length=0;
+		for(int i=0;i<s.length();i++) {
+			char c=s.charAt(i);
+			switch(c) {
+			case '"': case '\\': case '/': case '\b': case '\f': case '\n': case '\r': case '\t':
+				length+=2;
+				break;
+			default:
+				if(c<=0x1F || (c>=0x7F && c<=0x9F) || (c>=0x2000 && c<=0x20FF)) {
+					length+=6; // as a six character unicode escape
+				} else if(c<0x80) {
+					length+=1;
+				} else if(c<0x800) {
+					length+=2;
+				} else {
+					length+=3;
+				}
+			}
+		}
+		return length;
+	}
+
 	/**
 	 * Use of a single timer object over the entire system helps
 	 * to reduce thread usage.